@@ -0,0 +1,302 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server;
+
+import io.github.jython234.nectar.server.struct.ClientState;
+import io.github.jython234.nectar.server.struct.PeerInformation;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted indexes over client attributes, used to find
+ * clients by selector instead of by UUID.
+ *
+ * A selector is a comma separated list of terms which must all match,
+ * e.g. "os=ubuntu,osVersion=16.04,hostname=lab3*". A term is a field,
+ * an operator (=, !=, &lt;, &lt;=, &gt;, &gt;=) and a value. Values can be
+ * alternatives separated by "|", and string values ending in "*" match
+ * by prefix. String values are not case sensitive.
+ *
+ * Indexed fields are hostname (the whole name and each part of it, split
+ * on anything that is not a letter or digit), os, osVersion, arch, state,
+ * user, updates and securityUpdates. They are loaded from the database
+ * at startup and kept current from client pings, state changes and logins.
+ *
+ * @author jython234
+ */
+public class ClientIndex {
+    public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "hostname", "os", "osVersion", "arch", "state", "user", "updates", "securityUpdates"
+    ));
+    private static final Set<String> NUMERIC_FIELDS = new HashSet<>(Arrays.asList("updates", "securityUpdates"));
+    private static final String[] OPERATORS = {"!=", "<=", ">=", "=", "<", ">"};
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Key String is the field, then the value (String or Long) to the UUIDs of the clients that have it
+    private final Map<String, NavigableMap<Object, Set<String>>> index = new HashMap<>();
+    // Key String is the UUID, then the field to its current values, so they can be removed when they change
+    private final Map<String, Map<String, Collection<Object>>> clients = new HashMap<>();
+
+    public ClientIndex() {
+        for(String field : FIELDS) {
+            this.index.put(field, new TreeMap<>());
+        }
+    }
+
+    /**
+     * Load the attributes of all clients in the database.
+     */
+    public void seed() {
+        for(Document doc : NectarServerApplication.getDb().getCollection("clients").find()) {
+            String uuid = doc.getString("uuid");
+            if(uuid == null)
+                continue;
+
+            Map<String, Collection<Object>> values = new HashMap<>();
+            values.put("hostname", hostnameTerms(doc.getString("hostname")));
+            values.put("state", term(ClientState.fromInt(doc.getInteger("state", ClientState.UNKNOWN.toInt())).name()));
+            values.put("user", term(user(doc.getString("loggedInUser"))));
+
+            Document peerInfo = (Document) doc.get("peerInfo");
+            Document systemInfo = peerInfo == null ? null : (Document) peerInfo.get("systemInfo");
+            if(systemInfo != null) {
+                values.put("os", term(systemInfo.getString("os")));
+                // Older servers stored the OS version under a misspelled key
+                values.put("osVersion", term(systemInfo.containsKey("osVersion") ? systemInfo.getString("osVersion") : systemInfo.getString("osVerison")));
+                values.put("arch", term(systemInfo.getString("arch")));
+            }
+
+            set(uuid, values);
+        }
+    }
+
+    /**
+     * Update a client's attributes after a ping.
+     */
+    public void update(String uuid, PeerInformation peerInfo, int updates, int securityUpdates) {
+        Map<String, Collection<Object>> values = new HashMap<>();
+        values.put("hostname", hostnameTerms(peerInfo.getHostname()));
+        if(peerInfo.getSystemInfo() != null) {
+            values.put("os", term(peerInfo.getSystemInfo().getOs()));
+            values.put("osVersion", term(peerInfo.getSystemInfo().getOsVersion()));
+            values.put("arch", term(peerInfo.getSystemInfo().getArch()));
+        }
+        values.put("updates", Collections.singleton((long) updates));
+        values.put("securityUpdates", Collections.singleton((long) securityUpdates));
+
+        set(uuid, values);
+    }
+
+    public void setState(String uuid, ClientState state) {
+        set(uuid, Collections.singletonMap("state", term(state.name())));
+    }
+
+    /**
+     * @param user The user signed into the client, or null if nobody is.
+     */
+    public void setUser(String uuid, String user) {
+        set(uuid, Collections.singletonMap("user", term(user(user))));
+    }
+
+    /**
+     * Remove a deleted client from the index.
+     */
+    public void remove(String uuid) {
+        this.lock.writeLock().lock();
+        try {
+            Map<String, Collection<Object>> old = this.clients.remove(uuid);
+            if(old != null)
+                old.forEach((field, values) -> unindex(uuid, field, values));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the clients matching a selector.
+     * @param selector The selector.
+     * @return The UUIDs of the matching clients.
+     * @throws IllegalArgumentException If the selector is not valid.
+     */
+    public Set<String> resolve(String selector) {
+        List<String[]> terms = new ArrayList<>();
+        for(String raw : selector.split(",")) {
+            if(!raw.trim().isEmpty())
+                terms.add(parseTerm(raw.trim()));
+        }
+        if(terms.isEmpty())
+            throw new IllegalArgumentException("Empty selector.");
+
+        this.lock.readLock().lock();
+        try {
+            List<Set<String>> matches = new ArrayList<>(terms.size());
+            for(String[] term : terms) {
+                matches.add(match(term[0], term[1], term[2]));
+            }
+
+            // Intersect starting with the smallest set
+            matches.sort(Comparator.comparingInt(Set::size));
+            Set<String> result = matches.get(0);
+            for(int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+                result.retainAll(matches.get(i));
+            }
+
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private String[] parseTerm(String term) {
+        for(String op : OPERATORS) {
+            int i = term.indexOf(op);
+            if(i > 0) {
+                String field = term.substring(0, i).trim();
+                if(!this.index.containsKey(field))
+                    throw new IllegalArgumentException("Unknown field \"" + field + "\", must be one of " + FIELDS);
+
+                return new String[] {field, op, term.substring(i + op.length()).trim()};
+            }
+        }
+
+        throw new IllegalArgumentException("Invalid selector term \"" + term + "\"");
+    }
+
+    private Set<String> match(String field, String op, String value) {
+        NavigableMap<Object, Set<String>> values = this.index.get(field);
+        Set<String> result = new HashSet<>();
+
+        if(op.equals("=") || op.equals("!=")) {
+            for(String alternative : value.split("\\|")) {
+                if(NUMERIC_FIELDS.contains(field)) {
+                    addAll(result, values.get(parseNumber(alternative)));
+                } else if(alternative.endsWith("*")) {
+                    String prefix = alternative.substring(0, alternative.length() - 1).toLowerCase();
+                    values.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values().forEach(result::addAll);
+                } else {
+                    addAll(result, values.get(alternative.toLowerCase()));
+                }
+            }
+
+            if(op.equals("!=")) {
+                Set<String> all = new HashSet<>(this.clients.keySet());
+                all.removeAll(result);
+                return all;
+            }
+            return result;
+        }
+
+        if(!NUMERIC_FIELDS.contains(field))
+            throw new IllegalArgumentException("Operator " + op + " can only be used on " + NUMERIC_FIELDS);
+
+        long number = parseNumber(value);
+        NavigableMap<Object, Set<String>> range;
+        switch (op) {
+            case "<":
+                range = values.headMap(number, false);
+                break;
+            case "<=":
+                range = values.headMap(number, true);
+                break;
+            case ">":
+                range = values.tailMap(number, false);
+                break;
+            default:
+                range = values.tailMap(number, true);
+                break;
+        }
+        range.values().forEach(result::addAll);
+        return result;
+    }
+
+    private void set(String uuid, Map<String, Collection<Object>> values) {
+        this.lock.writeLock().lock();
+        try {
+            Map<String, Collection<Object>> current = this.clients.computeIfAbsent(uuid, k -> new HashMap<>());
+            values.forEach((field, newValues) -> {
+                Collection<Object> old = current.put(field, newValues);
+                if(old != null)
+                    unindex(uuid, field, old);
+
+                for(Object value : newValues) {
+                    this.index.get(field).computeIfAbsent(value, k -> new HashSet<>()).add(uuid);
+                }
+            });
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(String uuid, String field, Collection<Object> values) {
+        NavigableMap<Object, Set<String>> fieldIndex = this.index.get(field);
+        for(Object value : values) {
+            Set<String> uuids = fieldIndex.get(value);
+            if(uuids != null && uuids.remove(uuid) && uuids.isEmpty())
+                fieldIndex.remove(value);
+        }
+    }
+
+    private static Collection<Object> hostnameTerms(String hostname) {
+        if(hostname == null || hostname.equals("!UNKNOWN"))
+            return Collections.emptySet();
+
+        Set<Object> terms = new HashSet<>();
+        hostname = hostname.toLowerCase();
+        terms.add(hostname);
+        for(String part : hostname.split("[^a-z0-9]+")) {
+            if(!part.isEmpty())
+                terms.add(part);
+        }
+        return terms;
+    }
+
+    private static Collection<Object> term(String value) {
+        return value == null ? Collections.emptySet() : Collections.singleton(value.toLowerCase());
+    }
+
+    private static String user(String loggedInUser) {
+        return loggedInUser == null || loggedInUser.equals("none") ? null : loggedInUser;
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("\"" + value + "\" is not a number.");
+        }
+    }
+
+    private static void addAll(Set<String> result, Set<String> uuids) {
+        if(uuids != null)
+            result.addAll(uuids);
+    }
+}
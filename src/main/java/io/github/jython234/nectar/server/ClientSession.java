@@ -35,6 +35,7 @@ import io.github.jython234.nectar.server.struct.ClientState;
 import io.github.jython234.nectar.server.struct.PeerInformation;
 import io.github.jython234.nectar.server.struct.SessionToken;
 import io.github.jython234.nectar.server.struct.operation.ClientOperation;
+import io.github.jython234.nectar.server.struct.operation.OperationID;
 import io.github.jython234.nectar.server.struct.operation.OperationStatus;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
@@ -43,6 +44,7 @@ import lombok.Setter;
 import org.bson.BSON;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -60,13 +62,16 @@ import java.util.stream.Collectors;
  * @author jython234
  */
 public class ClientSession {
+    private static final int DELIVERY_BATCH = 100;
+
     @Getter private SessionToken token;
     @Getter private ClientState state;
     @Getter private long lastPing;
 
     @Getter @Setter private OperationStatus processingStatus;
     @Getter @Setter private int processingNumber = -1;
-    @Getter @Setter private int nextOperationId = 0;
+    @Getter private ObjectId processingMailboxId;
+    @Getter private int nextOperationId = 0;
     @Getter @Setter private String processingMessage = "IDLE";
     @Getter private Queue<ClientOperation> operationQueue = new ConcurrentLinkedQueue<>();
 
@@ -84,6 +89,35 @@ public class ClientSession {
         this.lastPing = System.currentTimeMillis();
     }
 
+    /**
+     * Add an operation to the end of this client's queue.
+     * @param id The operation to add.
+     * @param payload The operation's additional data.
+     * @return The operation's mailbox ID, which unlike its number stays the same across sessions.
+     */
+    public synchronized ObjectId enqueueOperation(OperationID id, JSONObject payload) {
+        // Numbers are assigned under the lock so the queue stays in number order
+        int number = this.nextOperationId++;
+        ObjectId mailboxId = new ObjectId();
+        this.operationQueue.add(new ClientOperation(number, id, payload, mailboxId));
+        NectarServerApplication.getOperationMailbox().add(this.token.getUuid(), mailboxId, id, payload);
+        return mailboxId;
+    }
+
+    /**
+     * Load the operations left in this client's mailbox from
+     * earlier sessions into the queue.
+     */
+    public synchronized void restoreOperations() {
+        for(Document doc : NectarServerApplication.getOperationMailbox().load(this.token.getUuid())) {
+            ClientOperation operation = OperationMailbox.toOperation(this.nextOperationId, doc);
+            if(operation != null) {
+                this.operationQueue.add(operation);
+                this.nextOperationId++;
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public String constructOperationQueueJWT() {
         JSONObject root = new JSONObject();
@@ -91,7 +125,8 @@ public class ClientSession {
         if(this.operationQueue.isEmpty()) {
             array = new JSONArray();
         } else {
-            array = this.operationQueue.stream().map(ClientOperation::createJSON).collect(Collectors.toCollection(JSONArray::new));
+            // Clients with a long backlog get it in batches, the rest is sent once they have started these
+            array = this.operationQueue.stream().limit(DELIVERY_BATCH).map(ClientOperation::createJSON).collect(Collectors.toCollection(JSONArray::new));
         }
 
         root.put("array", array);
@@ -102,9 +137,15 @@ public class ClientSession {
                 .compact(); // Sign and build the JWT
     }
 
-    public void updateOperationStatus(int operationNumber, OperationStatus opStatus, String message) {
+    /**
+     * Update the status of the operation this client is processing.
+     * @return The mailbox ID of the operation the status is for, or null if it is not known.
+     */
+    public ObjectId updateOperationStatus(int operationNumber, OperationStatus opStatus, String message) {
         NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.DEBUG, "Updated operation status for " + this.getToken().getUuid() + " to " + opStatus.name());
 
+        boolean sameOperation = operationNumber == this.processingNumber;
+
         if(opStatus == OperationStatus.IDLE) {
             this.setProcessingNumber(-1);
             this.setProcessingMessage("IDLE");
@@ -115,13 +156,21 @@ public class ClientSession {
         }
 
         if(opStatus == OperationStatus.IN_PROGRESS) {
-            this.getOperationQueue().remove(); // Remove the one from the top of the queue
+            ClientOperation operation = this.getOperationQueue().poll(); // Remove the one from the top of the queue
+            this.processingMailboxId = operation != null ? operation.getMailboxId() : null;
+            if(operation != null)
+                NectarServerApplication.getOperationMailbox().remove(operation.getMailboxId());
+
+            return this.processingMailboxId;
         }
+
+        return sameOperation ? this.processingMailboxId : null;
     }
 
     public void updateState(ClientState state) {
         NectarServerApplication.getLogger().info("Client " + token.getUuid() + " state updated to: " + state.toString());
         this.state = state;
+        NectarServerApplication.getClientIndex().setState(token.getUuid(), state);
 
         MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
         clients.updateOne(Filters.eq("uuid", token.getUuid()),
@@ -145,6 +194,7 @@ public class ClientSession {
         this.updates = ((Long) obj.get("updates")).intValue();
         this.securityUpdates = ((Long) obj.get("securityUpdates")).intValue();
         this.peerInfo = PeerInformation.parseFromJSON((JSONObject) obj.get("peerInfo"));
+        NectarServerApplication.getClientIndex().update(token.getUuid(), this.peerInfo, this.updates, this.securityUpdates);
 
         MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
         clients.updateOne(Filters.eq("uuid", token.getUuid()),
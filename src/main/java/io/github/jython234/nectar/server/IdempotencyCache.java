@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of requests sent with an "Idempotency-Key" header,
+ * so a client retrying a request after a network failure gets the original
+ * result instead of the request being done again.
+ *
+ * A retry arriving while the original request is still running waits for
+ * its result. Results are kept for a limited time and a limited number of
+ * keys, oldest first. Only successes and errors which would happen again
+ * are kept; server errors, conflicts and "try again later" responses are
+ * forgotten, so those requests can be retried for real.
+ *
+ * Each key is bound to a fingerprint of the request's parameters, and
+ * reusing a key for a different request is rejected.
+ *
+ * @author jython234
+ */
+public class IdempotencyCache {
+    public static final String HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final int MAX_KEY_LENGTH = 255;
+    private static final long WAIT_TIMEOUT = 10 * 60 * 1000;
+
+    private final int maxEntries;
+    private final long ttl;
+
+    // Guarded by "this". Key String is the scope, caller and idempotency key, in insertion order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param maxEntries Maximum amount of results to remember.
+     * @param ttl Time in milliseconds a result is remembered for.
+     */
+    public IdempotencyCache(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Run a request, or return the result of an earlier request with the same key.
+     * @param scope The kind of request, e.g. the endpoint name.
+     * @param caller Who is making the request, so keys of different callers never clash.
+     * @param key The Idempotency-Key header of the request, may be null.
+     * @param fingerprint Identifies the request's parameters and content, a key may only be reused with the same ones.
+     *                    Only computed if the request has a key. If it gives null the request runs without the cache.
+     * @param action Performs the request. A null result means the caller should carry on as successful.
+     * @return The result of the request.
+     */
+    public ResponseEntity execute(String scope, String caller, String key, Supplier<String> fingerprintSupplier, Supplier<ResponseEntity> action) {
+        if(key == null || this.maxEntries <= 0)
+            return action.get();
+
+        if(key.isEmpty() || key.length() > MAX_KEY_LENGTH)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid " + HEADER + " header.");
+
+        String fingerprint = fingerprintSupplier.get();
+        if(fingerprint == null)
+            return action.get();
+
+        String id = scope + "/" + caller + "/" + key;
+        CompletableFuture<ResponseEntity> future = new CompletableFuture<>();
+        Entry existing;
+        synchronized (this) {
+            expire();
+            existing = this.entries.get(id);
+            if(existing == null) {
+                this.entries.put(id, new Entry(future, fingerprint));
+                while(this.entries.size() > this.maxEntries) {
+                    Iterator<Entry> it = this.entries.values().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+
+        if(existing != null) {
+            if(!existing.fingerprint.equals(fingerprint))
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(HEADER + " was already used for a different request.");
+
+            return replay(existing.result);
+        }
+
+        ResponseEntity result;
+        try {
+            result = action.get();
+        } catch(RuntimeException | Error e) {
+            forget(id, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        if(result != null && isRetryable(result.getStatusCode()))
+            forget(id, future);
+        future.complete(result);
+
+        return result;
+    }
+
+    private static boolean isRetryable(HttpStatus status) {
+        return status.is5xxServerError() || status == HttpStatus.CONFLICT || status == HttpStatus.TOO_MANY_REQUESTS
+                || status == HttpStatus.REQUEST_TIMEOUT;
+    }
+
+    private ResponseEntity replay(CompletableFuture<ResponseEntity> result) {
+        ResponseEntity original;
+        try {
+            original = result.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Interrupted while waiting for the original request.");
+        } catch (ExecutionException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("The original request failed.");
+        } catch (TimeoutException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("The original request is still in progress.");
+        }
+
+        if(original == null)
+            return null;
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(original.getHeaders());
+        headers.set(REPLAYED_HEADER, "true");
+        return new ResponseEntity<>(original.getBody(), headers, original.getStatusCode());
+    }
+
+    private synchronized void forget(String id, CompletableFuture<ResponseEntity> future) {
+        Entry entry = this.entries.get(id);
+        if(entry != null && entry.result == future)
+            this.entries.remove(id);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while(it.hasNext()) {
+            if(now - it.next().getValue().createdAt < this.ttl)
+                break; // Insertion order, so the rest are newer
+
+            it.remove();
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<ResponseEntity> result;
+        private final String fingerprint;
+        private final long createdAt = System.currentTimeMillis();
+
+        private Entry(CompletableFuture<ResponseEntity> result, String fingerprint) {
+            this.result = result;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -32,6 +32,21 @@ import ch.qos.logback.classic.Level;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
 import io.github.jython234.nectar.server.controller.FTSController;
+import io.github.jython234.nectar.server.controller.RolloutScheduler;
+import io.github.jython234.nectar.server.fts.BlockSignatureStore;
+import io.github.jython234.nectar.server.fts.ChunkStore;
+import io.github.jython234.nectar.server.fts.CompressedVariantStore;
+import io.github.jython234.nectar.server.fts.DeltaCache;
+import io.github.jython234.nectar.server.fts.DeltaJobQueue;
+import io.github.jython234.nectar.server.fts.FileCommitter;
+import io.github.jython234.nectar.server.fts.HotObjectCache;
+import io.github.jython234.nectar.server.fts.IndexResponseCache;
+import io.github.jython234.nectar.server.fts.IntegrityScrubber;
+import io.github.jython234.nectar.server.fts.MerkleTree;
+import io.github.jython234.nectar.server.fts.SpaceLedger;
+import io.github.jython234.nectar.server.fts.TransferScheduler;
+import io.github.jython234.nectar.server.fts.VersionHistory;
+import io.github.jython234.nectar.server.fts.VolumeManager;
 import io.github.jython234.nectar.server.struct.PeerInformation;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
@@ -76,6 +91,24 @@ public class NectarServerApplication {
     public static final PeerInformation SERVER_INFORMATION = generateServerInfo();
     
     @Getter private static ThreadPoolTaskExecutor threadPoolTaskExecutor;
+    @Getter private static DeltaJobQueue deltaJobQueue;
+    @Getter private static VersionHistory versionHistory;
+    @Getter private static BlockSignatureStore blockSignatureStore;
+    @Getter private static ChunkStore chunkStore;
+    @Getter private static MerkleTree merkleTree;
+    @Getter private static IndexResponseCache indexResponseCache;
+    @Getter private static HotObjectCache hotObjectCache;
+    @Getter private static CompressedVariantStore compressedVariantStore;
+    @Getter private static SpaceLedger spaceLedger;
+    @Getter private static TransferScheduler transferScheduler;
+    @Getter private static FileCommitter fileCommitter;
+    @Getter private static VolumeManager volumeManager;
+    @Getter private static IntegrityScrubber integrityScrubber;
+    @Getter private static DeltaCache deltaCache;
+    @Getter private static IdempotencyCache idempotencyCache;
+    @Getter private static ClientIndex clientIndex;
+    @Getter private static OperationMailbox operationMailbox;
+    @Getter private static RolloutScheduler rolloutScheduler;
 
     @Getter private static String deploymentHash;
 
@@ -124,6 +157,9 @@ public class NectarServerApplication {
         eventLog = new EventLog(configuration.getMaxEntryLogSize());
         eventLog.addEntry(EventLog.EntryLevel.INFO, "Loaded configuration.");
 
+        idempotencyCache = new IdempotencyCache(configuration.getIdempotencyCacheSize(), configuration.getIdempotencyKeyTTL() * 60 * 1000);
+        deltaJobQueue = new DeltaJobQueue(configuration.getDeltaWorkers(), configuration.getDeltaQueueCapacity());
+
         try {
             setupDeployment();
         } catch (IOException e) {
@@ -136,10 +172,42 @@ public class NectarServerApplication {
 
         connectMongo();
 
+        clientIndex = new ClientIndex();
+        clientIndex.seed();
+        operationMailbox = new OperationMailbox();
+        rolloutScheduler = new RolloutScheduler();
+
+        fileCommitter = new FileCommitter(configuration.isFsync(), configuration.isGroupCommit());
+        volumeManager = new VolumeManager(configuration.getVolumes(), configuration.getVolumeIoThreads(), configuration.getReplicateAfter());
+        deltaCache = new DeltaCache(configuration.getDeltaCacheSize() * 1000 * 1000, configuration.getDeltaCacheMaxAge() * 60 * 60 * 1000);
+        versionHistory = new VersionHistory(configuration.getHistoryDepth());
+        blockSignatureStore = new BlockSignatureStore();
+        if(configuration.isDedup())
+            chunkStore = new ChunkStore();
+        merkleTree = new MerkleTree();
+        spaceLedger = new SpaceLedger(volumeManager, configuration.getSpaceThreshold() * 1000 * 1000);
+        transferScheduler = new TransferScheduler(configuration.getMaxTransfers(),
+                configuration.getBandwidthLimit() * 1000, configuration.getClientBandwidthLimit() * 1000);
+        indexResponseCache = new IndexResponseCache(configuration.getIndexCacheSize() * 1000 * 1000);
+        hotObjectCache = new HotObjectCache(configuration.getHotCacheSize() * 1000 * 1000,
+                configuration.getHotCacheMaxFileSize() * 1000 * 1000, configuration.getHotCacheAdmitAfter());
+        if(configuration.isCompressDownloads())
+            compressedVariantStore = new CompressedVariantStore();
+
         logger.info("Building FTS Checksum index (this could take a while!)...");
         long startTime = System.currentTimeMillis();
 
         FTSController.buildChecksumIndex();
+        merkleTree.rebuild();
+        spaceLedger.seed();
+        volumeManager.pruneReplicas();
+        if(compressedVariantStore != null)
+            compressedVariantStore.prune();
+        deltaCache.start();
+        if(configuration.getScrubRate() > 0) {
+            integrityScrubber = new IntegrityScrubber(configuration.getScrubRate() * 1000, configuration.getScrubInterval() * 60 * 60 * 1000);
+            integrityScrubber.start();
+        }
 
         logger.info("Done! (Finished in " + (System.currentTimeMillis() - startTime) + " msecs)");
 
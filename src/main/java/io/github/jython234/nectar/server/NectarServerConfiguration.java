@@ -41,6 +41,10 @@ import java.security.interfaces.ECPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class which holds the values from the
@@ -56,6 +60,8 @@ public class NectarServerConfiguration {
 
     // Network Section -----------------------------------------
     @Getter private final int bindPort;
+    @Getter private final int idempotencyCacheSize;
+    @Getter private final long idempotencyKeyTTL;
 
     // db Section ----------------------------------------------
     @Getter private final String dbIP;
@@ -80,11 +86,40 @@ public class NectarServerConfiguration {
     // FTS Section ---------------------------------------------
     @Getter private final String ftsDirectory;
     @Getter private final long spaceThreshold;
+    @Getter private final int deltaWorkers;
+    @Getter private final int deltaQueueCapacity;
+    @Getter private final int historyDepth;
+    @Getter private final boolean dedup;
+    @Getter private final long indexCacheSize;
+    @Getter private final long hotCacheSize;
+    @Getter private final long hotCacheMaxFileSize;
+    @Getter private final int hotCacheAdmitAfter;
+    @Getter private final boolean compressDownloads;
+    @Getter private final long userQuota;
+    @Getter private final long publicQuota;
+    @Getter private final int maxTransfers;
+    @Getter private final long bandwidthLimit;
+    @Getter private final long clientBandwidthLimit;
+    @Getter private final boolean fsync;
+    @Getter private final boolean groupCommit;
+    @Getter private final List<String> volumes = new ArrayList<>();
+    @Getter private final int volumeIoThreads;
+    @Getter private final int replicateAfter;
+    @Getter private final boolean fastHash;
+    @Getter private final long scrubRate;
+    @Getter private final long scrubInterval;
+    @Getter private final long deltaCacheSize;
+    @Getter private final long deltaCacheMaxAge;
+
+    // Quotas Section ------------------------------------------
+    private final Map<String, Long> userQuotas = new HashMap<>();
 
     NectarServerConfiguration(Ini config) {
         this.maxEntryLogSize = Integer.parseInt(config.get("server").get("maxEntryLogSize"));
 
         this.bindPort = Integer.parseInt(config.get("network").get("bindPort"));
+        this.idempotencyCacheSize = Integer.parseInt(config.get("network").getOrDefault("idempotencyCacheSize", "10000"));
+        this.idempotencyKeyTTL = Long.parseLong(config.get("network").getOrDefault("idempotencyKeyTTL", "60"));
 
         this.dbIP = config.get("db").get("ip");
         this.dbPort = Integer.parseInt(config.get("db").get("port"));
@@ -131,10 +166,6 @@ public class NectarServerConfiguration {
         File publicDeltaDir = new File(this.ftsDirectory + File.separator + "publicDeltaCache");
         File usrDeltaDir = new File(this.ftsDirectory + File.separator + "usrDeltaCache");
 
-        // Clear delta caches
-        publicDeltaDir.delete();
-        usrDeltaDir.delete();
-
         // Create publicStore directory
         if(!publicStoreDir.exists() && !publicStoreDir.mkdir()) {
             NectarServerApplication.getLogger().error("Failed to create FTS publicStore directory! (mkdir failed)");
@@ -160,12 +191,60 @@ public class NectarServerConfiguration {
         }
 
         this.spaceThreshold = Long.parseLong(config.get("fts").get("spaceThreshold"));
+        this.deltaWorkers = Integer.parseInt(config.get("fts").getOrDefault("deltaWorkers", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        this.deltaQueueCapacity = Integer.parseInt(config.get("fts").getOrDefault("deltaQueueCapacity", "256"));
+        this.historyDepth = Integer.parseInt(config.get("fts").getOrDefault("historyDepth", "10"));
+        this.dedup = Boolean.parseBoolean(config.get("fts").getOrDefault("dedup", "false"));
+        this.indexCacheSize = Long.parseLong(config.get("fts").getOrDefault("indexCacheSize", "64"));
+        this.hotCacheSize = Long.parseLong(config.get("fts").getOrDefault("hotCacheSize", "256"));
+        this.hotCacheMaxFileSize = Long.parseLong(config.get("fts").getOrDefault("hotCacheMaxFileSize", "64"));
+        this.hotCacheAdmitAfter = Integer.parseInt(config.get("fts").getOrDefault("hotCacheAdmitAfter", "3"));
+        this.compressDownloads = Boolean.parseBoolean(config.get("fts").getOrDefault("compressDownloads", "true"));
+        this.userQuota = Long.parseLong(config.get("fts").getOrDefault("userQuota", "0"));
+        this.publicQuota = Long.parseLong(config.get("fts").getOrDefault("publicQuota", "0"));
+        this.maxTransfers = Integer.parseInt(config.get("fts").getOrDefault("maxTransfers", "64"));
+        this.bandwidthLimit = Long.parseLong(config.get("fts").getOrDefault("bandwidthLimit", "0"));
+        this.clientBandwidthLimit = Long.parseLong(config.get("fts").getOrDefault("clientBandwidthLimit", "0"));
+        this.fsync = Boolean.parseBoolean(config.get("fts").getOrDefault("fsync", "true"));
+        this.groupCommit = Boolean.parseBoolean(config.get("fts").getOrDefault("groupCommit", "true"));
+        this.volumeIoThreads = Integer.parseInt(config.get("fts").getOrDefault("volumeIoThreads", "4"));
+        this.replicateAfter = Integer.parseInt(config.get("fts").getOrDefault("replicateAfter", "20"));
+        this.fastHash = Boolean.parseBoolean(config.get("fts").getOrDefault("fastHash", "true"));
+        this.scrubRate = Long.parseLong(config.get("fts").getOrDefault("scrubRate", "8192"));
+        this.scrubInterval = Long.parseLong(config.get("fts").getOrDefault("scrubInterval", "24"));
+        this.deltaCacheSize = Long.parseLong(config.get("fts").getOrDefault("deltaCacheSize", "1024"));
+        this.deltaCacheMaxAge = Long.parseLong(config.get("fts").getOrDefault("deltaCacheMaxAge", "168"));
+
+        // The FTS directory is always the first volume
+        this.volumes.add(this.ftsDirectory);
+        for(String volume : config.get("fts").getOrDefault("volumes", "").split(",")) {
+            volume = volume.trim();
+            if(volume.isEmpty())
+                continue;
+
+            this.volumes.add(volume.startsWith("/") ? volume : System.getProperty("user.dir") + "/" + volume);
+        }
+
+        if(config.containsKey("quotas")) {
+            config.get("quotas").forEach((user, quota) -> this.userQuotas.put(user, Long.parseLong(quota)));
+        }
 
         loadKeys();
 
         INSTANCE = this;
     }
 
+    /**
+     * Get the storage quota of an FTS store.
+     * @param isPublic If the store is the public store.
+     * @param user The owner of the store, ignored for the public store.
+     * @return The quota in bytes, or 0 if the store is unlimited.
+     */
+    public long getQuota(boolean isPublic, String user) {
+        long quota = isPublic ? this.publicQuota : this.userQuotas.getOrDefault(user, this.userQuota);
+        return quota * 1000 * 1000;
+    }
+
     private void loadKeys() {
         Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
 
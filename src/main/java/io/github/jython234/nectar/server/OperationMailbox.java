@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import com.mongodb.util.JSON;
+import io.github.jython234.nectar.server.struct.operation.ClientOperation;
+import io.github.jython234.nectar.server.struct.operation.OperationID;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the operations queued for each client in the "operationMailbox"
+ * collection, so they are not lost when the server restarts or when the
+ * client is offline.
+ *
+ * Operations are added when they are queued and removed once the client
+ * starts them. Both are buffered and written to the database in batches.
+ * When a client requests a new token, the operations still in its
+ * mailbox are loaded back into its session.
+ *
+ * Writes are only dropped once the database has acknowledged them, so a
+ * batch that fails is retried on the next flush.
+ *
+ * @author jython234
+ */
+public class OperationMailbox {
+    private static final long FLUSH_INTERVAL = 200;
+    private static final int LOCK_STRIPES = 256;
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoCollection<Document> mailbox;
+    private final Queue<WriteModel<Document>> pending = new ConcurrentLinkedQueue<>();
+    // Taken from pending but not yet acknowledged, guarded by "this"
+    private final List<WriteModel<Document>> unwritten = new ArrayList<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ScheduledExecutorService flusher;
+
+    public OperationMailbox() {
+        this.mailbox = NectarServerApplication.getDb().getCollection("operationMailbox");
+        this.mailbox.createIndex(Indexes.ascending("uuid", "createdAt"));
+
+        for(int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "OperationMailbox-Flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly));
+    }
+
+    /**
+     * Get the lock that must be held while checking whether a client is
+     * connected and adding to its mailbox, so an operation queued while the
+     * client connects ends up either in its session or in its loaded mailbox.
+     * @param uuid The client's UUID.
+     * @return The lock object.
+     */
+    public Object lockFor(String uuid) {
+        return this.locks[(uuid.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Add an operation to a client's mailbox.
+     * @param uuid The client's UUID.
+     * @param mailboxId The ID of the operation in the mailbox.
+     * @param id The operation.
+     * @param payload The operation's additional data.
+     */
+    public void add(String uuid, ObjectId mailboxId, OperationID id, JSONObject payload) {
+        this.pending.add(new InsertOneModel<>(new Document("_id", mailboxId)
+                .append("uuid", uuid)
+                .append("id", id.toInt())
+                .append("payload", JSON.parse(payload.toJSONString()))
+                .append("createdAt", System.currentTimeMillis())
+        ));
+    }
+
+    /**
+     * Remove an operation the client has started from its mailbox.
+     * @param mailboxId The ID of the operation in the mailbox.
+     */
+    public void remove(ObjectId mailboxId) {
+        this.pending.add(new DeleteOneModel<>(Filters.eq("_id", mailboxId)));
+    }
+
+    /**
+     * Remove all operations of a deleted client.
+     * @param uuid The client's UUID.
+     */
+    public void clear(String uuid) {
+        this.pending.add(new DeleteManyModel<>(Filters.eq("uuid", uuid)));
+    }
+
+    /**
+     * Load the operations in a client's mailbox, oldest first.
+     * @param uuid The client's UUID.
+     * @return The operations, numbered by the session.
+     */
+    public List<Document> load(String uuid) {
+        flush();
+
+        List<Document> operations = new ArrayList<>();
+        this.mailbox.find(Filters.eq("uuid", uuid))
+                .sort(Sorts.ascending("createdAt", "_id"))
+                .into(operations);
+        return operations;
+    }
+
+    /**
+     * Convert an operation loaded from the mailbox back into a ClientOperation.
+     * @param number The operation number assigned by the session.
+     * @param doc The operation's document.
+     * @return The operation, or null if it could not be read.
+     */
+    public static ClientOperation toOperation(int number, Document doc) {
+        try {
+            JSONObject payload = (JSONObject) new JSONParser().parse(JSON.serialize(doc.get("payload")));
+            return new ClientOperation(number, OperationID.fromInt(doc.getInteger("id")), payload, doc.getObjectId("_id"));
+        } catch (ParseException | IllegalArgumentException e) {
+            NectarServerApplication.getLogger().warn("Dropping unreadable operation " + doc.getObjectId("_id") + " from the mailbox of " + doc.getString("uuid"));
+            return null;
+        }
+    }
+
+    /**
+     * Write all buffered changes to the database.
+     * @throws com.mongodb.MongoException If the database could not be reached, the
+     *                                    changes are kept and written by the next flush.
+     */
+    public synchronized void flush() {
+        WriteModel<Document> write;
+        while((write = this.pending.poll()) != null) {
+            this.unwritten.add(write);
+        }
+
+        while(!this.unwritten.isEmpty()) {
+            try {
+                this.mailbox.bulkWrite(this.unwritten, new BulkWriteOptions().ordered(true));
+                this.unwritten.clear();
+            } catch(MongoBulkWriteException e) {
+                if(e.getWriteErrors().isEmpty())
+                    throw e; // Write concern error, nothing is known to be written
+
+                // The batch is ordered, so everything before the failed write went through
+                BulkWriteError error = e.getWriteErrors().get(0);
+                if(error.getCode() != DUPLICATE_KEY) {
+                    // Would fail again on every retry
+                    NectarServerApplication.getLogger().error("Dropping operation mailbox write: " + error.getMessage());
+                } // Otherwise an insert retried after it had already been written
+
+                this.unwritten.subList(0, error.getIndex() + 1).clear();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch(Exception e) {
+            NectarServerApplication.getLogger().error("Failed to write operation mailboxes: " + e.getMessage());
+        }
+    }
+}
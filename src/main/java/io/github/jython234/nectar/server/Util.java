@@ -28,10 +28,12 @@
  */
 package io.github.jython234.nectar.server;
 
+import io.github.jython234.nectar.server.fts.FileHasher;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.MalformedJwtException;
 import io.jsonwebtoken.SignatureException;
 import org.apache.catalina.realm.MessageDigestCredentialHandler;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -165,10 +167,7 @@ public class Util {
     }
 
     public static String absoluteFTSToRelativeStore(String absolutePath) {
-        String absFts = NectarServerApplication.getConfiguration().getFtsDirectory();
-        return absolutePath.replaceAll(absFts, "")
-                .replaceAll(File.separator + "publicStore" + File.separator, "")
-                .replaceAll(File.separator + "usrStore" + File.separator, "");
+        return NectarServerApplication.getVolumeManager().relativeToStore(new File(absolutePath));
     }
 
     /**
@@ -189,7 +188,25 @@ public class Util {
         return DigestUtils.sha512Hex(plaintext);
     }
 
+    /**
+     * Compute the SHA-256 checksum of a file.
+     * @param file The file to hash.
+     * @return The checksum, as a lowercase hex string.
+     * @throws IOException If there is an I/O error.
+     */
     public static String computeFileSHA256Checksum(File file) throws IOException {
+        return FileHasher.sha256(file);
+    }
+
+    /**
+     * Copy a stream to a file, computing the SHA-256 checksum
+     * of the data while it is written.
+     * @param in The stream to copy, it is not closed.
+     * @param file The file to write to.
+     * @return The checksum, in the same format as {@link #computeFileSHA256Checksum(File)}.
+     * @throws IOException If there is an I/O error.
+     */
+    public static String copyWithSHA256Checksum(InputStream in, File file) throws IOException {
         MessageDigest digest;
         try {
             digest = MessageDigest.getInstance("SHA-256");
@@ -197,27 +214,16 @@ public class Util {
             throw new RuntimeException(e);
         }
 
-        FileInputStream in = new FileInputStream(file);
-
-        byte[] bytes = new byte[1024];
-        int bytesCount;
+        try(OutputStream out = new FileOutputStream(file)) {
+            byte[] bytes = new byte[64 * 1024];
+            int bytesCount;
 
-        while((bytesCount = in.read(bytes)) != -1) {
-            digest.update(bytes, 0, bytesCount);
-        }
-
-        in.close();
-
-        byte[] checksumBytes = digest.digest();
-
-        // Convert bytes to hex string
-
-        StringBuilder sb = new StringBuilder();
-        for(byte b : checksumBytes) {
-            //sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
-            sb.append(String.format("%02X", b));
+            while((bytesCount = in.read(bytes)) != -1) {
+                digest.update(bytes, 0, bytesCount);
+                out.write(bytes, 0, bytesCount);
+            }
         }
 
-        return sb.toString().toLowerCase();
+        return Hex.encodeHexString(digest.digest());
     }
 }
@@ -126,6 +126,7 @@ public class AuthController {
                     clients.updateOne(Filters.eq("uuid", token.getUuid()),
                             new Document("$set", new Document("loggedInUser", username))
                     );
+                    NectarServerApplication.getClientIndex().setUser(token.getUuid(), username);
                     NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "User \"" + username + "\" logged in from " + token.getUuid() + ", traced from " + request.getRemoteAddr());
                 } else {
                     NectarServerApplication.getLogger().warn("ATTEMPTED LOGIN TO USER \"" + username + "\": incorrect password from " + token.getUuid() +", address: " + request.getRemoteAddr());
@@ -176,6 +177,7 @@ public class AuthController {
             clients.updateOne(Filters.eq("uuid", token.getUuid()),
                     new Document("$set", new Document("loggedInUser", "none"))
             );
+            NectarServerApplication.getClientIndex().setUser(token.getUuid(), null);
             NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "User \"" + loggedInUser + "\" logged out from " + token.getUuid() + ", traced from " + request.getRemoteAddr());
         } else {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
@@ -239,9 +241,7 @@ public class AuthController {
 
             // Create new FTS store
 
-            File storeLocation = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator
-                    + "usrStore" + File.separator + username
-            );
+            File storeLocation = NectarServerApplication.getVolumeManager().getStoreDir(false, username);
             if(!storeLocation.mkdir()) {
                 NectarServerApplication.getLogger().warn("Failed to create FTS store for new user \"" + username + "\" (mkdir failed)!");
             }
@@ -283,9 +283,7 @@ public class AuthController {
 
             // Remove the user's FTS store
 
-            File storeLocation = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator
-                    + "usrStore" + File.separator + username
-            );
+            File storeLocation = NectarServerApplication.getVolumeManager().getStoreDir(false, username);
 
             try {
                 FileUtils.deleteDirectory(storeLocation);
@@ -332,6 +330,8 @@ public class AuthController {
             }
 
             clients.deleteOne(Filters.eq("uuid", uuid)); // Delete client from the MongoDB database
+            NectarServerApplication.getClientIndex().remove(uuid);
+            NectarServerApplication.getOperationMailbox().clear(uuid);
 
             NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.NOTICE, "Deleted client " + uuid + ", traced from " + request.getRemoteAddr());
         } else {
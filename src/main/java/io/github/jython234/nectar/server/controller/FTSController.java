@@ -28,21 +28,51 @@
  */
 package io.github.jython234.nectar.server.controller;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import io.github.jython234.nectar.server.EventLog;
+import io.github.jython234.nectar.server.IdempotencyCache;
 import io.github.jython234.nectar.server.NectarServerApplication;
 import io.github.jython234.nectar.server.Util;
-import io.github.jython234.nectar.server.struct.IndexJSON;
+import io.github.jython234.nectar.server.fts.BlockSignatureStore;
+import io.github.jython234.nectar.server.fts.ChunkStore;
+import io.github.jython234.nectar.server.fts.CompressedVariantStore;
+import io.github.jython234.nectar.server.fts.DeltaCache;
+import io.github.jython234.nectar.server.fts.FileHasher;
+import io.github.jython234.nectar.server.fts.FileCommitter;
+import io.github.jython234.nectar.server.fts.DeltaJob;
+import io.github.jython234.nectar.server.fts.IndexResponseCache;
+import io.github.jython234.nectar.server.fts.MerkleTree;
+import io.github.jython234.nectar.server.fts.SpaceLedger;
+import io.github.jython234.nectar.server.fts.TransferScheduler;
+import io.github.jython234.nectar.server.fts.VolumeManager;
+import io.github.jython234.nectar.server.fts.TarStreamWriter;
+import io.github.jython234.nectar.server.fts.delta.VCDiffDecoder;
+import io.github.jython234.nectar.server.struct.ManagementSessionToken;
 import io.github.jython234.nectar.server.struct.SessionToken;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -52,14 +82,31 @@ import org.springframework.web.multipart.MultipartFile;
 import javax.print.Doc;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Base64;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.Consumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Controller to handle FTS methods.
@@ -68,84 +115,114 @@ import java.util.function.Consumer;
  */
 @RestController
 public class FTSController {
+    /**
+     * Subtracted from the X-Index-Time given to clients. updatedAt is stamped before
+     * the index write lands, so a write stamped just before a listing may only become
+     * visible after it; the next "since" listing repeats this window instead of skipping it.
+     */
+    private static final long INDEX_TIME_OVERLAP = 60000;
+    private static final Pattern CHECKSUM_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final int MAX_HAVE_BATCH = 1000;
+    private static final int BATCH_UPLOAD_WORKERS = 4;
 
     public static void buildChecksumIndex() {
-        File publicDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "publicStore");
-        File usrDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "usrStore");
-
         MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        index.createIndex(Indexes.ascending("path"));
+        index.createIndex(Indexes.ascending("checksum"));
+        index.createIndex(Indexes.ascending("isPublic", "owner", "storePath"));
+        index.createIndex(Indexes.ascending("isPublic", "owner", "updatedAt"));
+
+        // Entries created before owners were stored
+        for(Document doc : index.find(Filters.and(Filters.eq("isPublic", false), Filters.exists("owner", false)))
+                .projection(Projections.include("path", "storePath"))) {
+            index.updateOne(Filters.eq("path", doc.getString("path")), Updates.set("owner", getStoreOwner(doc.getString("storePath"))));
+        }
 
-        try {
-            buildChecksumDir(publicDir, true, index);
-            buildChecksumDir(usrDir, false, index);
-        } catch (IOException e) {
-            e.printStackTrace();
-            NectarServerApplication.getLogger().error("FAILED TO COMPUTE FTS CHECKSUMS!");
-            System.exit(1);
+        // Each volume is hashed by its own I/O threads, so the disks are read in parallel
+        List<Document> toInsert = new CopyOnWriteArrayList<>();
+        List<Future<?>> tasks = new ArrayList<>();
+        for(VolumeManager.Volume volume : NectarServerApplication.getVolumeManager().getVolumes()) {
+            if(volume == NectarServerApplication.getVolumeManager().getPrimary())
+                buildChecksumDir(volume.getPublicStore(), true, index, volume, toInsert, tasks);
+            buildChecksumDir(volume.getUsrStore(), false, index, volume, toInsert, tasks);
         }
 
         // Wait for all the worker threads to finish
-        while(NectarServerApplication.getThreadPoolTaskExecutor().getActiveCount() != 0) {
+        for(Future<?> task : tasks) {
             try {
-                Thread.sleep(100);
+                task.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                NectarServerApplication.getLogger().error("FAILED TO COMPUTE FTS CHECKSUMS!");
+                System.exit(1);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
+
+        if(!toInsert.isEmpty()) {
+            index.insertMany(toInsert);
+        }
+
+        NectarServerApplication.getIndexResponseCache().invalidateAll();
     }
 
     // TODO: Clean database of entries of deleted files (only because they could be deleted while the server is offline)
-    private static void buildChecksumDir(File dir, boolean isPublic, MongoCollection<Document> index) throws IOException {
+    private static void buildChecksumDir(File dir, boolean isPublic, MongoCollection<Document> index, VolumeManager.Volume volume,
+                                         List<Document> toInsert, List<Future<?>> tasks) {
         File[] contents = dir.listFiles();
         if(contents == null) return;
 
-        List<Document> toInsert = new CopyOnWriteArrayList<>();
-
         for(File file : contents) {
             if(file.isDirectory()) {
                 // Recursion: build for all in that directory
-                buildChecksumDir(file, isPublic, index);
+                buildChecksumDir(file, isPublic, index, volume, toInsert, tasks);
+            } else if(file.getName().endsWith(".upload.tmp") || file.getName().endsWith(".delta.tmp")) {
+                // Left in the store by a crash of an older version, which staged uploads next to their destination
+                if(!file.delete())
+                    NectarServerApplication.getLogger().warn("Failed to delete leftover temporary file " + file);
             } else {
-                NectarServerApplication.getThreadPoolTaskExecutor().submit(() -> {
+                tasks.add(volume.getIoPool().submit(() -> {
                     try {
                         buildChecksumFile(file, index, toInsert, isPublic);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-                });
+                }));
             }
         }
-
-        if(!toInsert.isEmpty()) {
-            index.insertMany(toInsert);
-        }
     }
 
     private static void buildChecksumFile(File file, MongoCollection<Document> index, List<Document> toInsert, boolean isPublic) throws IOException {
+        Document fileDoc = index.find(Filters.eq("path", file.getAbsolutePath())).first();
+
+        String fingerprint = null;
+        if(NectarServerApplication.getConfiguration().isFastHash()) {
+            fingerprint = FileHasher.fingerprint(file);
+            if(fileDoc != null && fingerprint.equals(fileDoc.getString("fingerprint"))
+                    && fileDoc.get("size") != null && ((Number) fileDoc.get("size")).longValue() == file.length()) {
+                return; // Same contents as when the checksum was computed, no need to hash it again
+            }
+        }
+
         // Is a file, build the checksum then
         String checksum = Util.computeFileSHA256Checksum(file);
-        Document fileDoc = index.find(Filters.eq("path", file.getAbsolutePath())).first();
         if(fileDoc == null) {
-            toInsert.add(new Document()
-                    .append("path", file.getAbsolutePath())
-                    .append("storePath", Util.absoluteFTSToRelativeStore(file.getAbsolutePath()))
-                    .append("isPublic", isPublic)
-                    .append("checksum", checksum)
-                    .append("lastUpdatedBy", "server"));
+            toInsert.add(newIndexDocument(file, isPublic, checksum, file.length(), "server").append("fingerprint", fingerprint));
         } else {
             String dbChecksum = fileDoc.getString("checksum");
             if(!checksum.equals(dbChecksum)) {
                 // Checksum has changed, we assume the file has been changed by the server
                 // This is because if a client changes it, the database will be updated
                 index.updateOne(Filters.eq("path", file.getAbsolutePath()),
-                        new Document("$set", new Document("checksum", checksum))
-                ); // Update the checksum into the database
-
-                index.updateOne(Filters.eq("path", file.getAbsolutePath()),
-                        new Document("$set", new Document("lastUpdatedBy", "server"))
-                ); // Change lastUpdatedBy to "server"
+                        indexUpdate(checksum, file.length(), "server")
+                ); // Update the checksum into the database, and change lastUpdatedBy to "server"
+                if(fingerprint != null)
+                    index.updateOne(Filters.eq("path", file.getAbsolutePath()), Updates.set("fingerprint", fingerprint));
+            } else if(fingerprint != null) {
+                // Checksum has not changed, all is well. Remember the fingerprint so it is not hashed again next time
+                index.updateOne(Filters.eq("path", file.getAbsolutePath()), Updates.set("fingerprint", fingerprint));
             }
-            // else: Checksum has not changed, all is well
         }
     }
 
@@ -186,10 +263,6 @@ public class FTSController {
 
             // Process Upload ---------------------------------------------------------------------------------------------------------
 
-            if(!checkSpace(file.getSize())) {
-                return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("FTS directory free space low.");
-            }
-
             ResponseEntity res;
             if(isPublic) {
                 // Need to be admin to upload to public store
@@ -202,11 +275,13 @@ public class FTSController {
                     return ResponseEntity.status(HttpStatus.FORBIDDEN).body("User with admin privilege must be logged in on this client.");
                 }
 
-                res = doUpload("publicStore", loggedInUser, name, path, true, file);
+                res = NectarServerApplication.getIdempotencyCache().execute("upload", token.getUuid(), request.getHeader(IdempotencyCache.HEADER), () -> uploadFingerprint(path, name, isPublic, file),
+                        () -> doUpload(token.getUuid(), loggedInUser, name, path, true, file));
                 if(res != null)
                     return res;
             } else {
-                res = doUpload("usrStore" + File.separator + loggedInUser, loggedInUser, name, path, false, file);
+                res = NectarServerApplication.getIdempotencyCache().execute("upload", token.getUuid(), request.getHeader(IdempotencyCache.HEADER), () -> uploadFingerprint(path, name, isPublic, file),
+                        () -> doUpload(token.getUuid(), loggedInUser, name, path, false, file));
                 if(res != null)
                     return res;
             }
@@ -217,6 +292,235 @@ public class FTSController {
         return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
     }
 
+    @SuppressWarnings("unchecked")
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/uploadBatch", method = RequestMethod.POST)
+    public ResponseEntity uploadBatch(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "files") MultipartFile[] files, HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            MongoCollection<Document> users = NectarServerApplication.getDb().getCollection("users");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            // Check if the user is logged in ----------------------------------------------------------------------------------------
+
+            if(doc == null)
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to find entry in database for client.");
+
+            String loggedInUser;
+            try {
+                // getString will throw an exception if the key is not present in the document
+                loggedInUser = doc.getString("loggedInUser");
+                if (loggedInUser.equals("none")) {
+                    // No user is logged in
+                    throw new RuntimeException(); // Move to catch block
+                }
+            } catch(Exception e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Must be logged in to use FTS.");
+            }
+
+            // Process Upload ---------------------------------------------------------------------------------------------------------
+
+            if(isPublic) {
+                // Need to be admin to upload to public store
+                try {
+                    ResponseEntity re = AuthController.checkUserAdmin(token, users, doc);
+                    // Throws if user is not admin
+                    if(re != null)
+                        return re;
+                } catch(Exception e) {
+                    return ResponseEntity.status(HttpStatus.FORBIDDEN).body("User with admin privilege must be logged in on this client.");
+                }
+            }
+
+            long totalSize = 0;
+            for(MultipartFile file : files) {
+                totalSize += file.getSize();
+            }
+
+            try(SpaceLedger.Reservation reservation = reserveSpace(isPublic, loggedInUser, totalSize);
+                TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), loggedInUser, isPublic)) {
+                if(reservation == null)
+                    return spaceError(isPublic, loggedInUser, totalSize);
+                if(transfer == null)
+                    return transfersBusy();
+
+                return ResponseEntity.ok(doUploadBatch(loggedInUser, isPublic, files).toJSONString());
+            }
+        } else {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+    }
+
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/have", method = RequestMethod.POST)
+    public ResponseEntity have(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "path") String path
+            , @RequestParam(value = "name") String name, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "size") long size, @RequestParam(value = "checksum") String checksum, HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            MongoCollection<Document> users = NectarServerApplication.getDb().getCollection("users");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            // Check if the user is logged in ----------------------------------------------------------------------------------------
+
+            if(doc == null)
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to find entry in database for client.");
+
+            String loggedInUser;
+            try {
+                // getString will throw an exception if the key is not present in the document
+                loggedInUser = doc.getString("loggedInUser");
+                if (loggedInUser.equals("none")) {
+                    // No user is logged in
+                    throw new RuntimeException(); // Move to catch block
+                }
+            } catch(Exception e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Must be logged in to use FTS.");
+            }
+
+            if(isPublic) {
+                // Need to be admin to upload to public store
+                try {
+                    ResponseEntity re = AuthController.checkUserAdmin(token, users, doc);
+                    // Throws if user is not admin
+                    if(re != null)
+                        return re;
+                } catch(Exception e) {
+                    return ResponseEntity.status(HttpStatus.FORBIDDEN).body("User with admin privilege must be logged in on this client.");
+                }
+            }
+
+            // Look for the content --------------------------------------------------------------------------------------------------
+
+            try(SpaceLedger.Reservation reservation = reserveSpace(isPublic, loggedInUser, size)) {
+                if(reservation == null)
+                    return spaceError(isPublic, loggedInUser, size);
+
+                if(!doHave(loggedInUser, name, path, isPublic, size, checksum))
+                    return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Content not on server, upload required.");
+            } catch (IOException e) {
+                e.printStackTrace();
+                NectarServerApplication.getLogger().error("IOException while processing FTS have \"" + path + "\""
+                        + " from user \"" + loggedInUser + "\""
+                );
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while storing file.");
+            }
+        } else {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
+    }
+
+    @SuppressWarnings("unchecked")
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/haveBatch", method = RequestMethod.POST)
+    public ResponseEntity haveBatch(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "files") String filesRaw, HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            MongoCollection<Document> users = NectarServerApplication.getDb().getCollection("users");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            // Check if the user is logged in ----------------------------------------------------------------------------------------
+
+            if(doc == null)
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to find entry in database for client.");
+
+            String loggedInUser;
+            try {
+                // getString will throw an exception if the key is not present in the document
+                loggedInUser = doc.getString("loggedInUser");
+                if (loggedInUser.equals("none")) {
+                    // No user is logged in
+                    throw new RuntimeException(); // Move to catch block
+                }
+            } catch(Exception e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Must be logged in to use FTS.");
+            }
+
+            if(isPublic) {
+                // Need to be admin to upload to public store
+                try {
+                    ResponseEntity re = AuthController.checkUserAdmin(token, users, doc);
+                    // Throws if user is not admin
+                    if(re != null)
+                        return re;
+                } catch(Exception e) {
+                    return ResponseEntity.status(HttpStatus.FORBIDDEN).body("User with admin privilege must be logged in on this client.");
+                }
+            }
+
+            JSONArray files;
+            try {
+                files = (JSONArray) new JSONParser().parse(new String(Base64.getUrlDecoder().decode(filesRaw)));
+            } catch (ParseException | ClassCastException e) {
+                NectarServerApplication.getLogger().warn("Failed to parse haveBatch JSON from " + request.getRemoteAddr());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Failed to parse files JSON.");
+            }
+
+            if(files.size() > MAX_HAVE_BATCH)
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Too many files in one batch (max " + MAX_HAVE_BATCH + ").");
+
+            // Check every entry first, like the parameters of the single have request, so nothing is done for a bad batch
+            for(int i = 0; i < files.size(); i++) {
+                if(!isValidHaveEntry(files.get(i)))
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid entry " + i + " in files JSON, needs name, path, checksum and size.");
+            }
+
+            // Look for the content of each file, the result array is in the same order as the request ------------------------------
+
+            JSONArray results = new JSONArray();
+            for(Object o : files) {
+                JSONObject file = (JSONObject) o;
+                long size = ((Number) file.get("size")).longValue();
+
+                boolean have = false;
+                try(SpaceLedger.Reservation reservation = reserveSpace(isPublic, loggedInUser, size)) {
+                    if(reservation != null) {
+                        have = doHave(loggedInUser, (String) file.get("name"), (String) file.get("path"), isPublic, size, (String) file.get("checksum"));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    NectarServerApplication.getLogger().warn("IOException while processing FTS have \"" + file.get("path") + "\""
+                            + " from user \"" + loggedInUser + "\", client will upload it."
+                    );
+                }
+
+                results.add(have);
+            }
+
+            return ResponseEntity.ok(results.toJSONString());
+        } else {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+    }
+
     @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/uploadDelta", method = RequestMethod.POST)
     public ResponseEntity uploadDelta(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "path") String path
             , @RequestParam(value = "name") String name, @RequestParam(value = "public") boolean isPublic
@@ -254,10 +558,6 @@ public class FTSController {
 
             // Process Upload ---------------------------------------------------------------------------------------------------------
 
-            if(!checkSpace(file.getSize())) {
-                return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("FTS directory free space low.");
-            }
-
             ResponseEntity res;
             if(isPublic) {
                 // Need to be admin to upload to public store
@@ -270,11 +570,13 @@ public class FTSController {
                     return ResponseEntity.status(HttpStatus.FORBIDDEN).body("User with admin privilege must be logged in on this client.");
                 }
 
-                res = doUploadDelta("publicStore", loggedInUser, name, path, true, file);
+                res = NectarServerApplication.getIdempotencyCache().execute("uploadDelta", token.getUuid(), request.getHeader(IdempotencyCache.HEADER), () -> uploadFingerprint(path, name, isPublic, file),
+                        () -> doUploadDelta(token.getUuid(), loggedInUser, name, path, true, file));
                 if(res != null)
                     return res;
             } else {
-                res = doUploadDelta("usrStore" + File.separator + loggedInUser, loggedInUser, name, path, false, file);
+                res = NectarServerApplication.getIdempotencyCache().execute("uploadDelta", token.getUuid(), request.getHeader(IdempotencyCache.HEADER), () -> uploadFingerprint(path, name, isPublic, file),
+                        () -> doUploadDelta(token.getUuid(), loggedInUser, name, path, false, file));
                 if(res != null)
                     return res;
             }
@@ -285,6 +587,48 @@ public class FTSController {
         return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
     }
 
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/deltaStatus")
+    public ResponseEntity deltaStatus(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "id") String id,
+                                      HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            if(doc == null)
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to find entry in database for client.");
+
+            String loggedInUser;
+            try {
+                // getString will throw an exception if the key is not present in the document
+                loggedInUser = doc.getString("loggedInUser");
+                if (loggedInUser.equals("none")) {
+                    // No user is logged in
+                    throw new RuntimeException(); // Move to catch block
+                }
+            } catch(Exception e) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Must be logged in to use FTS.");
+            }
+
+            DeltaJob job = NectarServerApplication.getDeltaJobQueue().getJob(id);
+            // Users can only see their own jobs
+            if(job == null || !job.getUser().equals(loggedInUser))
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Delta job not found (it may have expired).");
+
+            return ResponseEntity.ok(job.toJSON().toJSONString());
+        } else {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+    }
+
     @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/download")
     public void download(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
                                     , @RequestParam(value = "path") String pathB64, HttpServletRequest request, HttpServletResponse response) {
@@ -314,19 +658,23 @@ public class FTSController {
 
             if(isPublic) {
                 // You don't need to be logged in to access the public store
-                File ftsPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "publicStore"
-                        + File.separator + path);
+                File ftsPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(true, null) + File.separator + path);
 
-                if(!ftsPath.exists()) {
+                if(!ftsPath.exists() && !isDeduplicated(ftsPath)) {
                     response.setStatus(HttpStatus.NOT_FOUND.value());
                     return;
                 } else if(ftsPath.isDirectory()) {
                     response.setStatus(HttpStatus.BAD_REQUEST.value());
                     return;
-                } else {
-                    doDownload(ftsPath, response);
-                    return;
                 }
+
+                try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), null, true)) {
+                    if(transfer == null)
+                        transfersBusy(response);
+                    else if(!doDownloadCompressed(ftsPath, transfer, request, response))
+                        doDownloadPublic(ftsPath, transfer, response);
+                }
+                return;
             }
 
             // Client is accessing user store, check for logged in then.
@@ -347,24 +695,33 @@ public class FTSController {
             // User is logged in, now process the download.
             // A user can't access another's data store because the path is specifically tied to the logged in name
 
-            File ftsPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "usrStore"
-                    + File.separator + loggedInUser + File.separator + path);
+            File ftsPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(false, loggedInUser) + File.separator + path);
 
-            if(!ftsPath.exists()) {
+            if(!ftsPath.exists() && !isDeduplicated(ftsPath)) {
                 response.setStatus(HttpStatus.NOT_FOUND.value());
             } else if(ftsPath.isDirectory()) {
                 response.setStatus(HttpStatus.BAD_REQUEST.value());
             } else {
-                doDownload(ftsPath, response);
+                try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), loggedInUser, false)) {
+                    if(transfer == null)
+                        transfersBusy(response);
+                    else if(!doDownloadCompressed(ftsPath, transfer, request, response))
+                        doDownload(ftsPath, transfer, response);
+                }
             }
         } else {
             response.setStatus(HttpStatus.FORBIDDEN.value());
         }
     }
 
-    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/downloadDelta")
-    public void downloadDelta(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
-            , @RequestParam(value = "path") String pathB64, HttpServletRequest request, HttpServletResponse response) {
+    @SuppressWarnings("unchecked")
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/archive")
+    public void archive(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+                        , @RequestParam(value = "dir", defaultValue = "") String dirB64
+                        , @RequestParam(value = "paths", required = false) String pathsB64
+                        , @RequestParam(value = "compress", defaultValue = "false") boolean compress
+                        , HttpServletRequest request, HttpServletResponse response) {
+
         ResponseEntity r = Util.verifyJWT(jwtRaw, request);
         if (r != null) {
             response.setStatus(HttpStatus.BAD_REQUEST.value());
@@ -378,34 +735,183 @@ public class FTSController {
             return;
         }
 
-        String path = new String(Base64.getUrlDecoder().decode(pathB64));
+        if(!SessionController.getInstance().checkToken(token)) {
+            response.setStatus(HttpStatus.FORBIDDEN.value());
+            return;
+        }
 
-        if(SessionController.getInstance().checkToken(token)) {
+        String owner = null;
+        if(!isPublic) {
             MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
             Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
 
-            // Check if the user is logged in ----------------------------------------------------------------------------------------
-
-            if(doc == null)
+            try {
+                // getString will throw an exception if the key is not present in the document
+                owner = doc.getString("loggedInUser");
+                if (owner.equals("none")) {
+                    // No user is logged in
+                    throw new RuntimeException(); // Move to catch block
+                }
+            } catch(Exception e) {
+                response.setStatus(HttpStatus.FORBIDDEN.value());
+                return;
+            }
+        }
+
+        // Find the files to send, their paths in the archive are relative to the store ----------------------------------------------
+
+        String storePrefix = isPublic ? "" : owner + File.separator;
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        Bson filter = Filters.and(Filters.eq("isPublic", isPublic), Filters.eq("owner", owner));
+
+        if(pathsB64 != null) {
+            JSONArray paths;
+            try {
+                paths = (JSONArray) new JSONParser().parse(new String(Base64.getUrlDecoder().decode(pathsB64)));
+            } catch (ParseException | ClassCastException e) {
+                response.setStatus(HttpStatus.BAD_REQUEST.value());
+                return;
+            }
+
+            List<String> storePaths = new ArrayList<>();
+            for(Object path : paths) {
+                String normalized = normalizeStorePath((String) path);
+                if(normalized == null) {
+                    response.setStatus(HttpStatus.BAD_REQUEST.value());
+                    return;
+                }
+                storePaths.add(storePrefix + normalized);
+            }
+
+            filter = Filters.and(filter, Filters.in("storePath", storePaths));
+        } else {
+            String dir = normalizeStorePath(new String(Base64.getUrlDecoder().decode(dirB64)));
+            if(dir == null) {
+                response.setStatus(HttpStatus.BAD_REQUEST.value());
+                return;
+            }
+
+            if(!dir.isEmpty()) {
+                // Anchored prefix match, served by the (isPublic, owner, storePath) index
+                filter = Filters.and(filter, Filters.regex("storePath", "^" + escapeRegex(storePrefix + dir + File.separator)));
+            }
+        }
+
+        // Stream the archive ------------------------------------------------------------------------------------------------------
+
+        try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), owner, isPublic)) {
+            if(transfer == null) {
+                transfersBusy(response);
+                return;
+            }
+
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(compress ? "application/gzip" : "application/x-tar");
+            streamArchive(index.find(filter), storePrefix, compress, transfer, response);
+        }
+    }
+
+    private static void streamArchive(FindIterable<Document> files, String storePrefix, boolean compress,
+                                      TransferScheduler.Transfer transfer, HttpServletResponse response) {
+
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        try(MongoCursor<Document> cursor = files
+                .projection(Projections.include("path", "storePath", "updatedAt"))
+                .sort(Sorts.ascending("storePath"))
+                .batchSize(1000)
+                .iterator()) {
+
+            OutputStream throttled = transfer.wrap(response.getOutputStream());
+            OutputStream out = compress ? new GZIPOutputStream(throttled, 64 * 1024) : throttled;
+            TarStreamWriter tar = new TarStreamWriter(out);
+
+            while(cursor.hasNext()) {
+                Document doc = cursor.next();
+                File file = new File(doc.getString("path"));
+                String name = doc.getString("storePath").substring(storePrefix.length()).replace(File.separatorChar, '/');
+
+                // Open first, the size is then taken from the version being sent even if the file is replaced meanwhile
+                FileInputStream flat;
+                try {
+                    flat = new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    flat = null;
+                }
+
+                if(flat != null) {
+                    try(FileInputStream in = flat) {
+                        tar.writeFile(name, in.getChannel().size(), file.lastModified(), in);
+                    }
+                } else if(chunkStore != null) {
+                    long size = chunkStore.getSize(file);
+                    InputStream in = chunkStore.open(file);
+                    if(size < 0 || in == null)
+                        continue; // Deleted meanwhile
+
+                    Long updatedAt = doc.getLong("updatedAt");
+                    try(InputStream chunkStream = in) {
+                        tar.writeFile(name, size, updatedAt == null ? System.currentTimeMillis() : updatedAt, chunkStream);
+                    }
+                }
+            }
+
+            tar.finish();
+            if(compress)
+                ((GZIPOutputStream) out).finish();
+        } catch (IOException e) {
+            // The status has already been sent, the client will see a truncated archive
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while streaming FTS archive");
+        }
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/downloadDelta")
+    public void downloadDelta(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "path") String pathB64, @RequestParam(value = "checksum", required = false) String checksum
+            , HttpServletRequest request, HttpServletResponse response) {
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if (r != null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if (token == null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            // INVALID TOKENTYPE
+            return;
+        }
+
+        if(checksum != null && !CHECKSUM_PATTERN.matcher(checksum).matches()) {
+            // The checksum becomes part of the delta cache path
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        String path = new String(Base64.getUrlDecoder().decode(pathB64));
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            // Check if the user is logged in ----------------------------------------------------------------------------------------
+
+            if(doc == null)
                 response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
 
             if(isPublic) {
                 // You don't need to be logged in to access the public store
-                File ftsPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "publicDeltaCache"
-                        + File.separator + path + ".xdiff");
+                File ftsPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(true, null) + File.separator + path);
+                File deltaPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "publicDeltaCache"
+                        + File.separator + path);
 
-                if(!ftsPath.exists()) {
-                    // No delta found, redirect to download whole file
-                    response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
-                    response.setHeader("Location", NectarServerApplication.ROOT_PATH + "/fts/download?token=" + jwtRaw + "&public=" + Boolean.toString(isPublic) + "&path=" + path);
-                    return;
-                } else if(ftsPath.isDirectory()) {
-                    response.setStatus(HttpStatus.BAD_REQUEST.value());
-                    return;
-                } else {
-                    doDownload(ftsPath, response);
-                    return;
+                try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), null, true)) {
+                    if(transfer == null)
+                        transfersBusy(response);
+                    else
+                        doDownloadDelta(ftsPath, deltaPath, checksum, jwtRaw, isPublic, pathB64, transfer, response);
                 }
+                return;
             }
 
             // Client is accessing user store, check for logged in then.
@@ -426,27 +932,24 @@ public class FTSController {
             // User is logged in, now process the download.
             // A user can't access another's data store because the path is specifically tied to the logged in name
 
-            File ftsPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "usrDeltaCache"
-                    + File.separator + loggedInUser + File.separator + path + ".xdiff");
+            File ftsPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(false, loggedInUser) + File.separator + path);
+            File deltaPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "usrDeltaCache"
+                    + File.separator + loggedInUser + File.separator + path);
 
-            if(!ftsPath.exists()) {
-                // No delta found, redirect to download whole file
-                response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
-                response.setHeader("Location", NectarServerApplication.ROOT_PATH + "/fts/download?token=" + jwtRaw + "&public=" + Boolean.toString(isPublic) + "&path=" + path);
-            } else if(ftsPath.isDirectory()) {
-                response.setStatus(HttpStatus.BAD_REQUEST.value());
-            } else {
-                doDownload(ftsPath, response);
+            try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), loggedInUser, false)) {
+                if(transfer == null)
+                    transfersBusy(response);
+                else
+                    doDownloadDelta(ftsPath, deltaPath, checksum, jwtRaw, isPublic, pathB64, transfer, response);
             }
         } else {
             response.setStatus(HttpStatus.FORBIDDEN.value());
         }
     }
 
-    @SuppressWarnings("unchecked")
-    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/checksumIndex")
-    public ResponseEntity checksumIndex(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic,
-                                                HttpServletRequest request) {
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/blockSignatures")
+    public ResponseEntity blockSignatures(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "path") String pathB64, HttpServletRequest request) {
 
         ResponseEntity r = Util.verifyJWT(jwtRaw, request);
         if(r != null)
@@ -456,15 +959,221 @@ public class FTSController {
         if(token == null)
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
 
-        if(SessionController.getInstance().checkToken(token)) {
+        if(!SessionController.getInstance().checkToken(token))
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+
+        File ftsPath = resolveStoreFile(token, isPublic, new String(Base64.getUrlDecoder().decode(pathB64)));
+        if(ftsPath == null)
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("A user needs to be logged in!");
+
+        File contents;
+        try {
+            contents = flatContents(ftsPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while rebuilding \"" + ftsPath + "\" from the chunk store");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while reading file.");
+        }
+        if(contents == null || !contents.isFile())
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found.");
+
+        try {
             MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
-            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
-            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+            Document fileDoc = index.find(Filters.eq("path", ftsPath.getAbsolutePath())).first();
+            if(fileDoc == null)
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found in index.");
+
+            return ResponseEntity.ok(NectarServerApplication.getBlockSignatureStore()
+                    .getSignatures(ftsPath, contents, fileDoc.getString("checksum")).toJSONString());
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while computing block signatures for \"" + ftsPath + "\"");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while computing signatures.");
+        } finally {
+            releaseFlatContents(ftsPath, contents);
+        }
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/downloadBlocks")
+    public void downloadBlocks(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+            , @RequestParam(value = "path") String pathB64, @RequestParam(value = "checksum") String checksum
+            , @RequestParam(value = "blocks") String blocks, HttpServletRequest request, HttpServletResponse response) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if (r != null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if (token == null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            // INVALID TOKENTYPE
+            return;
+        }
+
+        if(!SessionController.getInstance().checkToken(token)) {
+            response.setStatus(HttpStatus.FORBIDDEN.value());
+            return;
+        }
+
+        File ftsPath = resolveStoreFile(token, isPublic, new String(Base64.getUrlDecoder().decode(pathB64)));
+        if(ftsPath == null) {
+            response.setStatus(HttpStatus.FORBIDDEN.value());
+            return;
+        }
+
+        File contents;
+        try {
+            contents = flatContents(ftsPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while rebuilding \"" + ftsPath + "\" from the chunk store");
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            return;
+        }
+        if(contents == null || !contents.isFile()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        try {
+            doDownloadBlocks(ftsPath, contents, isPublic, checksum, blocks, token, request, response);
+        } finally {
+            releaseFlatContents(ftsPath, contents);
+        }
+    }
+
+    private void doDownloadBlocks(File ftsPath, File contents, boolean isPublic, String checksum, String blocks, SessionToken token,
+                                  HttpServletRequest request, HttpServletResponse response) {
+        // The block numbers are only meaningful for the version the signatures were computed for
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        Document fileDoc = index.find(Filters.eq("path", ftsPath.getAbsolutePath())).first();
+        if(fileDoc == null || !checksum.equals(fileDoc.getString("checksum"))) {
+            response.setStatus(HttpStatus.PRECONDITION_FAILED.value());
+            return;
+        }
+
+        long size = contents.length();
+        int blockSize = BlockSignatureStore.blockSizeFor(size);
+
+        // Parse "0-3,7,9" into byte ranges
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for(String part : blocks.split(",")) {
+                String[] bounds = part.trim().split("-");
+                long first = Long.parseLong(bounds[0]);
+                long last = bounds.length > 1 ? Long.parseLong(bounds[1]) : first;
+
+                long start = first * blockSize;
+                long end = Math.min(size, (last + 1) * blockSize);
+                if(first < 0 || last < first || start >= size)
+                    throw new NumberFormatException("Block out of range: " + part);
+
+                ranges.add(new long[] { start, end });
+            }
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        // User store transfers are queued per user, like the other downloads
+        try(TransferScheduler.Transfer transfer = startTransfer(token.getUuid(), isPublic ? null : getLoggedInUser(token), isPublic)) {
+            if(transfer == null)
+                transfersBusy(response);
+            else
+                doDownloadRanges(contents, contents != ftsPath, ranges, transfer, request, response);
+        }
+    }
+
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/prestage", method = RequestMethod.POST)
+    public ResponseEntity prestage(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "path") String pathB64,
+                                   HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        // Load a public file into memory before a rollout, so the first wave of downloads doesn't hit the disk
+        File ftsPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(true, null)
+                + File.separator + new String(Base64.getUrlDecoder().decode(pathB64)));
+
+        if(!ftsPath.exists() && !isDeduplicated(ftsPath))
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found.");
+        else if(ftsPath.isDirectory())
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Can not pre-stage a directory.");
+
+        // Large files which don't fit in memory are at least spread over all volumes
+        if(ftsPath.isFile())
+            NectarServerApplication.getVolumeManager().replicate(ftsPath);
+
+        if(!NectarServerApplication.getHotObjectCache().prestage(ftsPath))
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("File is too large to be cached.");
+
+        NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Pre-staged public file \"" + ftsPath + "\", traced from " + request.getRemoteAddr());
+
+        return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
+    }
+
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/fts/setTransferLimits", method = RequestMethod.POST)
+    public ResponseEntity setTransferLimits(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "maxTransfers") int maxTransfers
+            , @RequestParam(value = "bandwidthLimit") long bandwidthLimit, @RequestParam(value = "clientBandwidthLimit") long clientBandwidthLimit
+            , HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
 
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        if(maxTransfers < 0 || bandwidthLimit < 0 || clientBandwidthLimit < 0)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Limits can not be negative.");
+
+        // Same units as the configuration: bandwidth in KB/s, 0 for no limit
+        NectarServerApplication.getTransferScheduler().setLimits(maxTransfers, bandwidthLimit * 1000, clientBandwidthLimit * 1000);
+
+        NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Changed FTS transfer limits to " + maxTransfers + " transfers, "
+                + bandwidthLimit + " KB/s total, " + clientBandwidthLimit + " KB/s per client, traced from " + request.getRemoteAddr());
+
+        return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/tree")
+    public ResponseEntity tree(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+                               , @RequestParam(value = "dir", defaultValue = "") String dirB64
+                               , @RequestParam(value = "hash", required = false) String hash, HttpServletRequest request) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(SessionController.getInstance().checkToken(token)) {
+            String store;
             if(isPublic) {
                 // Public store, no user needs to be logged in
-                return ResponseEntity.status(HttpStatus.OK).body(constructIndexJSON(index, true, null));
+                store = MerkleTree.storeKey(true, null);
             } else {
+                MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+                Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
                 // User's store, we need to check if they are logged in.
                 String loggedInUser;
                 try {
@@ -478,19 +1187,86 @@ public class FTSController {
                     return ResponseEntity.status(HttpStatus.FORBIDDEN).body("A user needs to be logged in!");
                 }
 
-                return ResponseEntity.status(HttpStatus.OK).body(constructIndexJSON(index, false, loggedInUser));
+                store = MerkleTree.storeKey(false, loggedInUser);
             }
+
+            String dir = new String(Base64.getUrlDecoder().decode(dirB64));
+            MerkleTree merkleTree = NectarServerApplication.getMerkleTree();
+
+            // The client already has this version of the directory, so nothing below it changed either
+            if(hash != null && hash.equals(merkleTree.getHash(store, dir)))
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+
+            JSONObject node = merkleTree.getNode(store, dir);
+            if(node == null)
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Directory not found.");
+
+            return ResponseEntity.ok(node.toJSONString());
         } else {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
         }
     }
 
-    private void doDownload(File ftsPath, HttpServletResponse response) {
-        try {
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/fts/checksumIndex")
+    public void checksumIndex(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "public") boolean isPublic
+                              , @RequestParam(value = "since", required = false) Long since
+                              , @RequestParam(value = "format", defaultValue = "json") String format
+                              , HttpServletRequest request, HttpServletResponse response) {
+
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if (r != null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        SessionToken token = SessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if (token == null) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            // INVALID TOKENTYPE
+            return;
+        }
+
+        if(!format.equals("json") && !format.equals("ndjson")) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        if(SessionController.getInstance().checkToken(token)) {
+            MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+            Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+
+            if(isPublic) {
+                // Public store, no user needs to be logged in
+                sendIndex(true, null, since, format, request, response);
+            } else {
+                // User's store, we need to check if they are logged in.
+                String loggedInUser;
+                try {
+                    // getString will throw an exception if the key is not present in the document
+                    loggedInUser = doc.getString("loggedInUser");
+                    if (loggedInUser.equals("none")) {
+                        // No user is logged in
+                        throw new RuntimeException(); // Move to catch block
+                    }
+                } catch(Exception e) {
+                    response.setStatus(HttpStatus.FORBIDDEN.value());
+                    return;
+                }
+
+                sendIndex(false, loggedInUser, since, format, request, response);
+            }
+        } else {
+            response.setStatus(HttpStatus.FORBIDDEN.value());
+        }
+    }
+
+    private void doDownload(File ftsPath, TransferScheduler.Transfer transfer, HttpServletResponse response) {
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        try(InputStream in = ftsPath.exists() || chunkStore == null ? new FileInputStream(ftsPath) : chunkStore.open(ftsPath)) {
             response.setStatus(HttpStatus.OK.value());
             response.setContentType("application/octet-stream");
 
-            IOUtils.copy(new FileInputStream(ftsPath), response.getOutputStream());
+            IOUtils.copy(in, transfer.wrap(response.getOutputStream()));
         } catch (IOException e) {
             e.printStackTrace();
             NectarServerApplication.getLogger().warn("IOException while processing FTS download \"" + ftsPath + "\"");
@@ -498,9 +1274,198 @@ public class FTSController {
         }
     }
 
-    private ResponseEntity doUpload(String ftsPath, String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
-        File uploadPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + ftsPath + File.separator + path);
+    /**
+     * Send the gzip compressed copy of a file, if the client accepts it and there is one.
+     * @return If the file was sent.
+     */
+    private boolean doDownloadCompressed(File ftsPath, TransferScheduler.Transfer transfer, HttpServletRequest request, HttpServletResponse response) {
+        CompressedVariantStore variants = NectarServerApplication.getCompressedVariantStore();
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if(variants == null || acceptEncoding == null || !acceptEncoding.contains("gzip"))
+            return false;
+
         MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        Document fileDoc = index.find(Filters.eq("path", ftsPath.getAbsolutePath())).projection(Projections.include("checksum")).first();
+        if(fileDoc == null)
+            return false;
+
+        File gzip = variants.getGzip(fileDoc.getString("checksum"));
+        if(gzip == null)
+            return false;
+
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Vary", "Accept-Encoding");
+        doDownload(gzip, transfer, response);
+        return true;
+    }
+
+    private void doDownloadPublic(File ftsPath, TransferScheduler.Transfer transfer, HttpServletResponse response) {
+        // Popular public files are served from memory
+        ByteBuffer cached = NectarServerApplication.getHotObjectCache().get(ftsPath);
+        if(cached == null) {
+            doDownload(NectarServerApplication.getVolumeManager().pickReplica(ftsPath), transfer, response);
+            return;
+        }
+
+        try {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType("application/octet-stream");
+            response.setContentLength(cached.remaining());
+
+            WritableByteChannel out = Channels.newChannel(transfer.wrap(response.getOutputStream()));
+            while(cached.hasRemaining()) {
+                out.write(cached);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while processing FTS download \"" + ftsPath + "\"");
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+    }
+
+    /**
+     * Send byte ranges of a file.
+     * @param temporary If the file is deleted once this returns, in which case sendfile() can't be used.
+     */
+    private void doDownloadRanges(File ftsPath, boolean temporary, List<long[]> ranges, TransferScheduler.Transfer transfer, HttpServletRequest request, HttpServletResponse response) {
+        long length = 0;
+        for(long[] range : ranges) {
+            length += range[1] - range[0];
+        }
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType("application/octet-stream");
+        response.setContentLengthLong(length);
+
+        if(ranges.size() == 1 && !temporary && !transfer.isThrottled() && Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            // Let the connector send it straight from the page cache with sendfile(), which can't be throttled
+            request.setAttribute("org.apache.tomcat.sendfile.filename", ftsPath.getAbsolutePath());
+            request.setAttribute("org.apache.tomcat.sendfile.start", ranges.get(0)[0]);
+            request.setAttribute("org.apache.tomcat.sendfile.end", ranges.get(0)[1]);
+            return;
+        }
+
+        try(FileChannel channel = FileChannel.open(ftsPath.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(transfer.wrap(response.getOutputStream()));
+            for(long[] range : ranges) {
+                long position = range[0];
+                while(position < range[1]) {
+                    position += channel.transferTo(position, range[1] - position, out);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while processing FTS block download \"" + ftsPath + "\"");
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+    }
+
+    /**
+     * Find the file in the store a client is accessing.
+     * @return The file, or null if the user store was requested
+     *         and no user is logged in on the client.
+     */
+    private static File resolveStoreFile(SessionToken token, boolean isPublic, String path) {
+        if(isPublic) {
+            // You don't need to be logged in to access the public store
+            return new File(NectarServerApplication.getVolumeManager().getStoreDir(true, null) + File.separator + path);
+        }
+
+        String loggedInUser = getLoggedInUser(token);
+        if(loggedInUser == null)
+            return null;
+
+        // A user can't access another's data store because the path is specifically tied to the logged in name
+        return new File(NectarServerApplication.getVolumeManager().getStoreDir(false, loggedInUser) + File.separator + path);
+    }
+
+    /**
+     * @return The user logged in on a client, or null if there is none.
+     */
+    private static String getLoggedInUser(SessionToken token) {
+        MongoCollection<Document> clients = NectarServerApplication.getDb().getCollection("clients");
+        Document doc = clients.find(Filters.eq("uuid", token.getUuid())).first();
+        if(doc == null)
+            return null;
+
+        String loggedInUser = doc.getString("loggedInUser");
+        return loggedInUser == null || loggedInUser.equals("none") ? null : loggedInUser;
+    }
+
+    private void doDownloadDelta(File ftsPath, File deltaPath, String checksum, String jwtRaw, boolean isPublic, String pathB64,
+                                 TransferScheduler.Transfer transfer, HttpServletResponse response) {
+        if(ftsPath.isDirectory()) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            return;
+        }
+
+        DeltaCache deltaCache = NectarServerApplication.getDeltaCache();
+        File delta = null;
+        boolean cached = false;
+        if(checksum == null) {
+            // No version given, fall back to the last uploaded delta
+            delta = deltaCache.get(new File(deltaPath + DeltaCache.DELTA_SUFFIX));
+            cached = delta != null;
+        } else if(ftsPath.exists() || isDeduplicated(ftsPath)) {
+            MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+            Document fileDoc = index.find(Filters.eq("path", ftsPath.getAbsolutePath())).first();
+            String currentChecksum = fileDoc == null ? null : fileDoc.getString("checksum");
+
+            if(checksum.equals(currentChecksum)) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+
+            if(currentChecksum != null) {
+                // Deltas are cached per (old version, new version) pair
+                File cacheFile = new File(deltaPath + "." + checksum + "-" + currentChecksum + DeltaCache.DELTA_SUFFIX);
+                delta = deltaCache.get(cacheFile);
+                cached = delta != null;
+
+                if(!cached) {
+                    // Locked so no upload replaces the file while the delta is built against it
+                    File contents = null;
+                    try(FileCommitter.PathLock lock = NectarServerApplication.getFileCommitter().lock(ftsPath)) {
+                        contents = flatContents(ftsPath);
+                        if(contents != null)
+                            delta = NectarServerApplication.getVersionHistory().getDeltaFrom(ftsPath, contents, currentChecksum, checksum, cacheFile);
+                        if(delta != null)
+                            deltaCache.put(delta);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        NectarServerApplication.getLogger().warn("IOException while generating FTS delta for \"" + ftsPath + "\", sending full file.");
+                    } finally {
+                        releaseFlatContents(ftsPath, contents);
+                    }
+                }
+            }
+        }
+
+        if(delta == null || !delta.isFile()) {
+            // No delta found, redirect to download whole file
+            response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+            response.setHeader("Location", NectarServerApplication.ROOT_PATH + "/fts/download?token=" + jwtRaw + "&public=" + Boolean.toString(isPublic) + "&path=" + pathB64);
+            return;
+        }
+
+        response.setHeader("X-Delta-Cache", cached ? "HIT" : "MISS");
+        doDownload(delta, transfer, response);
+    }
+
+    private ResponseEntity doUpload(String client, String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
+        try(SpaceLedger.Reservation reservation = reserveSpace(isPublic, loggedInUser, file.getSize());
+            TransferScheduler.Transfer transfer = startTransfer(client, loggedInUser, isPublic)) {
+            if(reservation == null)
+                return spaceError(isPublic, loggedInUser, file.getSize());
+            if(transfer == null)
+                return transfersBusy();
+
+            return receiveUpload(loggedInUser, name, path, isPublic, file);
+        }
+    }
+
+    private ResponseEntity receiveUpload(String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
+        File uploadPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(isPublic, loggedInUser) + File.separator + path);
 
         if (!uploadPath.exists()) {
             if (!uploadPath.mkdirs()) {
@@ -512,9 +1477,11 @@ public class FTSController {
         }
 
         File physicalFile = new File(uploadPath + File.separator + name);
+        File received;
         try {
-            //FileUtils.copyInputStreamToFile(file.getInputStream(), physicalFile);
-            file.transferTo(physicalFile); // Do a transfer, in case the file has already been saved to a temporary location on disk.
+            // Receive into the volume's staging directory first, the old version is still needed for the history
+            received = NectarServerApplication.getVolumeManager().createStagingFile(physicalFile, ".upload.tmp");
+            file.transferTo(received); // Do a transfer, in case the file has already been saved to a temporary location on disk.
         } catch (IOException e) {
             e.printStackTrace();
             NectarServerApplication.getLogger().error("IOException while processing FTS upload \"" + path + "\""
@@ -526,50 +1493,341 @@ public class FTSController {
         // Update index with new checksum -----------------------------------------------------------------------------------------------
         String checksum;
         try {
-            checksum = Util.computeFileSHA256Checksum(physicalFile);
+            checksum = Util.computeFileSHA256Checksum(received);
         } catch (IOException e) {
             e.printStackTrace();
             NectarServerApplication.getLogger().error("IOException while calculating FTS checksum! Upload \"" + path + "\""
                     + " from user \"" + loggedInUser + "\""
             );
+            received.delete();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while calculating checksum.");
         }
 
-        Document doc = index.find(Filters.eq("path", physicalFile.getAbsolutePath())).first();
-        if(doc == null) {
-            // This is a new upload, create a new document in the index
-            index.insertOne(new Document()
-                    .append("path", physicalFile.getAbsolutePath())
-                    .append("storePath", Util.absoluteFTSToRelativeStore(physicalFile.getAbsolutePath()))
-                    .append("isPublic", isPublic)
-                    .append("checksum", checksum)
-                    .append("lastUpdatedBy", "client")
-            );
-        } else {
-            // Document already exists, time to update the checksum and lastUpdatedBy
-            index.updateOne(Filters.eq("path", physicalFile.getAbsolutePath()),
-                    new Document("$set", new Document("checksum", checksum))
-            );
+        return commitUpload(received, physicalFile, checksum, isPublic, path, loggedInUser);
+    }
 
-            index.updateOne(Filters.eq("path", physicalFile.getAbsolutePath()),
-                    new Document("$set", new Document("lastUpdatedBy", "client"))
-            );
+    /**
+     * Move a received file into place, keeping the old version
+     * in the history, and update the index.
+     * @param received The new contents, in a staging file on the destination's volume.
+     * @param physicalFile The destination in the FTS store.
+     * @return null on success, or the error response.
+     */
+    private static ResponseEntity commitUpload(File received, File physicalFile, String checksum, boolean isPublic, String path, String loggedInUser) {
+        // Held until the index is updated, so concurrent uploads of the path are applied one after the other
+        FileCommitter committer = NectarServerApplication.getFileCommitter();
+        try(FileCommitter.PathLock lock = committer.lock(physicalFile)) {
+            MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+            Document doc = index.find(Filters.eq("path", physicalFile.getAbsolutePath())).first();
+            long size = received.length();
+
+            try {
+                if(doc != null && ensureFlat(physicalFile))
+                    NectarServerApplication.getVersionHistory().record(physicalFile, doc.getString("checksum"), received, checksum);
+
+                committer.moveIntoPlace(received, physicalFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                NectarServerApplication.getLogger().error("IOException while moving FTS upload into place \"" + path + "\""
+                        + " from user \"" + loggedInUser + "\""
+                );
+                received.delete();
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while storing file.");
+            }
+
+            if(doc == null) {
+                // This is a new upload, create a new document in the index
+                index.insertOne(newIndexDocument(physicalFile, isPublic, checksum, size, "client"));
+            } else {
+                // Document already exists, time to update the checksum and lastUpdatedBy
+                index.updateOne(Filters.eq("path", physicalFile.getAbsolutePath()), indexUpdate(checksum, size, "client"));
+            }
+            fileChanged(physicalFile, isPublic, checksum, size - getIndexedSize(doc));
+
+            deduplicate(physicalFile, checksum);
+
+            return null;
         }
+    }
+
+    /**
+     * Store many uploaded files at once. Each part's filename is its
+     * path relative to the store.
+     * @return The result for each file, in the order of the parts.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONArray doUploadBatch(String loggedInUser, boolean isPublic, MultipartFile[] files) {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        File storeDir = NectarServerApplication.getVolumeManager().getStoreDir(isPublic, loggedInUser);
+        ExecutorService ioPool = NectarServerApplication.getVolumeManager().forStore(isPublic, loggedInUser).getIoPool();
+
+        JSONObject[] results = new JSONObject[files.length];
+        File[] physicalFiles = new File[files.length];
+        File[] received = new File[files.length];
+        String[] checksums = new String[files.length];
+
+        // Receive: a few workers write the parts to staging files, hashing as they write -------------------------------------------
+
+        FileCommitter committer = NectarServerApplication.getFileCommitter();
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        for(int i = 0; i < files.length; i++) {
+            String path = normalizeStorePath(files[i].getOriginalFilename() == null ? "" : files[i].getOriginalFilename());
+            results[i] = new JSONObject();
+            results[i].put("path", files[i].getOriginalFilename());
+
+            if(path == null || path.isEmpty()) {
+                results[i].put("status", "error");
+                results[i].put("message", "Invalid path.");
+                continue;
+            }
+
+            physicalFiles[i] = new File(storeDir, path);
+            int n = i;
+            Runnable receive = () -> {
+                File physicalFile = physicalFiles[n];
+                try {
+                    File parent = physicalFile.getParentFile();
+                    if(!parent.exists() && !parent.mkdirs() && !parent.isDirectory())
+                        throw new IOException("mkdirs() call failed for " + parent);
+
+                    received[n] = NectarServerApplication.getVolumeManager().createStagingFile(physicalFile, ".upload.tmp");
+                    try(InputStream in = files[n].getInputStream()) {
+                        checksums[n] = Util.copyWithSHA256Checksum(in, received[n]);
+                    }
+
+                    // Group commit: the parts are synced concurrently, so the filesystem can merge them into few journal commits
+                    if(committer.isGroupCommit())
+                        committer.sync(received[n]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    NectarServerApplication.getLogger().error("IOException while processing FTS batch upload \"" + physicalFile + "\""
+                            + " from user \"" + loggedInUser + "\""
+                    );
+                    if(received[n] != null)
+                        received[n].delete();
+                    received[n] = null;
+                }
+            };
+
+            // Written by the I/O threads of the store's volume, so a slow disk only holds up its own batches
+            inFlight.addLast(ioPool.submit(receive));
 
-        return null;
+            while(inFlight.size() >= BATCH_UPLOAD_WORKERS) {
+                waitFor(inFlight.pollFirst());
+            }
+        }
+
+        while(!inFlight.isEmpty()) {
+            waitFor(inFlight.pollFirst());
+        }
+
+        // Commit: move into place and write all index entries at once --------------------------------------------------------------
+
+        List<String> paths = new ArrayList<>();
+        List<File> locked = new ArrayList<>();
+        for(File physicalFile : physicalFiles) {
+            if(physicalFile != null) {
+                paths.add(physicalFile.getAbsolutePath());
+                locked.add(physicalFile);
+            }
+        }
+
+        // Held until the index is updated, so concurrent uploads of the same paths are applied one after the other
+        try(FileCommitter.PathLock lock = committer.lock(locked)) {
+            Map<String, Document> existing = new HashMap<>();
+            for(Document doc : index.find(Filters.in("path", paths)).projection(Projections.include("path", "checksum", "size"))) {
+                existing.put(doc.getString("path"), doc);
+            }
+
+            List<WriteModel<Document>> writes = new ArrayList<>();
+            List<Integer> writeIndexes = new ArrayList<>();
+            long[] sizeDeltas = new long[files.length];
+            Set<File> directories = new HashSet<>();
+            for(int i = 0; i < files.length; i++) {
+                if(physicalFiles[i] == null)
+                    continue;
+
+                if(received[i] == null) {
+                    results[i].put("status", "error");
+                    results[i].put("message", "IOException while storing file.");
+                    continue;
+                }
+
+                Document doc = existing.get(physicalFiles[i].getAbsolutePath());
+                long size = received[i].length();
+                sizeDeltas[i] = size - getIndexedSize(doc);
+                try {
+                    if(doc != null && ensureFlat(physicalFiles[i]))
+                        NectarServerApplication.getVersionHistory().record(physicalFiles[i], doc.getString("checksum"), received[i], checksums[i]);
+
+                    if(committer.isGroupCommit()) {
+                        committer.move(received[i], physicalFiles[i]);
+                        directories.add(physicalFiles[i].getParentFile());
+                    } else {
+                        committer.moveIntoPlace(received[i], physicalFiles[i]);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    NectarServerApplication.getLogger().error("IOException while moving FTS batch upload into place \"" + physicalFiles[i] + "\""
+                            + " from user \"" + loggedInUser + "\""
+                    );
+                    received[i].delete();
+                    results[i].put("status", "error");
+                    results[i].put("message", "IOException while storing file.");
+                    continue;
+                }
+
+                if(doc == null) {
+                    writes.add(new InsertOneModel<>(newIndexDocument(physicalFiles[i], isPublic, checksums[i], size, "client")));
+                } else {
+                    writes.add(new UpdateOneModel<>(Filters.eq("path", physicalFiles[i].getAbsolutePath()), indexUpdate(checksums[i], size, "client")));
+                }
+                writeIndexes.add(i);
+
+                results[i].put("status", "ok");
+                results[i].put("checksum", checksums[i]);
+            }
+
+            // Make the renames durable once per directory, before the index refers to the new versions
+            for(File directory : directories) {
+                committer.syncDirectory(directory);
+            }
+
+            if(!writes.isEmpty()) {
+                try {
+                    index.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                } catch (MongoBulkWriteException e) {
+                    for(BulkWriteError error : e.getWriteErrors()) {
+                        int i = writeIndexes.get(error.getIndex());
+                        results[i].put("status", "error");
+                        results[i].put("message", "Failed to update index.");
+                    }
+                }
+            }
+
+            for(int i : writeIndexes) {
+                if(results[i].get("status").equals("ok")) {
+                    fileChanged(physicalFiles[i], isPublic, checksums[i], sizeDeltas[i]);
+                    deduplicate(physicalFiles[i], checksums[i]);
+                }
+            }
+        }
+
+        JSONArray array = new JSONArray();
+        array.addAll(Arrays.asList(results));
+        return array;
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    private ResponseEntity doUploadDelta(String ftsPath, String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
-        File uploadPath = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + ftsPath + File.separator + path + File.separator + name);
+    /**
+     * Try to create a file from content already in the public store or
+     * the user's own store, instead of having the client upload it.
+     * Other users' stores are never searched, so a checksum can't be used to
+     * get a copy of, or learn about, another user's files.
+     * @return If the file is now in place, false if the client has to upload it.
+     * @throws IOException If there is an I/O error while creating the file.
+     */
+    private static boolean doHave(String loggedInUser, String name, String path, boolean isPublic, long size, String checksum) throws IOException {
+        File uploadPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(isPublic, loggedInUser) + File.separator + path);
+        File physicalFile = new File(uploadPath + File.separator + name);
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+
+        try(FileCommitter.PathLock lock = NectarServerApplication.getFileCommitter().lock(physicalFile)) {
+            Document current = index.find(Filters.eq("path", physicalFile.getAbsolutePath())).first();
+            if(current != null && checksum.equals(current.getString("checksum")) && (physicalFile.exists() || isDeduplicated(physicalFile)))
+                return true; // Already up to date
+
+            Bson visible = Filters.or(Filters.eq("isPublic", true), Filters.and(Filters.eq("isPublic", false), Filters.eq("owner", loggedInUser)));
+            for(Document candidate : index.find(Filters.and(Filters.eq("checksum", checksum), visible)).projection(Projections.include("path"))) {
+                File source = new File(candidate.getString("path"));
+                if(source.equals(physicalFile))
+                    continue;
+
+                if(!uploadPath.exists() && !uploadPath.mkdirs())
+                    throw new IOException("mkdirs() call failed for " + uploadPath);
+
+                if(chunkStore != null && chunkStore.getSize(source) == size) {
+                    if(current == null) {
+                        // New file, it can share the chunks directly
+                        if(!chunkStore.link(source, physicalFile))
+                            continue;
+
+                        index.insertOne(newIndexDocument(physicalFile, isPublic, checksum, size, "client"));
+                        fileChanged(physicalFile, isPublic, checksum, size);
+                        return true;
+                    }
+
+                    // The old version needs to go into the history, which works on regular files
+                    InputStream in = chunkStore.open(source);
+                    if(in == null)
+                        continue;
+
+                    File received = NectarServerApplication.getVolumeManager().createStagingFile(physicalFile, ".upload.tmp");
+                    try(InputStream chunkStream = in) {
+                        Files.copy(chunkStream, received.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return commitUpload(received, physicalFile, checksum, isPublic, path, loggedInUser) == null;
+                } else if(source.isFile() && source.length() == size) {
+                    // Files in the store are only ever replaced, never written to, so a hard link is safe to share
+                    File received = NectarServerApplication.getVolumeManager().createStagingFile(physicalFile, ".upload.tmp");
+                    if(!received.delete())
+                        throw new IOException("Failed to delete " + received);
+
+                    try {
+                        Files.createLink(received.toPath(), source.toPath());
+                    } catch (IOException | UnsupportedOperationException e) {
+                        Files.copy(source.toPath(), received.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return commitUpload(received, physicalFile, checksum, isPublic, path, loggedInUser) == null;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private ResponseEntity doUploadDelta(String client, String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
+        // Only covers storing the delta, the file it produces is accounted for once it has been applied
+        try(SpaceLedger.Reservation reservation = reserveSpace(isPublic, loggedInUser, file.getSize());
+            TransferScheduler.Transfer transfer = startTransfer(client, loggedInUser, isPublic)) {
+            if(reservation == null)
+                return spaceError(isPublic, loggedInUser, file.getSize());
+            if(transfer == null)
+                return transfersBusy();
+
+            return queueDelta(loggedInUser, name, path, isPublic, file);
+        }
+    }
+
+    private ResponseEntity queueDelta(String loggedInUser, String name, String path, boolean isPublic, MultipartFile file) {
+        File uploadPath = new File(NectarServerApplication.getVolumeManager().getStoreDir(isPublic, loggedInUser) + File.separator + path + File.separator + name);
 
         // Check if the file we want to apply the delta to exists
-        if(!uploadPath.exists()) {
+        if(!uploadPath.exists() && !isDeduplicated(uploadPath)) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(path + " not found, can not apply delta on non-existent file.");
         }
 
-        // Save the delta to the deltaCache
-        File deltaFile = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + (isPublic ? "publicDeltaCache" : "usrDeltaCache") + File.separator + path + File.separator + name + ".xdiff");
+        // Save the delta to the deltaCache, under a unique name until it has been applied
+        // Same layout as downloadDelta expects, user deltas are kept apart per user
+        File deltaDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator
+                + (isPublic ? "publicDeltaCache" : "usrDeltaCache" + File.separator + loggedInUser) + File.separator + path);
+        File deltaFile;
         try {
+            if(!deltaDir.exists() && !deltaDir.mkdirs())
+                throw new IOException("mkdirs() call failed for " + deltaDir);
+
+            deltaFile = File.createTempFile(name + ".", ".xdiff.pending", deltaDir);
             file.transferTo(deltaFile);
         } catch (IOException e) {
             e.printStackTrace();
@@ -579,91 +1837,380 @@ public class FTSController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while storing file.");
         }
 
-        // Decode and apply the patch to the original file, overwriting it.
-        ProcessBuilder pb = new ProcessBuilder("xdelta3", "-d", "-f", "-s", uploadPath.getAbsolutePath(), deltaFile.getAbsolutePath(), uploadPath.getAbsolutePath());
-        try {
-            Process process = pb.start();
-            applyDelta(process, loggedInUser, uploadPath, path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            NectarServerApplication.getLogger().error("IOException while starting XDELTA process, processing FTS DELTA upload \"" + path + "\""
+        // Queue the patch to be decoded and applied to the original file
+        DeltaJob job = NectarServerApplication.getDeltaJobQueue().submit(loggedInUser, isPublic, deltaFile, uploadPath);
+        if(job == null) {
+            NectarServerApplication.getLogger().warn("Delta job queue full, rejected FTS DELTA upload \"" + path + "\""
                     + " from user \"" + loggedInUser + "\""
             );
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("IOException while starting XDELTA process");
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body("Too many deltas being applied, try again later.");
         }
 
-        return ResponseEntity.status(HttpStatus.PROCESSING).body("Applying delta...");
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(job.toJSON().toJSONString());
     }
 
-    @Async
-    private void applyDelta(Process process, String loggedInUser, File uploadPath, String path) {
-        try {
-            process.waitFor();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    /**
+     * Apply a queued delta to its target file and
+     * update the index. Called by the delta job queue workers.
+     * @param job The job to process.
+     * @return The new checksum of the file.
+     * @throws IOException If the delta could not be applied.
+     */
+    public static String applyDelta(DeltaJob job) throws IOException {
+        File uploadPath = job.getTarget();
+
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+
+        FileCommitter committer = NectarServerApplication.getFileCommitter();
+        try(FileCommitter.PathLock lock = committer.lock(uploadPath)) {
+            if(!ensureFlat(uploadPath))
+                throw new FileNotFoundException(uploadPath + " no longer exists");
+
+            // Decode into a staging file on the same volume, then swap it into place
+            File decoded = NectarServerApplication.getVolumeManager().createStagingFile(uploadPath, ".delta.tmp");
+            String checksum;
+            long size, oldSize;
+            try {
+                VCDiffDecoder.decode(uploadPath, job.getDeltaFile(), decoded);
+                checksum = Util.computeFileSHA256Checksum(decoded);
+                size = decoded.length();
+
+                Document doc = index.find(Filters.eq("path", uploadPath.getAbsolutePath())).first();
+                oldSize = doc == null ? uploadPath.length() : getIndexedSize(doc);
+                if(doc != null)
+                    NectarServerApplication.getVersionHistory().record(uploadPath, doc.getString("checksum"), decoded, checksum);
+
+                committer.moveIntoPlace(decoded, uploadPath);
+
+                // Keep the applied delta as the latest one for downloadDelta
+                File cached = new File(job.getDeltaFile().getParentFile(), uploadPath.getName() + DeltaCache.DELTA_SUFFIX);
+                Files.move(job.getDeltaFile().toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                NectarServerApplication.getDeltaCache().put(cached);
+            } finally {
+                if(decoded.exists() && !decoded.delete())
+                    NectarServerApplication.getLogger().warn("Failed to delete temporary delta output " + decoded);
+                if(job.getDeltaFile().exists() && !job.getDeltaFile().delete())
+                    NectarServerApplication.getLogger().warn("Failed to delete pending delta " + job.getDeltaFile());
+            }
+
+            // Update index with new checksum -----------------------------------------------------------------------------------------------
+            index.updateOne(Filters.eq("path", uploadPath.getAbsolutePath()), indexUpdate(checksum, size, "client"));
+            fileChanged(uploadPath, job.isPublic(), checksum, size - oldSize);
+
+            deduplicate(uploadPath, checksum);
+
+            return checksum;
         }
+    }
+
+    private static boolean isDeduplicated(File ftsPath) {
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        return chunkStore != null && chunkStore.contains(ftsPath);
+    }
+
+    /**
+     * Make sure a file is present as a regular file in
+     * the store, restoring it from the chunk store if needed.
+     * Only for code about to replace the file, which must hold its path lock.
+     * @return If the file exists.
+     */
+    private static boolean ensureFlat(File ftsPath) throws IOException {
+        if(ftsPath.exists())
+            return true;
+
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        return chunkStore != null && chunkStore.restore(ftsPath);
+    }
+
+    /**
+     * Get a regular file with the contents of a store file, for code which
+     * only reads it. Deduplicated files are rebuilt into a staging file
+     * instead of being restored, so reading doesn't undo deduplication.
+     * @return The file itself, a staging file, or null if the file does not exist.
+     */
+    private static File flatContents(File ftsPath) throws IOException {
+        if(ftsPath.exists())
+            return ftsPath;
+
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        return chunkStore == null ? null : chunkStore.materialize(ftsPath);
+    }
 
-        if(process.exitValue() != 0) {
-            NectarServerApplication.getLogger().error("XDELTA3 exited with non-zero exit code, Upload " + uploadPath + "\""
-                    + " from user \"" + loggedInUser + "\"");
+    private static void releaseFlatContents(File ftsPath, File contents) {
+        if(contents != null && contents != ftsPath && !contents.delete())
+            NectarServerApplication.getLogger().warn("Failed to delete staging file " + contents);
+    }
+
+    private static void deduplicate(File ftsPath, String checksum) {
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        if(chunkStore == null)
             return;
+
+        try {
+            chunkStore.ingest(ftsPath, checksum);
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("Failed to move \"" + ftsPath + "\" to the chunk store, keeping it as a regular file.");
         }
+    }
 
-        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+    private void sendIndex(boolean isPublic, String owner, Long since, String format, HttpServletRequest request, HttpServletResponse response) {
+        boolean ndjson = format.equals("ndjson");
+        response.setContentType(ndjson ? "application/x-ndjson" : "application/json");
+        response.setCharacterEncoding("UTF-8");
 
-        // Update index with new checksum -----------------------------------------------------------------------------------------------
-        String checksum;
         try {
-            checksum = Util.computeFileSHA256Checksum(uploadPath);
+            if(since != null) {
+                // Incremental listings are cheap with the updatedAt index, and differ for every client
+                long listedAt = System.currentTimeMillis() - INDEX_TIME_OVERLAP;
+                response.setStatus(HttpStatus.OK.value());
+                response.setHeader("X-Index-Time", Long.toString(listedAt));
+                writeIndex(isPublic, owner, since, ndjson, response.getOutputStream());
+                return;
+            }
 
-            Document doc = index.find(Filters.eq("path", uploadPath.getAbsolutePath())).first();
-            index.updateOne(Filters.eq("path", uploadPath.getAbsolutePath()),
-                    new Document("$set", new Document("checksum", checksum))
-            );
+            IndexResponseCache cache = NectarServerApplication.getIndexResponseCache();
+            String store = MerkleTree.storeKey(isPublic, owner);
 
-            index.updateOne(Filters.eq("path", uploadPath.getAbsolutePath()),
-                    new Document("$set", new Document("lastUpdatedBy", "client"))
-            );
+            IndexResponseCache.Entry entry = cache.get(store, format);
+            if(entry == null) {
+                long generation = cache.getGeneration(store);
+                long listedAt = System.currentTimeMillis() - INDEX_TIME_OVERLAP;
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                writeIndex(isPublic, owner, null, ndjson, body);
+                entry = cache.put(store, format, generation, listedAt, body.toByteArray());
+            }
+
+            // Clients pass this back as "since" for their next listing
+            response.setHeader("X-Index-Time", Long.toString(entry.getListedAt()));
+            response.setHeader("ETag", entry.getEtag());
+            response.setHeader("Vary", "Accept-Encoding");
+
+            if(entry.getEtag().equals(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            byte[] body = entry.getBody();
+            if(acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                body = entry.getGzipBody();
+                response.setHeader("Content-Encoding", "gzip");
+            }
+
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
         } catch (IOException e) {
             e.printStackTrace();
-            NectarServerApplication.getLogger().error("IOException while calculating FTS checksum! Upload \"" + uploadPath + "\""
-                    + " from user \"" + loggedInUser + "\""
-            );
+            NectarServerApplication.getLogger().warn("IOException while sending FTS checksum index");
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
         }
     }
 
+    /**
+     * Write a store's entries from the index, either as one
+     * JSON array or as newline delimited JSON objects.
+     * @param owner The user whose store is listed, null for the public store.
+     * @param since Only list entries updated after this time (in milliseconds), or null for all.
+     */
     @SuppressWarnings("unchecked")
-    private IndexJSON[] constructIndexJSON(MongoCollection<Document> index, boolean isPublic, String loggedInUser) {
-        List<IndexJSON> list = new ArrayList();
+    private void writeIndex(boolean isPublic, String owner, Long since, boolean ndjson, OutputStream outputStream) throws IOException {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
 
-        index.find(Filters.eq("isPublic", isPublic)).forEach((Consumer<? super Document>) (Document doc) -> {
-            if(loggedInUser != null && doc.getString("storePath").startsWith(loggedInUser) && !isPublic) {
-                // It's the user store
-                list.add(
-                        new IndexJSON(doc.getString("storePath"), doc.getString("checksum"), doc.getString("lastUpdatedBy")));
-            } else if(isPublic)
-                list.add(
-                    new IndexJSON(doc.getString("storePath"), doc.getString("checksum"), doc.getString("lastUpdatedBy")));
-        });
+        // Served by the (isPublic, owner, storePath) and (isPublic, owner, updatedAt) indexes
+        Bson filter = Filters.and(Filters.eq("isPublic", isPublic), Filters.eq("owner", owner));
+        Bson sort = Sorts.ascending("storePath");
+        if(since != null) {
+            filter = Filters.and(filter, Filters.gt("updatedAt", since));
+            sort = Sorts.ascending("updatedAt");
+        }
 
-        return list.toArray(new IndexJSON[list.size()]);
+        try(MongoCursor<Document> cursor = index.find(filter)
+                .projection(Projections.fields(Projections.include("storePath", "checksum", "lastUpdatedBy", "updatedAt"), Projections.excludeId()))
+                .sort(sort)
+                .batchSize(1000)
+                .iterator()) {
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            if(!ndjson)
+                out.write('[');
+
+            boolean first = true;
+            while(cursor.hasNext()) {
+                Document doc = cursor.next();
+
+                JSONObject entry = new JSONObject();
+                entry.put("path", doc.getString("storePath"));
+                entry.put("checksum", doc.getString("checksum"));
+                entry.put("lastUpdatedBy", doc.getString("lastUpdatedBy"));
+                entry.put("updatedAt", doc.get("updatedAt"));
+
+                if(ndjson) {
+                    out.write(entry.toJSONString());
+                    out.write('\n');
+                } else {
+                    if(!first)
+                        out.write(',');
+                    out.write(entry.toJSONString());
+                }
+                first = false;
+            }
+
+            if(!ndjson)
+                out.write(']');
+            out.flush();
+        }
     }
 
-    private boolean checkSpace(long size) {
-        File ftsDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory());
+    /**
+     * Create the index entry for a new file in the store.
+     */
+    private static Document newIndexDocument(File file, boolean isPublic, String checksum, long size, String lastUpdatedBy) {
+        String storePath = Util.absoluteFTSToRelativeStore(file.getAbsolutePath());
+        return new Document()
+                .append("path", file.getAbsolutePath())
+                .append("storePath", storePath)
+                .append("isPublic", isPublic)
+                .append("owner", isPublic ? null : getStoreOwner(storePath))
+                .append("checksum", checksum)
+                .append("size", size)
+                .append("lastUpdatedBy", lastUpdatedBy)
+                .append("updatedAt", System.currentTimeMillis());
+    }
 
-        long usableSpace = (ftsDir.getFreeSpace() / 1000) / 1000;
-        if(usableSpace <= NectarServerApplication.getConfiguration().getSpaceThreshold()) {
-            NectarServerApplication.getLogger().warn("FTS Directory only has " + usableSpace + "MB of free space left!");
+    private static boolean isValidHaveEntry(Object o) {
+        if(!(o instanceof JSONObject))
             return false;
+
+        JSONObject file = (JSONObject) o;
+        return file.get("name") instanceof String && file.get("path") instanceof String && file.get("checksum") instanceof String
+                && file.get("size") instanceof Number && ((Number) file.get("size")).longValue() >= 0;
+    }
+
+    /**
+     * @return What identifies an upload request for its Idempotency-Key, or null if the upload could not be read.
+     */
+    private static String uploadFingerprint(String path, String name, boolean isPublic, MultipartFile file) {
+        // The content is hashed too, so a retry with different bytes of the same size isn't replayed
+        try(InputStream in = file.getInputStream()) {
+            return isPublic + ":" + path + ":" + name + ":" + file.getSize() + ":" + DigestUtils.sha256Hex(in);
+        } catch (IOException e) {
+            NectarServerApplication.getLogger().warn("IOException while hashing upload \"" + path + "\" for its Idempotency-Key: " + e.getMessage());
+            return null;
         }
+    }
 
-        long sizeMb = size / 1000 / 1000;
-        if(usableSpace <= sizeMb) {
-            NectarServerApplication.getLogger().warn("Rejected file upload of size " + sizeMb +": not enough space!");
-            return false;
+    /**
+     * @return The update for an index entry whose file has changed.
+     */
+    private static Bson indexUpdate(String checksum, long size, String lastUpdatedBy) {
+        return Updates.combine(
+                Updates.set("checksum", checksum),
+                Updates.set("size", size),
+                Updates.set("lastUpdatedBy", lastUpdatedBy),
+                Updates.set("updatedAt", System.currentTimeMillis()),
+                Updates.unset("fingerprint") // Computed again by the next index build
+        );
+    }
+
+    /**
+     * Update the Merkle tree, drop cached data and queue compression
+     * after a file in a store has changed.
+     */
+    private static void fileChanged(File file, boolean isPublic, String checksum, long sizeDelta) {
+        String storePath = Util.absoluteFTSToRelativeStore(file.getAbsolutePath());
+        String owner = isPublic ? null : getStoreOwner(storePath);
+        String store = MerkleTree.storeKey(isPublic, owner);
+
+        NectarServerApplication.getSpaceLedger().adjust(store, NectarServerApplication.getVolumeManager().volumeOf(file), sizeDelta);
+        if(isPublic)
+            NectarServerApplication.getVolumeManager().dropReplicas(file);
+        NectarServerApplication.getMerkleTree().update(store, isPublic ? storePath : storePath.substring(owner.length() + 1), checksum);
+        NectarServerApplication.getIndexResponseCache().invalidate(store);
+        if(isPublic)
+            NectarServerApplication.getHotObjectCache().invalidate(file);
+
+        if(NectarServerApplication.getCompressedVariantStore() != null)
+            NectarServerApplication.getCompressedVariantStore().schedule(file, checksum);
+    }
+
+    /**
+     * Normalize a path given by a client relative to a store.
+     * @return The path without leading or trailing separators, or null if it would leave the store.
+     */
+    private static String normalizeStorePath(String path) {
+        StringBuilder sb = new StringBuilder();
+        for(String part : path.split("[/\\\\]")) {
+            if(part.isEmpty() || part.equals("."))
+                continue;
+            if(part.equals(".."))
+                return null;
+
+            if(sb.length() > 0)
+                sb.append(File.separator);
+            sb.append(part);
         }
+        return sb.toString();
+    }
 
-        return true;
+    private static String escapeRegex(String literal) {
+        StringBuilder sb = new StringBuilder();
+        for(char c : literal.toCharArray()) {
+            if("\\^$.|?*+()[]{}".indexOf(c) >= 0)
+                sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String getStoreOwner(String storePath) {
+        // User store paths start with the user's name
+        int end = storePath.indexOf(File.separator);
+        return end < 0 ? storePath : storePath.substring(0, end);
+    }
+
+    /**
+     * Reserve space in a store for an upload.
+     * @return The reservation, or null if the store's quota or the disk is full.
+     */
+    private static SpaceLedger.Reservation reserveSpace(boolean isPublic, String user, long size) {
+        return NectarServerApplication.getSpaceLedger().reserve(MerkleTree.storeKey(isPublic, user),
+                NectarServerApplication.getVolumeManager().forStore(isPublic, user),
+                NectarServerApplication.getConfiguration().getQuota(isPublic, user), size);
+    }
+
+    private static ResponseEntity spaceError(boolean isPublic, String user, long size) {
+        if(NectarServerApplication.getSpaceLedger().isOverQuota(MerkleTree.storeKey(isPublic, user),
+                NectarServerApplication.getConfiguration().getQuota(isPublic, user), size))
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("Storage quota exceeded.");
+
+        return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("FTS directory free space low.");
+    }
+
+    /**
+     * Take a slot in the transfer scheduler.
+     * @param client The UUID of the client doing the transfer.
+     * @param user The user whose store is accessed, or null for the public store.
+     * @return The transfer, or null if the server is too busy and the client should retry later.
+     */
+    private static TransferScheduler.Transfer startTransfer(String client, String user, boolean isPublic) {
+        // Public store transfers are queued per client, as no user needs to be logged in for them
+        return NectarServerApplication.getTransferScheduler().acquire(client, isPublic || user == null ? client : user,
+                isPublic ? TransferScheduler.Priority.BULK : TransferScheduler.Priority.INTERACTIVE);
+    }
+
+    private static ResponseEntity transfersBusy() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "5").body("Too many transfers in progress, try again later.");
+    }
+
+    private static void transfersBusy(HttpServletResponse response) {
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader("Retry-After", "5");
+    }
+
+    private static long getIndexedSize(Document doc) {
+        return doc == null || doc.get("size") == null ? 0 : ((Number) doc.get("size")).longValue();
     }
 }
\ No newline at end of file
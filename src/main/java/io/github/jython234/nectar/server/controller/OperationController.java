@@ -2,13 +2,14 @@ package io.github.jython234.nectar.server.controller;
 
 import io.github.jython234.nectar.server.ClientSession;
 import io.github.jython234.nectar.server.EventLog;
+import io.github.jython234.nectar.server.IdempotencyCache;
 import io.github.jython234.nectar.server.NectarServerApplication;
 import io.github.jython234.nectar.server.Util;
 import io.github.jython234.nectar.server.struct.ManagementSessionToken;
 import io.github.jython234.nectar.server.struct.SessionToken;
-import io.github.jython234.nectar.server.struct.operation.ClientOperation;
 import io.github.jython234.nectar.server.struct.operation.OperationID;
 import io.github.jython234.nectar.server.struct.operation.OperationStatus;
+import org.bson.types.ObjectId;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -22,6 +23,8 @@ import org.springframework.web.bind.annotation.RestController;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * The REST Controller which handles the Operation
@@ -81,7 +84,9 @@ public class OperationController {
             OperationStatus opStatus = OperationStatus.fromInt(((Long) obj.get("state")).intValue());
             String message = (String) obj.get("message");
 
-            session.updateOperationStatus(number, opStatus, message);
+            ObjectId mailboxId = session.updateOperationStatus(number, opStatus, message);
+            if(mailboxId != null)
+                NectarServerApplication.getRolloutScheduler().statusUpdated(session.getToken().getUuid(), mailboxId, opStatus);
         } else {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
         }
@@ -89,7 +94,6 @@ public class OperationController {
         return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
     }
 
-    @SuppressWarnings("unchecked")
     @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/operation/addToQueue", method = RequestMethod.POST)
     public ResponseEntity addToQueue(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "opData") String operationDataRaw, HttpServletRequest request) {
         ResponseEntity r = Util.verifyJWT(jwtRaw, request);
@@ -101,57 +105,165 @@ public class OperationController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
 
         if(SessionController.getInstance().checkManagementToken(token)) { // Check if the token has expired
-            String decoded = new String(Base64.getUrlDecoder().decode(operationDataRaw));
-            JSONParser parser = new JSONParser();
+            OperationData data = new OperationData();
+            r = parseOperationData(operationDataRaw, data, request);
+            if(r != null)
+                return r;
 
-            JSONObject obj;
-            try {
-                obj = (JSONObject) parser.parse(decoded);
-            } catch (ParseException e) {
-                NectarServerApplication.getLogger().warn("Failed to parse opData JSON from " + request.getRemoteAddr());
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to parse status JSON.");
-            }
+            // A retried request with the same Idempotency-Key must not queue the operation twice
+            return NectarServerApplication.getIdempotencyCache().execute("addToQueue", token.getClientIP(),
+                    request.getHeader(IdempotencyCache.HEADER), () -> Util.computeSHA256(operationDataRaw), () -> {
+                OperationDispatcher.Result result = OperationDispatcher.dispatch(data.targets, data.id, data.additionalData);
 
-            int id = ((Long) obj.get("id")).intValue();
+                NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Added operation " + data.id.name() + " to queue for " + result.getQueued() + " client(s) ("
+                        + result.getOffline() + " offline, " + result.getUnknown() + " unknown), traced from " + request.getRemoteAddr());
+                return ResponseEntity.ok(result.toJSON().toJSONString());
+            });
+        } else {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+    }
 
-            OperationID opId;
-            try {
-                opId = OperationID.fromInt(id);
-            } catch(IllegalArgumentException e) {
-                NectarServerApplication.getLogger().warn("Invalid operation ID in addToQueue from " + request.getRemoteAddr());
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid operation ID.");
-            }
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/operation/startRollout", method = RequestMethod.POST)
+    public ResponseEntity startRollout(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "opData") String operationDataRaw, HttpServletRequest request) {
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
 
-            if(opId == OperationID.OPERATION_UPDATE_CLIENT_EXECUTABLE && !NectarServerApplication.getConfiguration().isClientExecutableUpdatingEnabled()) {
-                NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.NOTICE, "Client Executable Update operation attempt from "
-                        + request.getRemoteAddr() + ", but client executable updating is disabled on this server.");
-                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Client Executable Updating is not enabled on this server.");
-            }
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
 
-            JSONArray targetsArray = (JSONArray) obj.get("targets");
-            JSONObject additionalData = (JSONObject) obj.getOrDefault("additionalData", new JSONObject());
+        OperationData data = new OperationData();
+        r = parseOperationData(operationDataRaw, data, request);
+        if(r != null)
+            return r;
 
-            if(targetsArray.isEmpty())
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No targets were provided (perhaps they are all offline?)");
+        int waveSize = ((Number) data.json.getOrDefault("waveSize", 50L)).intValue();
+        int maxInFlight = ((Number) data.json.getOrDefault("maxInFlight", (long) waveSize)).intValue();
+        long jitter = ((Number) data.json.getOrDefault("jitter", 0L)).longValue(); // Seconds
+        int failureThreshold = ((Number) data.json.getOrDefault("failureThreshold", 10L)).intValue(); // Percent
+        long timeout = ((Number) data.json.getOrDefault("timeout", 60L)).longValue(); // Minutes
 
-            for(Object target : targetsArray) {
-                String uuid = (String) target;
-                if(!SessionController.getInstance().sessions.containsKey(uuid))
-                    continue;
+        if(waveSize < 1 || maxInFlight < 1 || jitter < 0 || failureThreshold < 0 || failureThreshold > 100 || timeout < 1)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid rollout settings.");
 
-                ClientSession session = SessionController.getInstance().sessions.get(uuid);
+        return NectarServerApplication.getIdempotencyCache().execute("startRollout", token.getClientIP(),
+                request.getHeader(IdempotencyCache.HEADER), () -> Util.computeSHA256(operationDataRaw), () -> {
+            RolloutScheduler.Rollout rollout = NectarServerApplication.getRolloutScheduler().start(data.targets, data.id, data.additionalData,
+                    waveSize, maxInFlight, jitter * 1000, failureThreshold, timeout * 60 * 1000);
 
-                session.getOperationQueue().add(
-                        new ClientOperation(session.getNextOperationId(), opId, additionalData)
-                );
-                session.setNextOperationId(session.getNextOperationId() + 1);
-            }
+            NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Started rollout " + rollout.getId() + " of operation " + data.id.name()
+                    + " to " + data.targets.size() + " client(s) in waves of " + waveSize + ", traced from " + request.getRemoteAddr());
+            return ResponseEntity.ok(rollout.toJSON().toJSONString());
+        });
+    }
 
-            NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Added operation " + opId.name() + " to queue for " + targetsArray.size() + " client(s), traced from " + request.getRemoteAddr());
-        } else {
+    @RequestMapping(value = NectarServerApplication.ROOT_PATH + "/operation/controlRollout", method = RequestMethod.POST)
+    public ResponseEntity controlRollout(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "rollout") String rolloutId,
+                                         @RequestParam(value = "action") String action, HttpServletRequest request) {
+        ResponseEntity r = Util.verifyJWT(jwtRaw, request);
+        if(r != null)
+            return r;
+
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
         }
 
+        RolloutScheduler.Rollout rollout = NectarServerApplication.getRolloutScheduler().get(rolloutId);
+        if(rollout == null)
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Rollout not found.");
+
+        switch (action) {
+            case "pause":
+                rollout.pause();
+                break;
+            case "resume":
+                rollout.resume();
+                break;
+            case "abort":
+                rollout.abort();
+                break;
+            default:
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid action, must be pause, resume or abort.");
+        }
+
+        NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Rollout " + rolloutId + ": " + action + ", traced from " + request.getRemoteAddr());
+
         return ResponseEntity.status(HttpStatus.NO_CONTENT).body("Success.");
     }
+
+    /**
+     * Parse the opData of an operation request and resolve its targets.
+     * @return An error response, or null if the opData is valid.
+     */
+    private static ResponseEntity parseOperationData(String operationDataRaw, OperationData data, HttpServletRequest request) {
+        String decoded = new String(Base64.getUrlDecoder().decode(operationDataRaw));
+        JSONParser parser = new JSONParser();
+
+        JSONObject obj;
+        try {
+            obj = (JSONObject) parser.parse(decoded);
+        } catch (ParseException e) {
+            NectarServerApplication.getLogger().warn("Failed to parse opData JSON from " + request.getRemoteAddr());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to parse status JSON.");
+        }
+
+        int id = ((Long) obj.get("id")).intValue();
+
+        OperationID opId;
+        try {
+            opId = OperationID.fromInt(id);
+        } catch(IllegalArgumentException e) {
+            NectarServerApplication.getLogger().warn("Invalid operation ID in opData from " + request.getRemoteAddr());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid operation ID.");
+        }
+
+        if(opId == OperationID.OPERATION_UPDATE_CLIENT_EXECUTABLE && !NectarServerApplication.getConfiguration().isClientExecutableUpdatingEnabled()) {
+            NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.NOTICE, "Client Executable Update operation attempt from "
+                    + request.getRemoteAddr() + ", but client executable updating is disabled on this server.");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Client Executable Updating is not enabled on this server.");
+        }
+
+        JSONArray targetsArray = (JSONArray) obj.getOrDefault("targets", new JSONArray());
+        String selector = (String) obj.get("selector");
+
+        Set<String> targets = new LinkedHashSet<>(targetsArray.size());
+        for(Object target : targetsArray) {
+            targets.add((String) target);
+        }
+
+        if(selector != null) {
+            // Clients can also be picked by their attributes, e.g. "os=ubuntu,hostname=lab3*"
+            try {
+                targets.addAll(NectarServerApplication.getClientIndex().resolve(selector));
+            } catch(IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid selector: " + e.getMessage());
+            }
+        }
+
+        if(targets.isEmpty())
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No targets were provided (perhaps they are all offline?)");
+
+        data.json = obj;
+        data.id = opId;
+        data.targets = targets;
+        data.additionalData = (JSONObject) obj.getOrDefault("additionalData", new JSONObject());
+        return null;
+    }
+
+    private static class OperationData {
+        private JSONObject json;
+        private OperationID id;
+        private Set<String> targets;
+        private JSONObject additionalData;
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.controller;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import io.github.jython234.nectar.server.ClientSession;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import io.github.jython234.nectar.server.OperationMailbox;
+import io.github.jython234.nectar.server.struct.operation.OperationID;
+import lombok.Getter;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Adds an operation to the queues of many clients at once.
+ *
+ * The operation and its payload are shared by every queue, only the
+ * per-client operation number differs. Large target lists are split
+ * across cores, and clients that are not connected are looked up in
+ * the database with a single query. Offline clients get the operation
+ * in their mailbox, to be delivered when they next connect.
+ *
+ * @author jython234
+ */
+public class OperationDispatcher {
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    /**
+     * Queue an operation on every target.
+     * @param targets UUIDs of the target clients.
+     * @param id The operation to queue.
+     * @param payload The operation's additional data, shared by all targets.
+     * @return How many targets the operation was queued on, stored for or not found.
+     */
+    public static Result dispatch(Collection<String> targets, OperationID id, JSONObject payload) {
+        Map<String, ClientSession> sessions = SessionController.getInstance().sessions;
+        AtomicInteger queued = new AtomicInteger();
+        Queue<String> notConnected = new ConcurrentLinkedQueue<>();
+
+        Stream<String> stream = targets.size() >= PARALLEL_THRESHOLD ? targets.parallelStream() : targets.stream();
+        stream.distinct().forEach(uuid -> {
+            ClientSession session = sessions.get(uuid);
+            if(session == null) {
+                notConnected.add(uuid);
+            } else {
+                session.enqueueOperation(id, payload);
+                queued.incrementAndGet();
+            }
+        });
+
+        int offline = 0;
+        int known = 0;
+        if(!notConnected.isEmpty()) {
+            // Registered clients that are offline get the operation in their mailbox, the rest are unknown UUIDs
+            OperationMailbox mailbox = NectarServerApplication.getOperationMailbox();
+            for(Document doc : NectarServerApplication.getDb().getCollection("clients")
+                    .find(Filters.in("uuid", new ArrayList<>(notConnected))).projection(Projections.include("uuid"))) {
+                String uuid = doc.getString("uuid");
+                known++;
+                synchronized (mailbox.lockFor(uuid)) {
+                    ClientSession session = sessions.get(uuid);
+                    if(session == null) {
+                        mailbox.add(uuid, new ObjectId(), id, payload);
+                        offline++;
+                    } else {
+                        // Connected in the meantime
+                        session.enqueueOperation(id, payload);
+                        queued.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        return new Result(queued.get(), offline, notConnected.size() - known);
+    }
+
+    public static class Result {
+        @Getter private final int queued;
+        @Getter private final int offline;
+        @Getter private final int unknown;
+
+        private Result(int queued, int offline, int unknown) {
+            this.queued = queued;
+            this.offline = offline;
+            this.unknown = unknown;
+        }
+
+        @SuppressWarnings("unchecked")
+        public JSONObject toJSON() {
+            JSONObject root = new JSONObject();
+            root.put("queued", this.queued);
+            root.put("offline", this.offline);
+            root.put("unknown", this.unknown);
+            return root;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import io.github.jython234.nectar.server.struct.ClientState;
 import io.github.jython234.nectar.server.struct.ManagementSessionToken;
 import io.github.jython234.nectar.server.struct.PeerInformation;
 import org.bson.Document;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
@@ -139,6 +140,27 @@ public class QueryController {
         return ResponseEntity.ok(returnJSON.toJSONString());
     }
 
+    @SuppressWarnings("unchecked")
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/querySelector")
+    public ResponseEntity querySelector(@RequestParam(value = "token") String jwtRaw, @RequestParam(value = "selector") String selector, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        JSONArray returnJSON = new JSONArray();
+        try {
+            returnJSON.addAll(NectarServerApplication.getClientIndex().resolve(selector));
+        } catch(IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+
+        return ResponseEntity.ok(returnJSON.toJSONString());
+    }
+
     @SuppressWarnings("unchecked")
     @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryUsers")
     public ResponseEntity queryUsers(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
@@ -253,4 +275,88 @@ public class QueryController {
 
         return ResponseEntity.ok(root.toJSONString());
     }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryDedupStats")
+    public ResponseEntity queryDedupStats(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        if(NectarServerApplication.getChunkStore() == null)
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Deduplication is not enabled on this server.");
+
+        return ResponseEntity.ok(NectarServerApplication.getChunkStore().getStats().toJSONString());
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryHotCacheStats")
+    public ResponseEntity queryHotCacheStats(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        return ResponseEntity.ok(NectarServerApplication.getHotObjectCache().getStats().toJSONString());
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryRollouts")
+    public ResponseEntity queryRollouts(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        return ResponseEntity.ok(NectarServerApplication.getRolloutScheduler().getStats().toJSONString());
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryDeltaCacheStats")
+    public ResponseEntity queryDeltaCacheStats(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        return ResponseEntity.ok(NectarServerApplication.getDeltaCache().getStats().toJSONString());
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryScrubStats")
+    public ResponseEntity queryScrubStats(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        if(NectarServerApplication.getIntegrityScrubber() == null)
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Integrity scrubbing is not enabled on this server.");
+
+        return ResponseEntity.ok(NectarServerApplication.getIntegrityScrubber().getStats().toJSONString());
+    }
+
+    @RequestMapping(NectarServerApplication.ROOT_PATH + "/query/queryTransferStats")
+    public ResponseEntity queryTransferStats(@RequestParam(value = "token") String jwtRaw, HttpServletRequest request) {
+        ManagementSessionToken token = ManagementSessionToken.fromJSON(Util.getJWTPayload(jwtRaw));
+        if(token == null)
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Invalid TOKENTYPE.");
+
+        if(!SessionController.getInstance().checkManagementToken(token)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Token expired/not valid.");
+        }
+
+        return ResponseEntity.ok(NectarServerApplication.getTransferScheduler().getStats().toJSONString());
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.controller;
+
+import io.github.jython234.nectar.server.ClientSession;
+import io.github.jython234.nectar.server.EventLog;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import io.github.jython234.nectar.server.struct.operation.OperationID;
+import io.github.jython234.nectar.server.struct.operation.OperationStatus;
+import lombok.Getter;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rolls an operation out to many clients in waves, instead of queueing it
+ * on all of them at once.
+ *
+ * The targets are split into waves, and the next wave only starts once
+ * every client of the current one has finished. Within a wave at most
+ * a set amount of clients run the operation at the same time, and each one
+ * is started after a random delay up to the jitter. Clients are counted
+ * as finished from the status updates they send, or when they take longer
+ * than the timeout. A rollout pauses itself when the share of failed
+ * clients reaches its failure threshold, and can be resumed or aborted.
+ *
+ * Clients that are offline when their turn comes are skipped.
+ *
+ * @author jython234
+ */
+public class RolloutScheduler {
+    private static final int MIN_SAMPLES = 5;
+    private static final int MAX_FINISHED = 50;
+
+    private final ScheduledExecutorService executor;
+    private final Map<String, Rollout> rollouts = new ConcurrentHashMap<>();
+    // Key is the mailbox ID of the queued operation, which survives reconnects unlike its number
+    private final Map<ObjectId, Rollout> inFlight = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    public RolloutScheduler() {
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "RolloutScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start a new rollout.
+     * @param targets UUIDs of the target clients, in rollout order.
+     * @param id The operation to roll out.
+     * @param payload The operation's additional data.
+     * @param waveSize Amount of clients in each wave.
+     * @param maxInFlight Maximum amount of clients running the operation at the same time.
+     * @param jitter Maximum random delay in milliseconds before a client is started.
+     * @param failureThreshold Percentage of failed clients at which the rollout pauses, 0 to never pause.
+     * @param timeout Time in milliseconds after which a client that has not finished counts as failed.
+     * @return The new rollout.
+     */
+    public Rollout start(Collection<String> targets, OperationID id, JSONObject payload, int waveSize, int maxInFlight,
+                         long jitter, int failureThreshold, long timeout) {
+        Rollout rollout = new Rollout(new ArrayList<>(new LinkedHashSet<>(targets)), id, payload, waveSize, maxInFlight, jitter, failureThreshold, timeout);
+
+        pruneFinished();
+        this.rollouts.put(rollout.id, rollout);
+        rollout.pump();
+
+        return rollout;
+    }
+
+    public Rollout get(String id) {
+        return this.rollouts.get(id);
+    }
+
+    /**
+     * Called when a client sends a status update for one of its operations.
+     */
+    public void statusUpdated(String uuid, ObjectId mailboxId, OperationStatus status) {
+        if(status != OperationStatus.SUCCESS && status != OperationStatus.FAILED)
+            return;
+
+        Rollout rollout = this.inFlight.remove(mailboxId);
+        if(rollout != null)
+            rollout.finished(uuid, status == OperationStatus.SUCCESS, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONArray getStats() {
+        JSONArray array = new JSONArray();
+        this.rollouts.values().stream()
+                .sorted(Comparator.comparingLong((Rollout rollout) -> rollout.createdAt))
+                .forEach(rollout -> array.add(rollout.toJSON()));
+        return array;
+    }
+
+    private void pruneFinished() {
+        List<Rollout> finished = new ArrayList<>();
+        for(Rollout rollout : this.rollouts.values()) {
+            if(rollout.isDone())
+                finished.add(rollout);
+        }
+
+        finished.sort(Comparator.comparingLong((Rollout rollout) -> rollout.createdAt));
+        for(int i = 0; i < finished.size() - MAX_FINISHED; i++) {
+            this.rollouts.remove(finished.get(i).id);
+        }
+    }
+
+    public enum State {
+        RUNNING,
+        PAUSED,
+        ABORTED,
+        FINISHED
+    }
+
+    public class Rollout {
+        @Getter private final String id = UUID.randomUUID().toString();
+        @Getter private final long createdAt = System.currentTimeMillis();
+        private final int total;
+        private final OperationID operation;
+        private final JSONObject payload;
+        private final int waveSize;
+        private final int maxInFlight;
+        private final long jitter;
+        private final int failureThreshold;
+        private final long timeout;
+
+        // All guarded by "this"
+        @Getter private State state = State.RUNNING;
+        private final Deque<String> remaining;
+        private final Set<String> running = new HashSet<>();
+        private int wave = 0;
+        private int waveRemaining = 0;
+        private int starting = 0;
+        private int succeeded = 0;
+        private int failed = 0;
+        private int timedOut = 0;
+        private int skipped = 0;
+        private int resumedSucceeded = 0;
+        private int resumedFailed = 0;
+
+        private Rollout(List<String> targets, OperationID operation, JSONObject payload, int waveSize, int maxInFlight,
+                        long jitter, int failureThreshold, long timeout) {
+            this.total = targets.size();
+            this.remaining = new ArrayDeque<>(targets);
+            this.operation = operation;
+            this.payload = payload;
+            this.waveSize = waveSize;
+            this.maxInFlight = maxInFlight;
+            this.jitter = jitter;
+            this.failureThreshold = failureThreshold;
+            this.timeout = timeout;
+        }
+
+        public synchronized void pause() {
+            if(this.state == State.RUNNING)
+                this.state = State.PAUSED;
+        }
+
+        public synchronized void resume() {
+            if(this.state == State.PAUSED) {
+                this.state = State.RUNNING;
+                // Only failures after the resume count towards pausing again
+                this.resumedSucceeded = this.succeeded;
+                this.resumedFailed = this.failed;
+                pump();
+            }
+        }
+
+        /**
+         * Stop starting clients. Clients already running the operation are not stopped.
+         */
+        public synchronized void abort() {
+            if(this.state == State.RUNNING || this.state == State.PAUSED) {
+                this.state = State.ABORTED;
+                NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.NOTICE, "Rollout " + this.id + " of " + this.operation.name()
+                        + " aborted with " + this.remaining.size() + " client(s) not started.");
+            }
+        }
+
+        public synchronized boolean isDone() {
+            return (this.state == State.ABORTED || this.state == State.FINISHED) && this.running.isEmpty() && this.starting == 0;
+        }
+
+        /**
+         * Start as many clients as the wave and in-flight limit allow,
+         * moving on to the next wave once the current one is done.
+         */
+        private synchronized void pump() {
+            while(this.state == State.RUNNING || this.state == State.PAUSED) {
+                if(this.waveRemaining == 0 && this.running.isEmpty() && this.starting == 0) {
+                    if(this.remaining.isEmpty()) {
+                        this.state = State.FINISHED;
+                        NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.INFO, "Rollout " + this.id + " of " + this.operation.name() + " finished: "
+                                + this.succeeded + " succeeded, " + this.failed + " failed, " + this.skipped + " skipped.");
+                        return;
+                    }
+                    if(this.state == State.PAUSED)
+                        return;
+
+                    this.wave++;
+                    this.waveRemaining = Math.min(this.waveSize, this.remaining.size());
+                }
+
+                if(this.state == State.PAUSED || this.waveRemaining == 0 || this.running.size() + this.starting >= this.maxInFlight)
+                    return;
+
+                String uuid = this.remaining.poll();
+                this.waveRemaining--;
+                this.starting++;
+
+                long delay = this.jitter > 0 ? (long) (random.nextDouble() * this.jitter) : 0;
+                executor.schedule(() -> startClient(uuid), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void startClient(String uuid) {
+            this.starting--;
+            if(this.state == State.PAUSED) {
+                // Paused while waiting for the jitter, start it on resume
+                this.remaining.addFirst(uuid);
+                this.waveRemaining++;
+                return;
+            }
+
+            if(this.state == State.RUNNING) {
+                ClientSession session = SessionController.getInstance().sessions.get(uuid);
+                if(session == null) {
+                    this.skipped++;
+                } else {
+                    ObjectId mailboxId = session.enqueueOperation(this.operation, this.payload);
+                    this.running.add(uuid);
+                    inFlight.put(mailboxId, this);
+                    executor.schedule(() -> {
+                        if(inFlight.remove(mailboxId, this))
+                            finished(uuid, false, true);
+                    }, this.timeout, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            pump();
+        }
+
+        private synchronized void finished(String uuid, boolean success, boolean timedOut) {
+            if(!this.running.remove(uuid))
+                return;
+
+            if(success) {
+                this.succeeded++;
+            } else {
+                this.failed++;
+                if(timedOut)
+                    this.timedOut++;
+            }
+
+            int failed = this.failed - this.resumedFailed;
+            int completed = this.succeeded - this.resumedSucceeded + failed;
+            if(!success && this.state == State.RUNNING && this.failureThreshold > 0
+                    && completed >= Math.min(MIN_SAMPLES, this.total - this.skipped)
+                    && failed * 100 >= this.failureThreshold * completed) {
+                this.state = State.PAUSED;
+                NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.WARNING, "Rollout " + this.id + " of " + this.operation.name() + " paused: "
+                        + failed + " of " + completed + " client(s) failed.");
+            }
+
+            pump();
+        }
+
+        @SuppressWarnings("unchecked")
+        public synchronized JSONObject toJSON() {
+            JSONObject root = new JSONObject();
+            root.put("id", this.id);
+            root.put("operation", this.operation.toInt());
+            root.put("state", this.state.name());
+            root.put("createdAt", this.createdAt);
+            root.put("total", this.total);
+            root.put("wave", this.wave);
+            root.put("waveSize", this.waveSize);
+            root.put("maxInFlight", this.maxInFlight);
+            root.put("inFlight", this.running.size() + this.starting);
+            root.put("remaining", this.remaining.size());
+            root.put("succeeded", this.succeeded);
+            root.put("failed", this.failed);
+            root.put("timedOut", this.timedOut);
+            root.put("skipped", this.skipped);
+            return root;
+        }
+    }
+}
@@ -28,6 +28,7 @@
  */
 package io.github.jython234.nectar.server.controller;
 
+import com.mongodb.MongoException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import io.github.jython234.nectar.server.ClientSession;
@@ -229,8 +230,17 @@ public class SessionController {
 
         SessionToken token = new SessionToken(NectarServerApplication.serverID, uuid, System.currentTimeMillis(), TOKEN_EXPIRE_TIME);
         ClientSession session = new ClientSession(token);
+        synchronized (NectarServerApplication.getOperationMailbox().lockFor(uuid)) {
+            try {
+                // Operations queued while the client was offline
+                session.restoreOperations();
+            } catch(MongoException e) {
+                NectarServerApplication.getLogger().error("Failed to load operation mailbox of \"" + uuid + "\": " + e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "5").body("Failed to load operation mailbox, try again later.");
+            }
+            this.sessions.put(uuid, session);
+        }
         session.updateState(ClientState.ONLINE); // Client is now online
-        this.sessions.put(uuid, session);
 
         String jwt = Jwts.builder()
                 .setPayload(token.constructJSON().toJSONString())
@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOptions;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Computes and caches per-block signatures of FTS files, used
+ * by clients to fetch only the parts of a file they don't already have.
+ *
+ * Each block has a weak rolling checksum (the rsync checksum: a = sum of bytes,
+ * b = sum of running a, both mod 2^16, weak = a | b << 16) and a strong MD5 hash.
+ * A client rolls the weak checksum over its old copy, confirms candidates with
+ * the strong hash and requests the remaining blocks with /fts/downloadBlocks.
+ *
+ * Signatures live in the "ftsSignatures" collection next to ftsIndex, keyed by path,
+ * and are refreshed when the file's checksum in the index changes.
+ *
+ * @author jython234
+ */
+public class BlockSignatureStore {
+    public static final int MIN_BLOCK_SIZE = 64 * 1024;
+    /** Keeps a signature document well under MongoDB's document size limit. */
+    public static final int MAX_BLOCKS = 65536;
+
+    private final MongoCollection<Document> signatures;
+
+    public BlockSignatureStore() {
+        this.signatures = NectarServerApplication.getDb().getCollection("ftsSignatures");
+        this.signatures.createIndex(Indexes.ascending("path"), new IndexOptions().unique(true));
+    }
+
+    /**
+     * Get the block signatures of a file, computing them
+     * if they are missing or stale.
+     * @param file The file in the store.
+     * @param contents A regular file with the file's contents, the file itself unless it is deduplicated.
+     * @param checksum The current checksum of the file from the index.
+     * @return The signatures as JSON.
+     * @throws IOException If there is an I/O error reading the file.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getSignatures(File file, File contents, String checksum) throws IOException {
+        Document doc = this.signatures.find(Filters.eq("path", file.getAbsolutePath())).first();
+        if(doc == null || !checksum.equals(doc.getString("checksum"))) {
+            doc = refresh(file, contents, checksum);
+        }
+
+        List<Integer> weak = (List<Integer>) doc.get("weak");
+        List<String> strong = (List<String>) doc.get("strong");
+
+        JSONArray blocks = new JSONArray();
+        for(int i = 0; i < weak.size(); i++) {
+            JSONArray block = new JSONArray();
+            block.add(Integer.toUnsignedLong(weak.get(i)));
+            block.add(strong.get(i));
+            blocks.add(block);
+        }
+
+        JSONObject root = new JSONObject();
+        root.put("checksum", checksum);
+        root.put("size", doc.getLong("size"));
+        root.put("blockSize", doc.getInteger("blockSize"));
+        root.put("blocks", blocks);
+        return root;
+    }
+
+    /**
+     * Get the block size used for a file.
+     * @param size The size of the file in bytes.
+     * @return The block size in bytes.
+     */
+    public static int blockSizeFor(long size) {
+        long blockSize = MIN_BLOCK_SIZE;
+        while(size / blockSize >= MAX_BLOCKS) {
+            blockSize *= 2;
+        }
+        return (int) blockSize;
+    }
+
+    /**
+     * Compute the weak rolling checksum of a block.
+     */
+    public static int weakChecksum(ByteBuffer block) {
+        int a = 0, b = 0;
+        while(block.hasRemaining()) {
+            a += block.get() & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public void forget(File file) {
+        this.signatures.deleteOne(Filters.eq("path", file.getAbsolutePath()));
+    }
+
+    private Document refresh(File file, File contents, String checksum) throws IOException {
+        long size = contents.length();
+        int blockSize = blockSizeFor(size);
+        int blockCount = (int) ((size + blockSize - 1) / blockSize);
+
+        int[] weak = new int[blockCount];
+        String[] strong = new String[blockCount];
+
+        try(FileChannel channel = FileChannel.open(contents.toPath(), StandardOpenOption.READ)) {
+            IntStream.range(0, blockCount).parallel().forEach(i -> {
+                ByteBuffer block = ByteBuffer.allocate((int) Math.min(blockSize, size - (long) i * blockSize));
+                try {
+                    while(block.hasRemaining()) {
+                        if(channel.read(block, (long) i * blockSize + block.position()) == -1)
+                            throw new IOException("File changed while computing signatures: " + file);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                block.flip();
+                weak[i] = weakChecksum(block.duplicate());
+                // Always hashed again, a block can change without its weak checksum changing
+                strong[i] = strongChecksum(block);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<Integer> weakList = new ArrayList<>(blockCount);
+        List<String> strongList = new ArrayList<>(blockCount);
+        for(int i = 0; i < blockCount; i++) {
+            weakList.add(weak[i]);
+            strongList.add(strong[i]);
+        }
+
+        Document doc = new Document()
+                .append("path", file.getAbsolutePath())
+                .append("checksum", checksum)
+                .append("size", size)
+                .append("blockSize", blockSize)
+                .append("weak", weakList)
+                .append("strong", strongList);
+
+        this.signatures.replaceOne(Filters.eq("path", file.getAbsolutePath()), doc, new UpdateOptions().upsert(true));
+        return doc;
+    }
+
+    private static String strongChecksum(ByteBuffer block) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        digest.update(block);
+        return Hex.encodeHexString(digest.digest());
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.json.simple.JSONObject;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-addressed, deduplicating storage for FTS files.
+ *
+ * Files are split into variable size chunks with FastCDC content-defined
+ * chunking, so an insertion only changes the chunks around it. Every chunk is
+ * stored once under chunkStore/, named by its SHA-256 hash, and reference counted
+ * in the "ftsChunks" collection. The list of chunks making up a file is its manifest,
+ * kept in "ftsManifests". Chunks are deleted as soon as no manifest references them.
+ *
+ * @author jython234
+ */
+public class ChunkStore {
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int AVG_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    // FastCDC normalized chunking: stricter mask before the average size, looser after
+    private static final long MASK_S = ~0L << (64 - 18);
+    private static final long MASK_L = ~0L << (64 - 14);
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed, chunk boundaries must never change between runs
+        Random random = new Random(0x4E65637461724344L);
+        for(int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final File storeDir;
+    private final MongoCollection<Document> chunks;
+    private final MongoCollection<Document> manifests;
+
+    // Serializes reference count changes and chunk file writes/deletes for the same chunk
+    private final Object[] locks = new Object[64];
+
+    public ChunkStore() {
+        this.storeDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "chunkStore");
+        this.chunks = NectarServerApplication.getDb().getCollection("ftsChunks");
+        this.manifests = NectarServerApplication.getDb().getCollection("ftsManifests");
+
+        this.manifests.createIndex(Indexes.ascending("path"), new IndexOptions().unique(true));
+
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Move a file into the chunk store. The file
+     * is deleted once its manifest has been written.
+     * @param file The file in the FTS store.
+     * @param checksum The SHA-256 checksum of the whole file.
+     * @throws IOException If there is an I/O error, the file is left in place.
+     */
+    public void ingest(File file, String checksum) throws IOException {
+        List<byte[]> hashes = new ArrayList<>();
+        long size = 0;
+        Document old;
+
+        try {
+            try(InputStream in = new FileInputStream(file)) {
+                // Keep at least one maximum size chunk buffered ahead of the cut point
+                byte[] buffer = new byte[MAX_CHUNK_SIZE * 2];
+                int start = 0, end = 0;
+                boolean eof = false;
+
+                while(true) {
+                    if(!eof && end - start < MAX_CHUNK_SIZE) {
+                        System.arraycopy(buffer, start, buffer, 0, end - start);
+                        end -= start;
+                        start = 0;
+
+                        int read;
+                        while(end < buffer.length && (read = in.read(buffer, end, buffer.length - end)) != -1) {
+                            end += read;
+                        }
+                        eof = end < buffer.length;
+                    }
+
+                    if(start == end)
+                        break;
+
+                    int length = cut(buffer, start, end - start);
+                    byte[] hash = sha256(buffer, start, length);
+                    addReference(hash, buffer, start, length);
+                    hashes.add(hash);
+
+                    size += length;
+                    start += length;
+                }
+            }
+
+            List<Binary> chunkList = new ArrayList<>(hashes.size());
+            for(byte[] hash : hashes) {
+                chunkList.add(new Binary(hash));
+            }
+
+            old = this.manifests.findOneAndReplace(Filters.eq("path", file.getAbsolutePath()), new Document()
+                    .append("path", file.getAbsolutePath())
+                    .append("checksum", checksum)
+                    .append("size", size)
+                    .append("chunks", chunkList),
+                    new FindOneAndReplaceOptions().upsert(true));
+        } catch(IOException | RuntimeException e) {
+            // Give back the references taken for the chunks so far, no manifest refers to them
+            List<String> taken = new ArrayList<>(hashes.size());
+            for(byte[] hash : hashes) {
+                taken.add(Hex.encodeHexString(hash));
+            }
+            release(taken);
+            throw e;
+        }
+
+        if(old != null)
+            release(old);
+
+        if(!file.delete())
+            NectarServerApplication.getLogger().warn("Failed to delete \"" + file + "\" after moving it to the chunk store.");
+    }
+
+    /**
+     * @return If the chunk store holds a file at this path.
+     */
+    public boolean contains(File file) {
+        return this.manifests.find(Filters.eq("path", file.getAbsolutePath())).first() != null;
+    }
+
+    /**
+     * Open a stream which reassembles a file from its chunks.
+     * @param file The path of the file in the FTS store.
+     * @return The stream, or null if the file is not in the chunk store.
+     */
+    public InputStream open(File file) {
+        Document manifest = this.manifests.find(Filters.eq("path", file.getAbsolutePath())).first();
+        if(manifest == null)
+            return null;
+
+        return new ReassemblingInputStream(getChunkList(manifest));
+    }
+
+    /**
+     * @return The size of a file in the chunk store, or -1 if it is not in the chunk store.
+     */
+    public long getSize(File file) {
+        Document manifest = this.manifests.find(Filters.eq("path", file.getAbsolutePath())).first();
+        return manifest == null ? -1 : ((Number) manifest.get("size")).longValue();
+    }
+
+    /**
+     * Make a file in the chunk store also available at another
+     * path, sharing all of its chunks. No data is copied.
+     * @param source The path of the existing file.
+     * @param target The path the file should also appear at.
+     * @return If the source was found in the chunk store.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean link(File source, File target) {
+        Document manifest = this.manifests.find(Filters.eq("path", source.getAbsolutePath())).first();
+        if(manifest == null)
+            return false;
+
+        List<String> referenced = new ArrayList<>();
+        for(String hex : getChunkList(manifest)) {
+            synchronized (lockFor(hex)) {
+                if(this.chunks.findOneAndUpdate(Filters.eq("_id", hex), Updates.inc("refs", 1)) == null) {
+                    // The source was released while we were linking it
+                    release(referenced);
+                    return false;
+                }
+            }
+            referenced.add(hex);
+        }
+
+        Document old = this.manifests.findOneAndReplace(Filters.eq("path", target.getAbsolutePath()), new Document()
+                .append("path", target.getAbsolutePath())
+                .append("checksum", manifest.getString("checksum"))
+                .append("size", manifest.get("size"))
+                .append("chunks", manifest.get("chunks")),
+                new FindOneAndReplaceOptions().upsert(true));
+
+        if(old != null)
+            release(old);
+
+        return true;
+    }
+
+    /**
+     * Rebuild a file in the chunk store into a staging file, for code which
+     * only reads it but needs random access. The store is left as it is.
+     * @param file The path of the file in the FTS store.
+     * @return The staging file, which the caller must delete, or null if the file is not in the chunk store.
+     * @throws IOException If there is an I/O error.
+     */
+    public File materialize(File file) throws IOException {
+        InputStream in = open(file);
+        if(in == null)
+            return null;
+
+        File tmp = NectarServerApplication.getVolumeManager().createStagingFile(file, ".restore.tmp");
+        try(InputStream chunkStream = in) {
+            Files.copy(chunkStream, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        return tmp;
+    }
+
+    /**
+     * Write a file in the chunk store back to its place in the
+     * FTS store, for code which is about to replace it.
+     * The manifest is removed. The caller must hold the file's
+     * {@link FileCommitter#lock(File)}, so no upload commits in between.
+     * @param file The path of the file in the FTS store.
+     * @return If the file was found in the chunk store.
+     * @throws IOException If there is an I/O error.
+     */
+    public boolean restore(File file) throws IOException {
+        File tmp = materialize(file);
+        if(tmp == null)
+            return false;
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(tmp.exists() && !tmp.delete())
+                tmp.deleteOnExit();
+        }
+
+        remove(file);
+        return true;
+    }
+
+    /**
+     * Remove a file from the chunk store, releasing its chunks.
+     */
+    public void remove(File file) {
+        Document old = this.manifests.findOneAndDelete(Filters.eq("path", file.getAbsolutePath()));
+        if(old != null)
+            release(old);
+    }
+
+    /**
+     * @return Logical (as seen by clients) and physical bytes stored, and the ratio between them.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        long logical = sumSizes(this.manifests);
+        long physical = sumSizes(this.chunks);
+
+        JSONObject root = new JSONObject();
+        root.put("files", this.manifests.count());
+        root.put("chunks", this.chunks.count());
+        root.put("logicalBytes", logical);
+        root.put("physicalBytes", physical);
+        root.put("dedupRatio", physical == 0 ? 1.0 : (double) logical / physical);
+        return root;
+    }
+
+    private long sumSizes(MongoCollection<Document> collection) {
+        Document result = collection.aggregate(Arrays.asList(
+                Aggregates.group(null, Accumulators.sum("total", "$size"))
+        )).first();
+
+        return result == null ? 0 : ((Number) result.get("total")).longValue();
+    }
+
+    /**
+     * Find the next content-defined chunk boundary.
+     * @param buffer The data to chunk.
+     * @param off Offset of the start of the chunk.
+     * @param available Bytes available from the offset.
+     * @return The length of the chunk.
+     */
+    static int cut(byte[] buffer, int off, int available) {
+        int limit = Math.min(available, MAX_CHUNK_SIZE);
+        if(limit <= MIN_CHUNK_SIZE)
+            return limit;
+
+        long fingerprint = 0;
+        int normal = Math.min(limit, AVG_CHUNK_SIZE);
+
+        int i = MIN_CHUNK_SIZE;
+        for(; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[off + i] & 0xFF];
+            if((fingerprint & MASK_S) == 0)
+                return i + 1;
+        }
+
+        for(; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[off + i] & 0xFF];
+            if((fingerprint & MASK_L) == 0)
+                return i + 1;
+        }
+
+        return limit;
+    }
+
+    private void addReference(byte[] hash, byte[] buffer, int off, int length) throws IOException {
+        String hex = Hex.encodeHexString(hash);
+
+        synchronized (lockFor(hash)) {
+            Document doc = this.chunks.findOneAndUpdate(Filters.eq("_id", hex),
+                    Updates.combine(Updates.inc("refs", 1), Updates.setOnInsert("size", (long) length)),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+            File chunkFile = getChunkFile(hex);
+            if(doc.getInteger("refs") == 1 || !chunkFile.exists()) {
+                // First reference, the chunk needs to be written
+                try {
+                    if(!chunkFile.getParentFile().exists() && !chunkFile.getParentFile().mkdirs())
+                        throw new IOException("mkdirs() call failed for " + chunkFile.getParentFile());
+
+                    File tmp = File.createTempFile(hex, ".tmp", chunkFile.getParentFile());
+                    try(OutputStream out = new FileOutputStream(tmp)) {
+                        out.write(buffer, off, length);
+                    }
+                    // With dedup the chunk is the only copy of the data, it has to be on disk before the manifest refers to it
+                    NectarServerApplication.getFileCommitter().moveIntoPlace(tmp, chunkFile);
+                } catch(IOException | RuntimeException e) {
+                    release(Collections.singletonList(hex)); // The caller only gives back references it was handed
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void release(Document manifest) {
+        release(getChunkList(manifest));
+    }
+
+    private void release(List<String> chunkList) {
+        for(String hex : chunkList) {
+            synchronized (lockFor(hex)) {
+                Document doc = this.chunks.findOneAndUpdate(Filters.eq("_id", hex), Updates.inc("refs", -1),
+                        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+
+                if(doc != null && doc.getInteger("refs") <= 0) {
+                    this.chunks.deleteOne(Filters.eq("_id", hex));
+
+                    File chunkFile = getChunkFile(hex);
+                    if(chunkFile.exists() && !chunkFile.delete())
+                        NectarServerApplication.getLogger().warn("Failed to delete unreferenced chunk " + chunkFile);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> getChunkList(Document manifest) {
+        List<String> list = new ArrayList<>();
+        for(Binary hash : (List<Binary>) manifest.get("chunks")) {
+            list.add(Hex.encodeHexString(hash.getData()));
+        }
+        return list;
+    }
+
+    private File getChunkFile(String hex) {
+        return new File(storeDir, hex.substring(0, 2) + File.separator + hex.substring(2, 4) + File.separator + hex);
+    }
+
+    private Object lockFor(byte[] hash) {
+        return locks[(hash[0] & 0xFF) % locks.length];
+    }
+
+    private Object lockFor(String hex) {
+        return locks[Integer.parseInt(hex.substring(0, 2), 16) % locks.length];
+    }
+
+    private static byte[] sha256(byte[] buffer, int off, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(buffer, off, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a file's chunks one after another, only
+     * ever holding one chunk file open.
+     */
+    private class ReassemblingInputStream extends InputStream {
+        private final List<String> chunkList;
+        private int next = 0;
+        private InputStream current;
+
+        ReassemblingInputStream(List<String> chunkList) {
+            this.chunkList = chunkList;
+        }
+
+        private boolean advance() throws IOException {
+            if(current != null) {
+                current.close();
+                current = null;
+            }
+
+            if(next >= chunkList.size())
+                return false;
+
+            current = new FileInputStream(getChunkFile(chunkList.get(next++)));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while(true) {
+                if(current == null && !advance())
+                    return -1;
+
+                int read = current.read(b, off, len);
+                if(read != -1)
+                    return read;
+
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(current != null)
+                current.close();
+            next = chunkList.size();
+        }
+    }
+}
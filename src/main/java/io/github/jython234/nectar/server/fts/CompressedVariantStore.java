@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.bson.Document;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Produces gzip compressed copies of FTS files in the background, so
+ * downloads from clients accepting gzip use less bandwidth.
+ *
+ * Variants are stored by checksum under ftsDirectory/compressed, so files with the
+ * same contents share one. Before compressing a file, a sample from its start is
+ * compressed; if that doesn't shrink enough the file is marked as incompressible
+ * and is always sent as is.
+ *
+ * @author jython234
+ */
+public class CompressedVariantStore {
+    /** Files smaller than this aren't worth compressing. */
+    public static final int MIN_SIZE = 1024;
+    public static final int SAMPLE_SIZE = 256 * 1024;
+    /** A sample must compress to at most this fraction of its size. */
+    public static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private final File storeDir;
+    private final ThreadPoolTaskExecutor executor;
+
+    // Checksums being compressed right now
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    public CompressedVariantStore() {
+        this.storeDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "compressed");
+
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setCorePoolSize(1);
+        this.executor.setMaxPoolSize(1);
+        this.executor.setQueueCapacity(1024);
+        this.executor.setThreadNamePrefix("CompressThread-");
+        this.executor.initialize();
+    }
+
+    /**
+     * Get the gzip compressed copy of a file.
+     * @param checksum The checksum of the file from the index.
+     * @return The compressed copy, or null if there is none (yet).
+     */
+    public File getGzip(String checksum) {
+        File file = getVariantFile(checksum, ".gz");
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Compress a file in the background, if it hasn't been already.
+     * @param file The file in the FTS store.
+     * @param checksum The checksum of the file.
+     */
+    public void schedule(File file, String checksum) {
+        if(getVariantFile(checksum, ".gz").exists() || getVariantFile(checksum, ".raw").exists())
+            return;
+
+        if(this.pending.putIfAbsent(checksum, Boolean.TRUE) != null)
+            return;
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    compress(file, checksum);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    NectarServerApplication.getLogger().warn("IOException while compressing \"" + file + "\"");
+                } finally {
+                    this.pending.remove(checksum);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            // Compression is only an optimization, the file is sent uncompressed until it is scheduled again
+            this.pending.remove(checksum);
+        }
+    }
+
+    /**
+     * Delete variants of contents no longer in the "ftsIndex" collection.
+     */
+    public void prune() {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+
+        File[] dirs = this.storeDir.listFiles();
+        if(dirs == null)
+            return;
+
+        for(File dir : dirs) {
+            File[] variants = dir.listFiles();
+            if(variants == null)
+                continue;
+
+            for(File variant : variants) {
+                String name = variant.getName();
+                String checksum = name.substring(0, name.indexOf('.') < 0 ? name.length() : name.indexOf('.'));
+
+                if(index.find(Filters.eq("checksum", checksum)).first() == null && !variant.delete())
+                    NectarServerApplication.getLogger().warn("Failed to delete unused compressed variant " + variant);
+            }
+        }
+    }
+
+    private void compress(File file, String checksum) throws IOException {
+        File gzip = getVariantFile(checksum, ".gz");
+        File raw = getVariantFile(checksum, ".raw");
+        if(!gzip.getParentFile().exists() && !gzip.getParentFile().mkdirs())
+            throw new IOException("mkdirs() call failed for " + gzip.getParentFile());
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int sampleLength;
+        try(InputStream in = open(file)) {
+            if(in == null)
+                return; // Gone already
+            sampleLength = IOUtils.read(in, sample);
+        }
+
+        if(sampleLength < MIN_SIZE || sampledRatio(sample, sampleLength) > MAX_SAMPLE_RATIO) {
+            // Incompressible, remember so it isn't sampled again
+            if(!raw.createNewFile() && !raw.exists())
+                throw new IOException("Failed to create " + raw);
+            return;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        File tmp = File.createTempFile(checksum, ".tmp", gzip.getParentFile());
+        try {
+            try(InputStream in = open(file); OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+                if(in == null)
+                    return;
+                IOUtils.copy(new DigestInputStream(in, digest), out);
+            }
+
+            // The variant is shared by everything with this checksum, so it must not hold newer contents of the file
+            if(!Hex.encodeHexString(digest.digest()).equals(checksum))
+                return;
+
+            Files.move(tmp.toPath(), gzip.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(tmp.exists() && !tmp.delete())
+                tmp.deleteOnExit();
+        }
+    }
+
+    static double sampledRatio(byte[] sample, int length) throws IOException {
+        // Fastest level is enough to tell text from already compressed data
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try(OutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(sample, 0, length);
+        } finally {
+            deflater.end();
+        }
+        return (double) compressed.size() / length;
+    }
+
+    private static InputStream open(File file) throws IOException {
+        if(file.isFile())
+            return new FileInputStream(file);
+
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        return chunkStore == null ? null : chunkStore.open(file);
+    }
+
+    private File getVariantFile(String checksum, String extension) {
+        return new File(this.storeDir, checksum.substring(0, 2) + File.separator + checksum + extension);
+    }
+}
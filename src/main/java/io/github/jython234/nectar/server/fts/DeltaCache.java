@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the delta cache directories ("publicDeltaCache" and "usrDeltaCache"),
+ * which hold the last delta uploaded for each file and the deltas generated
+ * between versions for downloads.
+ *
+ * The cached deltas are tracked in memory with their size and last access
+ * time. The least recently used ones are deleted once the cache is over its
+ * byte budget, and deltas not used for longer than the maximum age are deleted
+ * periodically. At startup the directories are scanned in the background to
+ * load the existing deltas and remove files left over from before a restart.
+ *
+ * @author jython234
+ */
+public class DeltaCache {
+    public static final String DELTA_SUFFIX = ".xdiff";
+    private static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+
+    private final File[] dirs;
+    private final long maxBytes;
+    private final long maxAge;
+    private final long startedAt = System.currentTimeMillis();
+    private final ScheduledExecutorService cleaner;
+
+    // Guarded by "this". Key String is the absolute path of the delta, in least recently used order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes Maximum total size of the cached deltas.
+     * @param maxAge Time in milliseconds after which an unused delta is deleted.
+     */
+    public DeltaCache(long maxBytes, long maxAge) {
+        String ftsDirectory = NectarServerApplication.getConfiguration().getFtsDirectory();
+        this.dirs = new File[] {
+                new File(ftsDirectory + File.separator + "publicDeltaCache"),
+                new File(ftsDirectory + File.separator + "usrDeltaCache")
+        };
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DeltaCacheCleaner");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Scan the cache directories in the background, then start
+     * deleting expired deltas periodically.
+     */
+    public void start() {
+        this.cleaner.execute(this::scan);
+        this.cleaner.scheduleWithFixedDelay(this::expire, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Look up a delta, counting the cache hit or miss.
+     * @param delta The path of the delta in a cache directory.
+     * @return The delta, or null if it isn't cached.
+     */
+    public File get(File delta) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(delta.getAbsolutePath());
+            if(entry != null)
+                entry.lastAccess = System.currentTimeMillis();
+        }
+
+        if(entry == null && delta.isFile()) {
+            // Written before the startup scan got to it
+            put(delta);
+            entry = new Entry(delta.length(), System.currentTimeMillis());
+        }
+
+        if(entry == null || !delta.isFile()) {
+            if(entry != null)
+                remove(delta);
+            this.misses.incrementAndGet();
+            return null;
+        }
+
+        this.hits.incrementAndGet();
+        return delta;
+    }
+
+    /**
+     * Add a delta which has just been written to the cache, evicting
+     * the least recently used deltas if the cache is full.
+     * @param delta The path of the delta in a cache directory.
+     */
+    public void put(File delta) {
+        register(delta.getAbsolutePath(), delta.length(), System.currentTimeMillis());
+        evict();
+    }
+
+    /**
+     * Forget and delete a cached delta.
+     */
+    public void remove(File delta) {
+        synchronized (this) {
+            Entry entry = this.entries.remove(delta.getAbsolutePath());
+            if(entry != null)
+                this.usedBytes -= entry.size;
+        }
+        delete(delta);
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        long hits = this.hits.get();
+        long misses = this.misses.get();
+
+        JSONObject root = new JSONObject();
+        root.put("hits", hits);
+        root.put("misses", misses);
+        root.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        root.put("evictions", this.evictions.get());
+        synchronized (this) {
+            root.put("deltas", this.entries.size());
+            root.put("usedBytes", this.usedBytes);
+        }
+        root.put("maxBytes", this.maxBytes);
+        return root;
+    }
+
+    private synchronized void register(String path, long size, long lastAccess) {
+        Entry old = this.entries.put(path, new Entry(size, lastAccess));
+        if(old != null)
+            this.usedBytes -= old.size;
+        this.usedBytes += size;
+    }
+
+    private void evict() {
+        while(true) {
+            String path;
+            synchronized (this) {
+                if(this.usedBytes <= this.maxBytes || this.entries.isEmpty())
+                    return;
+
+                Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+                Map.Entry<String, Entry> eldest = iterator.next();
+                iterator.remove();
+                this.usedBytes -= eldest.getValue().size;
+                path = eldest.getKey();
+            }
+
+            this.evictions.incrementAndGet();
+            delete(new File(path));
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - this.maxAge;
+        while(true) {
+            String path;
+            synchronized (this) {
+                if(this.entries.isEmpty())
+                    return;
+
+                // Least recently used first, so stop at the first one used after the cutoff
+                Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+                Map.Entry<String, Entry> eldest = iterator.next();
+                if(eldest.getValue().lastAccess >= cutoff)
+                    return;
+
+                iterator.remove();
+                this.usedBytes -= eldest.getValue().size;
+                path = eldest.getKey();
+            }
+
+            this.evictions.incrementAndGet();
+            delete(new File(path));
+        }
+    }
+
+    private void scan() {
+        long count = 0;
+        for(File dir : this.dirs) {
+            count += scanDir(dir);
+        }
+
+        // Loaded in directory order, put the most recently written deltas last before evicting
+        synchronized (this) {
+            List<Map.Entry<String, Entry>> sorted = new ArrayList<>(this.entries.entrySet());
+            sorted.sort(Comparator.comparingLong((Map.Entry<String, Entry> e) -> e.getValue().lastAccess));
+
+            LinkedHashMap<String, Entry> reordered = new LinkedHashMap<>();
+            for(Map.Entry<String, Entry> entry : sorted) {
+                reordered.put(entry.getKey(), entry.getValue());
+            }
+            this.entries.clear();
+            this.entries.putAll(reordered);
+        }
+
+        evict();
+        expire();
+
+        NectarServerApplication.getLogger().info("Loaded " + count + " cached deltas, " + getStats().get("usedBytes") + " bytes.");
+    }
+
+    private long scanDir(File dir) {
+        File[] contents = dir.listFiles();
+        if(contents == null)
+            return 0;
+
+        long count = 0;
+        for(File file : contents) {
+            if(file.isDirectory()) {
+                count += scanDir(file);
+
+                // Directories changed since startup may be about to receive a delta
+                String[] left = file.list();
+                if(left != null && left.length == 0 && file.lastModified() < this.startedAt)
+                    file.delete();
+            } else if(file.lastModified() >= this.startedAt) {
+                // Written since startup, already known or being written
+            } else if(file.getName().endsWith(DELTA_SUFFIX)) {
+                synchronized (this) {
+                    if(!this.entries.containsKey(file.getAbsolutePath())) {
+                        register(file.getAbsolutePath(), file.length(), file.lastModified());
+                        count++;
+                    }
+                }
+            } else {
+                // Pending uploads and temporary files of deltas which were never finished
+                delete(file);
+            }
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        if(file.exists() && !file.delete())
+            NectarServerApplication.getLogger().warn("Failed to delete cached delta " + file);
+    }
+
+    private static class Entry {
+        private final long size;
+        private long lastAccess;
+
+        private Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
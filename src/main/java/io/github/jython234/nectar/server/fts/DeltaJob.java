@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import io.github.jython234.nectar.server.struct.DeltaJobStatus;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+
+/**
+ * Represents a delta upload waiting to be
+ * applied by the {@link DeltaJobQueue}.
+ *
+ * @author jython234
+ */
+@RequiredArgsConstructor
+public class DeltaJob {
+    @Getter private final String id;
+    @Getter private final String user;
+    @Getter private final boolean isPublic;
+    @Getter private final File deltaFile;
+    @Getter private final File target;
+
+    @Getter private volatile DeltaJobStatus status = DeltaJobStatus.QUEUED;
+    @Getter private volatile String checksum;
+    @Getter private volatile String message;
+    @Getter private volatile long finishedAt = -1;
+
+    void setApplying() {
+        this.status = DeltaJobStatus.APPLYING;
+    }
+
+    void setHashed(String checksum) {
+        this.checksum = checksum;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = DeltaJobStatus.HASHED;
+    }
+
+    void setFailed(String message) {
+        this.message = message;
+        this.finishedAt = System.currentTimeMillis();
+        this.status = DeltaJobStatus.FAILED;
+    }
+
+    public boolean isFinished() {
+        return this.finishedAt != -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject root = new JSONObject();
+        root.put("id", this.id);
+        root.put("status", this.status.toInt());
+        root.put("statusName", this.status.name());
+        if(this.checksum != null)
+            root.put("checksum", this.checksum);
+        if(this.message != null)
+            root.put("message", this.message);
+        return root;
+    }
+}
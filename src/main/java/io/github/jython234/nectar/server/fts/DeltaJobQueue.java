@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import io.github.jython234.nectar.server.NectarServerApplication;
+import io.github.jython234.nectar.server.controller.FTSController;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded queue of delta uploads waiting to be applied.
+ *
+ * Workers pick jobs round-robin across users, so one client pushing
+ * many deltas can't starve everyone else. Jobs that target the same
+ * file are applied strictly one after another in submission order.
+ *
+ * @author jython234
+ */
+public class DeltaJobQueue {
+    /** How long finished jobs are kept around for status queries. */
+    public static final long FINISHED_JOB_TTL = 600000; // 10 minutes
+
+    private final int capacity;
+    private final ThreadPoolTaskExecutor executor;
+
+    // Key String is job ID
+    private final Map<String, DeltaJob> jobs = new ConcurrentHashMap<>();
+
+    // All fields below are guarded by "this"
+    private final Map<String, Deque<DeltaJob>> userQueues = new HashMap<>();
+    private final Deque<String> userRotation = new ArrayDeque<>();
+    // Key String is absolute path of the target file, value are jobs waiting behind the one being processed
+    private final Map<String, Deque<DeltaJob>> pathQueues = new HashMap<>();
+    private int pending = 0;
+
+    public DeltaJobQueue(int workers, int capacity) {
+        this.capacity = capacity;
+
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setCorePoolSize(workers);
+        this.executor.setMaxPoolSize(workers);
+        this.executor.setThreadNamePrefix("DeltaThread-");
+        this.executor.initialize();
+    }
+
+    /**
+     * Add a delta to the queue.
+     * @param user The user who uploaded the delta.
+     * @param isPublic If the target is in the public store.
+     * @param deltaFile The stored delta file.
+     * @param target The file the delta should be applied to.
+     * @return The new job, or null if the queue is full.
+     */
+    public DeltaJob submit(String user, boolean isPublic, File deltaFile, File target) {
+        purgeFinished();
+
+        DeltaJob job = new DeltaJob(UUID.randomUUID().toString(), user, isPublic, deltaFile, target);
+
+        synchronized (this) {
+            if(pending >= capacity)
+                return null;
+            pending++;
+
+            this.jobs.put(job.getId(), job);
+
+            String path = target.getAbsolutePath();
+            Deque<DeltaJob> waiting = pathQueues.get(path);
+            if(waiting != null) {
+                // Another delta for this file is queued or running, wait behind it
+                waiting.addLast(job);
+                return job;
+            }
+
+            pathQueues.put(path, new ArrayDeque<>());
+            makeEligible(job);
+        }
+
+        return job;
+    }
+
+    public DeltaJob getJob(String id) {
+        return this.jobs.get(id);
+    }
+
+    public synchronized int getPendingCount() {
+        return this.pending;
+    }
+
+    // Must hold the lock
+    private void makeEligible(DeltaJob job) {
+        Deque<DeltaJob> queue = userQueues.get(job.getUser());
+        if(queue == null) {
+            queue = new ArrayDeque<>();
+            userQueues.put(job.getUser(), queue);
+            userRotation.addLast(job.getUser());
+        }
+        queue.addLast(job);
+
+        // One run per eligible job, each run takes whichever job is fairest at that time
+        this.executor.execute(this::runNext);
+    }
+
+    private synchronized DeltaJob takeNext() {
+        String user = userRotation.pollFirst();
+        if(user == null)
+            return null;
+
+        Deque<DeltaJob> queue = userQueues.get(user);
+        DeltaJob job = queue.pollFirst();
+        if(queue.isEmpty()) {
+            userQueues.remove(user);
+        } else {
+            userRotation.addLast(user);
+        }
+
+        return job;
+    }
+
+    private void runNext() {
+        DeltaJob job = takeNext();
+        if(job == null)
+            return;
+
+        try {
+            job.setApplying();
+            job.setHashed(FTSController.applyDelta(job));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().error("Failed to apply delta to \"" + job.getTarget() + "\""
+                    + " from user \"" + job.getUser() + "\": " + e.getMessage());
+            job.setFailed(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        } finally {
+            finish(job);
+        }
+    }
+
+    private synchronized void finish(DeltaJob job) {
+        pending--;
+
+        String path = job.getTarget().getAbsolutePath();
+        Deque<DeltaJob> waiting = pathQueues.get(path);
+        DeltaJob next = waiting == null ? null : waiting.pollFirst();
+        if(next == null) {
+            pathQueues.remove(path);
+        } else {
+            makeEligible(next);
+        }
+    }
+
+    private void purgeFinished() {
+        long now = System.currentTimeMillis();
+        this.jobs.values().removeIf(job -> job.isFinished() && now - job.getFinishedAt() >= FINISHED_JOB_TTL);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves newly written files into the FTS store durably, and
+ * serializes writers of the same path.
+ *
+ * Files are always written to a staging file on the same volume as their
+ * destination first (see {@link VolumeManager#createStagingFile(File, String)}),
+ * which is then synced to disk and atomically renamed into place, so
+ * readers see either the old or the new version and never a partial one.
+ *
+ * Paths are locked through a fixed table of lock stripes, so writers of
+ * independent paths (almost) never contend, while the amount of locks
+ * stays constant however many files the store has. The locks are reentrant.
+ *
+ * @author jython234
+ */
+public class FileCommitter {
+    private static final int STRIPES = 1024;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    /**
+     * If files and directories are synced to disk before they are used.
+     */
+    @Getter private final boolean fsync;
+    /**
+     * If the syncs of batches of files should be done together instead of one file after the other.
+     */
+    @Getter private final boolean groupCommit;
+
+    public FileCommitter(boolean fsync, boolean groupCommit) {
+        this.fsync = fsync;
+        this.groupCommit = groupCommit;
+
+        for(int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock paths for writing. Must be used in a try-with-resources statement.
+     * @param files The paths to lock.
+     * @return The held lock, released when closed.
+     */
+    public PathLock lock(File... files) {
+        return lock(Arrays.asList(files));
+    }
+
+    /**
+     * Lock paths for writing. Must be used in a try-with-resources statement.
+     * @param files The paths to lock.
+     * @return The held lock, released when closed.
+     */
+    public PathLock lock(Collection<File> files) {
+        // Always take the stripes in the same order, so two batches can't deadlock
+        SortedSet<Integer> indexes = new TreeSet<>();
+        for(File file : files) {
+            indexes.add(stripeFor(file));
+        }
+
+        List<ReentrantLock> locks = new ArrayList<>(indexes.size());
+        for(int index : indexes) {
+            ReentrantLock lock = this.stripes[index];
+            lock.lock();
+            locks.add(lock);
+        }
+
+        return new PathLock(locks);
+    }
+
+    /**
+     * Sync a temporary file to disk, then atomically move it to its destination.
+     * @param tmp The temporary file, which must be on the same filesystem.
+     * @param target The destination, which is replaced if it exists.
+     * @throws IOException If there is an I/O error.
+     */
+    public void moveIntoPlace(File tmp, File target) throws IOException {
+        sync(tmp);
+        move(tmp, target);
+        syncDirectory(target.getParentFile());
+    }
+
+    /**
+     * Atomically move a file to its destination without syncing anything,
+     * for callers syncing the files and directories of a batch together.
+     * @see #sync(File)
+     * @see #syncDirectory(File)
+     */
+    public void move(File tmp, File target) throws IOException {
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flush the contents of a file to disk, if enabled.
+     * @throws IOException If there is an I/O error.
+     */
+    public void sync(File file) throws IOException {
+        if(!this.fsync)
+            return;
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flush the entries of a directory to disk, making renames into it durable, if enabled.
+     */
+    public void syncDirectory(File dir) {
+        if(!this.fsync)
+            return;
+
+        try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened on every platform, the rename is then as durable as the OS makes it
+        }
+    }
+
+    private static int stripeFor(File file) {
+        int hash = file.getAbsolutePath().hashCode();
+        hash ^= hash >>> 16; // Spread the high bits, the table is indexed with the low ones
+        return hash & (STRIPES - 1);
+    }
+
+    /**
+     * Locks held on a set of paths.
+     */
+    public static class PathLock implements AutoCloseable {
+        private final List<ReentrantLock> locks;
+
+        private PathLock(List<ReentrantLock> locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void close() {
+            for(int i = this.locks.size() - 1; i >= 0; i--) {
+                this.locks.get(i).unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes files in the stores.
+ *
+ * SHA-256 checksums are what clients compare against, so they are always
+ * computed over the whole file in order. Small files are read through a
+ * reused direct buffer, larger ones are memory-mapped in windows so the
+ * data is never copied onto the heap.
+ *
+ * Fingerprints are a much cheaper, non-cryptographic hash used to tell
+ * whether a file has changed since its checksum was computed. Large files
+ * are split into chunks that are hashed in parallel and then combined, so
+ * a fingerprint is only comparable with other fingerprints.
+ *
+ * @author jython234
+ */
+public final class FileHasher {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private FileHasher() {
+
+    }
+
+    /**
+     * Compute the SHA-256 checksum of a file.
+     * @param file The file to hash.
+     * @return The checksum as a lowercase hex string.
+     * @throws IOException If there is an I/O error.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size >= MAP_THRESHOLD) {
+                for(long position = 0; position < size; position += MAP_WINDOW) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                while(channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Compute the fingerprint of a file.
+     * @param file The file to fingerprint.
+     * @return The fingerprint as a hex string.
+     * @throws IOException If there is an I/O error.
+     */
+    public static String fingerprint(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+            long[] leaves;
+            if(chunks == 1) {
+                leaves = new long[] { hashChunk(channel, 0, size) };
+            } else {
+                try {
+                    leaves = IntStream.range(0, chunks).parallel().mapToLong(i -> {
+                        long position = i * CHUNK_SIZE;
+                        try {
+                            return hashChunk(channel, position, Math.min(CHUNK_SIZE, size - position));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }).toArray();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+
+            long hash = mix(size);
+            for(long leaf : leaves) {
+                hash = mix(hash ^ leaf);
+            }
+
+            return String.format("%016x", hash);
+        }
+    }
+
+    private static long hashChunk(FileChannel channel, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        if(length > 0) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            crc.update(chunk.duplicate());
+            adler.update(chunk);
+        }
+
+        return crc.getValue() << 32 | adler.getValue();
+    }
+
+    private static long mix(long value) {
+        // 64-bit finalizer from MurmurHash3
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
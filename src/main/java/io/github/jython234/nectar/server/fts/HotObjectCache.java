@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.model.Filters;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.bson.Document;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps popular public store files in off-heap memory, so a package
+ * downloaded by many clients at once is only read from disk once.
+ *
+ * A file is admitted after it has been requested a few times (the counts
+ * are halved periodically so old popularity fades), or when it is pre-staged
+ * by an administrator. Least recently used files are evicted to stay within
+ * the memory budget. Cached files are dropped when they are changed, and a
+ * file which changes while it is being loaded is not cached at all.
+ *
+ * @author jython234
+ */
+public class HotObjectCache {
+    private static final int DECAY_INTERVAL = 10000;
+
+    private final long maxBytes;
+    private final long maxObjectSize;
+    private final int admitAfter;
+
+    private long usedBytes = 0;
+    private long invalidations = 0; // Guarded by "this", lets a load notice it raced with a change
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, AtomicInteger> popularity = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong bytesFromCache = new AtomicLong();
+
+    /**
+     * @param maxBytes Maximum total size of the cached files.
+     * @param maxObjectSize Files larger than this are never cached.
+     * @param admitAfter Amount of requests after which a file is cached.
+     */
+    public HotObjectCache(long maxBytes, long maxObjectSize, int admitAfter) {
+        this.maxBytes = maxBytes;
+        this.maxObjectSize = Math.min(maxObjectSize, Math.min(maxBytes, Integer.MAX_VALUE));
+        this.admitAfter = admitAfter;
+    }
+
+    /**
+     * Get the contents of a file for a download, caching
+     * it if it has become popular enough.
+     * @param file The file in the public store.
+     * @return A buffer with the contents, or null if the file should be read from the store.
+     */
+    public ByteBuffer get(File file) {
+        String key = file.getAbsolutePath();
+        this.requests.incrementAndGet();
+
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+
+        if(entry != null) {
+            if(entry.isCurrent(file)) {
+                this.hits.incrementAndGet();
+                this.bytesFromCache.addAndGet(entry.buffer.capacity());
+                return entry.buffer.duplicate();
+            }
+            invalidate(file); // Changed on disk
+        }
+
+        if(recordRequest(key) < this.admitAfter)
+            return null;
+
+        entry = load(file);
+        return entry == null ? null : entry.buffer.duplicate();
+    }
+
+    /**
+     * Load a file into the cache ahead of time, regardless of its popularity.
+     * @return If the file is now cached.
+     */
+    public boolean prestage(File file) {
+        synchronized (this) {
+            Entry entry = this.entries.get(file.getAbsolutePath());
+            if(entry != null && entry.isCurrent(file))
+                return true;
+        }
+
+        return load(file) != null;
+    }
+
+    /**
+     * Drop a file from the cache, called when it has changed.
+     */
+    public synchronized void invalidate(File file) {
+        this.invalidations++;
+        Entry old = this.entries.remove(file.getAbsolutePath());
+        if(old != null)
+            this.usedBytes -= old.buffer.capacity();
+    }
+
+    /**
+     * @return Hit ratio, bytes served from memory and memory use.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        long requests = this.requests.get();
+        long hits = this.hits.get();
+
+        JSONObject root = new JSONObject();
+        root.put("requests", requests);
+        root.put("hits", hits);
+        root.put("hitRatio", requests == 0 ? 0.0 : (double) hits / requests);
+        root.put("bytesFromCache", this.bytesFromCache.get());
+        synchronized (this) {
+            root.put("files", this.entries.size());
+            root.put("usedBytes", this.usedBytes);
+        }
+        root.put("maxBytes", this.maxBytes);
+        return root;
+    }
+
+    private int recordRequest(String key) {
+        if(this.requests.get() % DECAY_INTERVAL == 0) {
+            // Halve all counts, so files which were popular a while ago don't stay admitted forever
+            Iterator<AtomicInteger> iterator = this.popularity.values().iterator();
+            while(iterator.hasNext()) {
+                AtomicInteger count = iterator.next();
+                if(count.updateAndGet(c -> c / 2) == 0)
+                    iterator.remove();
+            }
+        }
+
+        return this.popularity.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private Entry load(File file) {
+        String key = file.getAbsolutePath();
+        if(this.loading.putIfAbsent(key, Boolean.TRUE) != null)
+            return null; // Someone else is already loading it, read from the store meanwhile
+
+        try {
+            long invalidations;
+            synchronized (this) {
+                invalidations = this.invalidations;
+            }
+            String checksum = indexedChecksum(key);
+
+            Entry entry;
+            ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+            if(file.isFile()) {
+                long lastModified = file.lastModified();
+                try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    if(channel.size() > this.maxObjectSize)
+                        return null;
+
+                    entry = new Entry(read(channel, (int) channel.size()), lastModified);
+                }
+            } else if(chunkStore != null && chunkStore.getSize(file) >= 0) {
+                long size = chunkStore.getSize(file);
+                if(size > this.maxObjectSize)
+                    return null;
+
+                InputStream in = chunkStore.open(file);
+                if(in == null)
+                    return null;
+
+                try(ReadableByteChannel channel = Channels.newChannel(in)) {
+                    entry = new Entry(read(channel, (int) size), -1);
+                }
+            } else {
+                return null;
+            }
+
+            if(!Objects.equals(checksum, indexedChecksum(key)))
+                return null; // Changed while it was being read
+
+            synchronized (this) {
+                if(this.invalidations != invalidations)
+                    return null;
+
+                Entry old = this.entries.put(key, entry);
+                if(old != null)
+                    this.usedBytes -= old.buffer.capacity();
+                this.usedBytes += entry.buffer.capacity();
+
+                Iterator<Entry> iterator = this.entries.values().iterator();
+                while(this.usedBytes > this.maxBytes && iterator.hasNext()) {
+                    this.usedBytes -= iterator.next().buffer.capacity();
+                    iterator.remove();
+                }
+            }
+
+            return entry;
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("IOException while caching \"" + file + "\"");
+            return null;
+        } finally {
+            this.loading.remove(key);
+        }
+    }
+
+    private static String indexedChecksum(String path) {
+        Document doc = NectarServerApplication.getDb().getCollection("ftsIndex").find(Filters.eq("path", path)).first();
+        return doc == null ? null : doc.getString("checksum");
+    }
+
+    private static ByteBuffer read(ReadableByteChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) == -1)
+                throw new IOException("File shorter than expected");
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static class Entry {
+        private final ByteBuffer buffer;
+        private final long lastModified; // -1 if it was loaded from the chunk store
+
+        private Entry(ByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+
+        private boolean isCurrent(File file) {
+            // Files moved into the chunk store keep their contents, changes go through invalidate()
+            if(this.lastModified == -1 || !file.exists())
+                return true;
+
+            return file.lastModified() == this.lastModified && file.length() == this.buffer.capacity();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import lombok.Getter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Caches serialized /fts/checksumIndex responses per store and format,
+ * so unchanged stores don't have to be queried from MongoDB on every sync.
+ *
+ * Entries are dropped when a file in their store changes, and the least
+ * recently used entries are evicted to keep the cache under its byte budget.
+ *
+ * @author jython234
+ */
+public class IndexResponseCache {
+    private final long maxBytes;
+    private long usedBytes = 0;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Bumped on every invalidation, so a response built from an older listing is never stored
+    private final Map<String, Long> generations = new HashMap<>();
+
+    /**
+     * @param maxBytes Maximum total size of the cached responses.
+     */
+    public IndexResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param store The store key, from {@link MerkleTree#storeKey(boolean, String)}.
+     * @param format The response format.
+     * @return The cached response, or null.
+     */
+    public synchronized Entry get(String store, String format) {
+        return this.entries.get(store + ":" + format);
+    }
+
+    /**
+     * @return The current generation of a store, to be passed to {@link #put(String, String, long, long, byte[])}.
+     */
+    public synchronized long getGeneration(String store) {
+        return this.generations.getOrDefault(store, 0L);
+    }
+
+    /**
+     * Cache a response.
+     * @param generation The generation of the store from before it was listed.
+     *                   If the store changed since, the response is not cached.
+     * @param listedAt When the listing was started.
+     * @param body The serialized response.
+     * @return The entry for the response.
+     */
+    public synchronized Entry put(String store, String format, long generation, long listedAt, byte[] body) {
+        Entry entry = new Entry(store, listedAt, body);
+        if(generation != getGeneration(store) || body.length > this.maxBytes)
+            return entry;
+
+        Entry old = this.entries.put(store + ":" + format, entry);
+        if(old != null)
+            this.usedBytes -= old.getSize();
+        this.usedBytes += entry.getSize();
+
+        evict();
+        return entry;
+    }
+
+    /**
+     * Drop all cached responses of a store.
+     */
+    public synchronized void invalidate(String store) {
+        this.generations.put(store, getGeneration(store) + 1);
+
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.getStore().equals(store)) {
+                this.usedBytes -= entry.getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all cached responses.
+     */
+    public synchronized void invalidateAll() {
+        this.generations.replaceAll((store, generation) -> generation + 1);
+        this.entries.clear();
+        this.usedBytes = 0;
+    }
+
+    private synchronized void gzipped(Entry entry, byte[] gzipBody) {
+        entry.gzipBody = gzipBody;
+
+        // Only count it if the entry is still cached
+        if(this.entries.containsValue(entry)) {
+            this.usedBytes += gzipBody.length;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while(this.usedBytes > this.maxBytes && iterator.hasNext()) {
+            this.usedBytes -= iterator.next().getSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    public class Entry {
+        @Getter private final String store;
+        @Getter private final long listedAt;
+        @Getter private final byte[] body;
+        @Getter private final String etag;
+        private volatile byte[] gzipBody;
+
+        private Entry(String store, long listedAt, byte[] body) {
+            this.store = store;
+            this.listedAt = listedAt;
+            this.body = body;
+            this.etag = "\"" + DigestUtils.sha256Hex(body) + "\"";
+        }
+
+        /**
+         * @return The response compressed with gzip, compressed on first use.
+         */
+        public byte[] getGzipBody() {
+            if(this.gzipBody == null) {
+                synchronized (this) {
+                    if(this.gzipBody == null) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(this.body.length / 4);
+                        try(GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                            gzip.write(this.body);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        gzipped(this, out.toByteArray());
+                    }
+                }
+            }
+            return this.gzipBody;
+        }
+
+        private long getSize() {
+            byte[] gzipBody = this.gzipBody;
+            return this.body.length + (gzipBody == null ? 0 : gzipBody.length);
+        }
+    }
+}
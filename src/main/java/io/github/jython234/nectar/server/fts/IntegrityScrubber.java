@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import io.github.jython234.nectar.server.EventLog;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-hashes the files in the FTS stores in the background and compares
+ * them with the checksums in the "ftsIndex" collection, so silent
+ * corruption is found before a client downloads it.
+ *
+ * Files are checked in path order in a rolling cycle, and the position is
+ * saved in the "ftsScrubber" collection so a restart resumes where it stopped.
+ * Reading is limited to a budget of bytes per second, which is cut in half
+ * whenever FTS transfers are running or reads get slow, and then recovers
+ * gradually once the disk is quiet again.
+ *
+ * @author jython234
+ */
+public class IntegrityScrubber implements Runnable {
+    private static final String STATE_ID = "state";
+    private static final int BATCH_SIZE = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 10000;
+    private static final long ADJUST_INTERVAL = 1000;
+    /**
+     * Reading a buffer taking longer than this (on average) means the disk is busy.
+     */
+    private static final long SLOW_READ_NANOS = 20 * 1000 * 1000;
+    private static final int MAX_REPORTED = 50;
+
+    private final long budget;
+    private final long cycleInterval;
+    private final MongoCollection<Document> state;
+    private final Thread thread;
+
+    private volatile long rate;
+    private long lastAdjust = 0;
+    private double readLatency = 0;
+
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong bytesChecked = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final Deque<String> recentMismatches = new ArrayDeque<>();
+
+    /**
+     * @param budget Maximum amount of bytes read per second.
+     * @param cycleInterval Minimum time in milliseconds from the start of one cycle to the next.
+     */
+    public IntegrityScrubber(long budget, long cycleInterval) {
+        this.budget = budget;
+        this.rate = budget;
+        this.cycleInterval = cycleInterval;
+        this.state = NectarServerApplication.getDb().getCollection("ftsScrubber");
+
+        this.thread = new Thread(this, "IntegrityScrubber");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+
+        while(true) {
+            try {
+                Document checkpoint = this.state.find(Filters.eq("_id", STATE_ID)).first();
+                String lastPath = "";
+                long cycleStartedAt;
+
+                if(checkpoint != null && checkpoint.getBoolean("finished", false)) {
+                    // Previous cycle is done, wait for the next one
+                    long wait = checkpoint.getLong("cycleStartedAt") + this.cycleInterval - System.currentTimeMillis();
+                    if(wait > 0) {
+                        Thread.sleep(wait);
+                        continue;
+                    }
+                    cycleStartedAt = System.currentTimeMillis();
+                } else if(checkpoint != null) {
+                    // Resume the interrupted cycle
+                    lastPath = checkpoint.getString("lastPath");
+                    cycleStartedAt = checkpoint.getLong("cycleStartedAt");
+                } else {
+                    cycleStartedAt = System.currentTimeMillis();
+                }
+
+                saveCheckpoint(lastPath, cycleStartedAt, false);
+                scrubCycle(index, lastPath, cycleStartedAt);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                NectarServerApplication.getLogger().warn("Integrity scrubber failed, retrying in a minute");
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void scrubCycle(MongoCollection<Document> index, String lastPath, long cycleStartedAt) throws InterruptedException {
+        long lastCheckpoint = System.currentTimeMillis();
+
+        while(true) {
+            int seen = 0;
+            // Paged by path instead of holding a cursor open for the whole cycle, which may take hours
+            try(MongoCursor<Document> cursor = index.find(Filters.gt("path", lastPath))
+                    .projection(Projections.include("path", "checksum"))
+                    .sort(Sorts.ascending("path"))
+                    .limit(BATCH_SIZE)
+                    .iterator()) {
+
+                while(cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    lastPath = doc.getString("path");
+                    seen++;
+
+                    check(index, new File(lastPath), doc.getString("checksum"));
+
+                    if(System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                        saveCheckpoint(lastPath, cycleStartedAt, false);
+                        lastCheckpoint = System.currentTimeMillis();
+                    }
+                }
+            }
+
+            if(seen < BATCH_SIZE)
+                break;
+        }
+
+        // Cycle done, the next one starts from the beginning
+        saveCheckpoint("", cycleStartedAt, true);
+        NectarServerApplication.getLogger().info("Integrity scrub of the FTS finished, " + this.mismatches.get() + " mismatch(es) found since startup.");
+    }
+
+    private void check(MongoCollection<Document> index, File file, String expected) throws InterruptedException {
+        String checksum;
+        try {
+            checksum = hash(file, true);
+        } catch (IOException e) {
+            // Deleted or replaced meanwhile, or unreadable: confirm below
+            checksum = null;
+        }
+
+        this.filesChecked.incrementAndGet();
+        if(expected == null || expected.equals(checksum))
+            return;
+
+        // Confirm while no upload can replace the file, it may have changed since it was read
+        try(FileCommitter.PathLock lock = NectarServerApplication.getFileCommitter().lock(file)) {
+            Document doc = index.find(Filters.eq("path", file.getAbsolutePath())).projection(Projections.include("checksum")).first();
+            if(doc == null)
+                return; // Removed from the index meanwhile
+
+            expected = doc.getString("checksum");
+            try {
+                checksum = hash(file, false);
+            } catch (IOException e) {
+                checksum = null;
+            }
+
+            if(expected.equals(checksum))
+                return;
+        }
+
+        this.mismatches.incrementAndGet();
+        String message = checksum == null
+                ? "FTS file \"" + file + "\" is missing or unreadable, expected checksum " + expected
+                : "FTS file \"" + file + "\" is corrupt: checksum " + checksum + " does not match index checksum " + expected;
+
+        synchronized (this.recentMismatches) {
+            this.recentMismatches.addFirst(file.getAbsolutePath());
+            if(this.recentMismatches.size() > MAX_REPORTED)
+                this.recentMismatches.removeLast();
+        }
+
+        NectarServerApplication.getEventLog().logEntry(EventLog.EntryLevel.ERROR, message);
+    }
+
+    private String hash(File file, boolean throttled) throws IOException, InterruptedException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+        InputStream in = file.isFile() || chunkStore == null ? new FileInputStream(file) : chunkStore.open(file);
+        if(in == null)
+            throw new IOException(file + " not found");
+
+        try(InputStream stream = in) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(true) {
+                long start = System.nanoTime();
+                int read = stream.read(buffer);
+                if(read == -1)
+                    break;
+
+                digest.update(buffer, 0, read);
+                this.bytesChecked.addAndGet(read);
+
+                if(throttled)
+                    throttle(read, System.nanoTime() - start);
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Sleep long enough to stay within the current rate, adjusting
+     * the rate to the foreground load first.
+     */
+    private void throttle(int bytes, long readNanos) throws InterruptedException {
+        this.readLatency = this.readLatency * 0.9 + readNanos * 0.1;
+
+        long now = System.currentTimeMillis();
+        if(now - this.lastAdjust >= ADJUST_INTERVAL) {
+            this.lastAdjust = now;
+
+            TransferScheduler scheduler = NectarServerApplication.getTransferScheduler();
+            boolean busy = (scheduler != null && scheduler.getActiveTransfers() > 0) || this.readLatency > SLOW_READ_NANOS;
+            if(busy) {
+                // Back off quickly, recover slowly
+                this.rate = Math.max(this.budget / 64, this.rate / 2);
+            } else {
+                this.rate = Math.min(this.budget, this.rate + this.budget / 10);
+            }
+        }
+
+        long rate = Math.max(this.rate, 1);
+        Thread.sleep(bytes * 1000 / rate);
+    }
+
+    private void saveCheckpoint(String lastPath, long cycleStartedAt, boolean finished) {
+        this.state.updateOne(Filters.eq("_id", STATE_ID), new Document("$set", new Document()
+                .append("lastPath", lastPath)
+                .append("cycleStartedAt", cycleStartedAt)
+                .append("finished", finished)
+                .append("updatedAt", System.currentTimeMillis())
+        ), new UpdateOptions().upsert(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject root = new JSONObject();
+        root.put("budget", this.budget);
+        root.put("rate", this.rate);
+        root.put("filesChecked", this.filesChecked.get());
+        root.put("bytesChecked", this.bytesChecked.get());
+        root.put("mismatches", this.mismatches.get());
+
+        Document checkpoint = this.state.find(Filters.eq("_id", STATE_ID)).first();
+        if(checkpoint != null) {
+            root.put("lastPath", checkpoint.getString("lastPath"));
+            root.put("cycleStartedAt", checkpoint.getLong("cycleStartedAt"));
+            root.put("cycleFinished", checkpoint.getBoolean("finished", false));
+        }
+
+        JSONArray recent = new JSONArray();
+        synchronized (this.recentMismatches) {
+            recent.addAll(this.recentMismatches);
+        }
+        root.put("recentMismatches", recent);
+        return root;
+    }
+}
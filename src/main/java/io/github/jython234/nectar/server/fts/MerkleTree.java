@@ -0,0 +1,305 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.*;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import io.github.jython234.nectar.server.Util;
+import org.bson.Document;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Keeps a Merkle tree over each FTS store, so a client can find out
+ * what changed by comparing directory hashes from the root down,
+ * instead of downloading the whole checksum index.
+ *
+ * A file's hash is its checksum, a directory's hash is the SHA-256 of its
+ * entries (name, type and hash), sorted by name. Each directory is one
+ * document in the "ftsTree" collection, holding its hash and its entries.
+ *
+ * @author jython234
+ */
+public class MerkleTree {
+    /** Hash of a directory without any entries. */
+    public static final String EMPTY_HASH = Util.computeSHA256("");
+
+    private final MongoCollection<Document> nodes;
+
+    // Updates to the same store must not interleave, they all end at the root
+    private final Object[] locks = new Object[64];
+
+    public MerkleTree() {
+        this.nodes = NectarServerApplication.getDb().getCollection("ftsTree");
+        this.nodes.createIndex(Indexes.ascending("store", "dir"), new IndexOptions().unique(true));
+
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param owner The user owning the store, ignored for the public store.
+     * @return The key identifying a store in the tree.
+     */
+    public static String storeKey(boolean isPublic, String owner) {
+        return isPublic ? "public" : "usr/" + owner;
+    }
+
+    /**
+     * Set the hash of a file and update the hashes
+     * of all directories above it.
+     * @param store The store key, from {@link #storeKey(boolean, String)}.
+     * @param path The path of the file relative to the store.
+     * @param checksum The new checksum of the file.
+     */
+    public void update(String store, String path, String checksum) {
+        path = normalize(path);
+
+        synchronized (lockFor(store)) {
+            String name = baseName(path);
+            String dir = parent(path);
+            String hash = checksum;
+            boolean isDir = false;
+
+            while(true) {
+                Document node = this.nodes.find(Filters.and(Filters.eq("store", store), Filters.eq("dir", dir))).first();
+                List<Document> entries = node == null ? new ArrayList<>() : getEntries(node);
+
+                Document entry = new Document("name", name).append("dir", isDir).append("hash", hash);
+                int i = Collections.binarySearch(entries, entry, Comparator.comparing((Document e) -> e.getString("name")));
+                if(i >= 0) {
+                    entries.set(i, entry);
+                } else {
+                    entries.add(-i - 1, entry);
+                }
+
+                String nodeHash = hashEntries(entries);
+                this.nodes.updateOne(Filters.and(Filters.eq("store", store), Filters.eq("dir", dir)),
+                        Updates.combine(Updates.set("hash", nodeHash), Updates.set("entries", entries)),
+                        new UpdateOptions().upsert(true));
+
+                if(dir.isEmpty())
+                    break; // Reached the root
+
+                name = baseName(dir);
+                dir = parent(dir);
+                hash = nodeHash;
+                isDir = true;
+            }
+        }
+    }
+
+    /**
+     * Get a directory of the tree.
+     * @param store The store key, from {@link #storeKey(boolean, String)}.
+     * @param dir The path of the directory relative to the store, empty for the root.
+     * @return The directory's hash and entries as JSON, or null if it does not exist.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getNode(String store, String dir) {
+        dir = normalize(dir);
+
+        Document node = this.nodes.find(Filters.and(Filters.eq("store", store), Filters.eq("dir", dir))).first();
+        if(node == null && !dir.isEmpty())
+            return null;
+
+        JSONArray entries = new JSONArray();
+        if(node != null) {
+            for(Document entry : getEntries(node)) {
+                JSONObject entryJSON = new JSONObject();
+                entryJSON.put("name", entry.getString("name"));
+                entryJSON.put("dir", entry.getBoolean("dir"));
+                entryJSON.put("hash", entry.getString("hash"));
+                entries.add(entryJSON);
+            }
+        }
+
+        JSONObject root = new JSONObject();
+        root.put("dir", dir);
+        root.put("hash", node == null ? EMPTY_HASH : node.getString("hash"));
+        root.put("entries", entries);
+        return root;
+    }
+
+    /**
+     * @return The hash of a directory, the empty hash if the directory does not exist.
+     */
+    public String getHash(String store, String dir) {
+        Document node = this.nodes.find(Filters.and(Filters.eq("store", store), Filters.eq("dir", normalize(dir))))
+                .projection(Projections.include("hash")).first();
+        return node == null ? EMPTY_HASH : node.getString("hash");
+    }
+
+    /**
+     * Rebuild the trees of all stores from the "ftsIndex" collection.
+     * Called after the checksum index has been rebuilt on startup.
+     */
+    public void rebuild() {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        long generation = System.currentTimeMillis();
+
+        // Walk the index one store at a time, in the order of the (isPublic, owner, storePath) index
+        String store = null;
+        Map<String, TreeMap<String, Document>> dirs = new HashMap<>();
+        try(MongoCursor<Document> cursor = index.find()
+                .projection(Projections.include("isPublic", "owner", "storePath", "checksum"))
+                .sort(Sorts.ascending("isPublic", "owner", "storePath"))
+                .batchSize(1000)
+                .iterator()) {
+
+            while(cursor.hasNext()) {
+                Document doc = cursor.next();
+                boolean isPublic = doc.getBoolean("isPublic", false);
+                String owner = doc.getString("owner");
+                if(!isPublic && owner == null)
+                    continue; // Not migrated yet, will be picked up on the next start
+
+                String docStore = storeKey(isPublic, owner);
+                if(!docStore.equals(store)) {
+                    if(store != null)
+                        writeStore(store, dirs, generation);
+
+                    store = docStore;
+                    dirs.clear();
+                }
+
+                String path = normalize(doc.getString("storePath"));
+                if(!isPublic)
+                    path = path.substring(owner.length() + 1); // User store paths start with the user's name
+
+                dirs.computeIfAbsent(parent(path), k -> new TreeMap<>())
+                        .put(baseName(path), new Document("name", baseName(path)).append("dir", false).append("hash", doc.getString("checksum")));
+            }
+        }
+
+        if(store != null)
+            writeStore(store, dirs, generation);
+
+        // Anything not written by this rebuild no longer exists
+        this.nodes.deleteMany(Filters.ne("generation", generation));
+    }
+
+    private void writeStore(String store, Map<String, TreeMap<String, Document>> dirs, long generation) {
+        // Make sure every directory up to the root exists
+        for(String dir : new ArrayList<>(dirs.keySet())) {
+            while(!dir.isEmpty()) {
+                dir = parent(dir);
+                dirs.computeIfAbsent(dir, k -> new TreeMap<>());
+            }
+        }
+
+        // Hash the deepest directories first, so children are done before their parents
+        List<String> order = new ArrayList<>(dirs.keySet());
+        order.sort(Comparator.comparingInt((String dir) -> depth(dir)).reversed());
+
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for(String dir : order) {
+            List<Document> entries = new ArrayList<>(dirs.get(dir).values());
+            String hash = hashEntries(entries);
+
+            if(!dir.isEmpty()) {
+                dirs.get(parent(dir)).put(baseName(dir), new Document("name", baseName(dir)).append("dir", true).append("hash", hash));
+            }
+
+            writes.add(new ReplaceOneModel<>(Filters.and(Filters.eq("store", store), Filters.eq("dir", dir)),
+                    new Document("store", store)
+                            .append("dir", dir)
+                            .append("hash", hash)
+                            .append("entries", entries)
+                            .append("generation", generation),
+                    new UpdateOptions().upsert(true)));
+
+            if(writes.size() >= 1000) {
+                this.nodes.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                writes.clear();
+            }
+        }
+
+        if(!writes.isEmpty())
+            this.nodes.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+
+    private static String hashEntries(List<Document> entries) {
+        StringBuilder sb = new StringBuilder();
+        for(Document entry : entries) {
+            sb.append(entry.getString("name"))
+                    .append('\0')
+                    .append(entry.getBoolean("dir") ? 'd' : 'f')
+                    .append('\0')
+                    .append(entry.getString("hash"))
+                    .append('\n');
+        }
+        return Util.computeSHA256(sb.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Document> getEntries(Document node) {
+        return new ArrayList<>((List<Document>) node.get("entries"));
+    }
+
+    private static String normalize(String path) {
+        path = path.replace(File.separatorChar, '/');
+        while(path.startsWith("/"))
+            path = path.substring(1);
+        while(path.endsWith("/"))
+            path = path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    private static String parent(String path) {
+        int i = path.lastIndexOf('/');
+        return i < 0 ? "" : path.substring(0, i);
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static int depth(String dir) {
+        if(dir.isEmpty())
+            return 0;
+
+        int depth = 1;
+        for(int i = 0; i < dir.length(); i++) {
+            if(dir.charAt(i) == '/')
+                depth++;
+        }
+        return depth;
+    }
+
+    private Object lockFor(String store) {
+        return locks[(store.hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+}
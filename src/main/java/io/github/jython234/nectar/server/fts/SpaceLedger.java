@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import org.bson.Document;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how much space each FTS store uses, and of space
+ * promised to uploads still in progress.
+ *
+ * Uploads reserve their size before writing anything; a reservation is only
+ * granted if it fits both the store's quota and the free disk space (minus the
+ * configured threshold and all other outstanding reservations), so concurrent
+ * uploads can't overcommit the disk together. Free disk space is sampled on a
+ * timer instead of on every request, and is tracked for each FTS volume.
+ *
+ * @author jython234
+ */
+public class SpaceLedger {
+    public static final long SAMPLE_INTERVAL = 5000;
+
+    private final VolumeManager volumes;
+    private final long threshold;
+    private final ScheduledExecutorService sampler;
+
+    // All fields below are guarded by "this". Key String is the store key from MerkleTree.storeKey()
+    private final Map<String, Long> used = new HashMap<>();
+    private final Map<String, Long> reserved = new HashMap<>();
+    private final Map<VolumeManager.Volume, Long> volumeReserved = new HashMap<>();
+    private final Map<VolumeManager.Volume, Long> freeSpace = new HashMap<>();
+
+    /**
+     * @param volumes The FTS volumes.
+     * @param threshold Free space in bytes which must always be left on each volume.
+     */
+    public SpaceLedger(VolumeManager volumes, long threshold) {
+        this.volumes = volumes;
+        this.threshold = threshold;
+        sample();
+
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SpaceSampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sampler.scheduleWithFixedDelay(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Load each store's usage from the sizes in the "ftsIndex"
+     * collection, filling in sizes for entries which don't have one yet.
+     */
+    public void seed() {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        ChunkStore chunkStore = NectarServerApplication.getChunkStore();
+
+        for(Document doc : index.find(Filters.exists("size", false)).projection(Projections.include("path"))) {
+            File file = new File(doc.getString("path"));
+            long size = file.isFile() || chunkStore == null ? file.length() : Math.max(chunkStore.getSize(file), 0);
+            index.updateOne(Filters.eq("path", doc.getString("path")), Updates.set("size", size));
+        }
+
+        Map<String, Long> used = new HashMap<>();
+        for(Document group : index.aggregate(Arrays.asList(
+                Aggregates.group(new Document("isPublic", "$isPublic").append("owner", "$owner"), Accumulators.sum("total", "$size"))))) {
+
+            Document id = (Document) group.get("_id");
+            String store = MerkleTree.storeKey(id.getBoolean("isPublic", false), id.getString("owner"));
+            used.merge(store, ((Number) group.get("total")).longValue(), Long::sum);
+        }
+
+        synchronized (this) {
+            this.used.clear();
+            this.used.putAll(used);
+        }
+    }
+
+    /**
+     * Reserve space for an upload.
+     * @param store The store key, from {@link MerkleTree#storeKey(boolean, String)}.
+     * @param volume The volume the store is on.
+     * @param quota The store's quota in bytes, 0 for none.
+     * @param bytes Amount of space needed.
+     * @return The reservation, or null if there is not enough space.
+     *         It must be released once the upload is done.
+     */
+    public synchronized Reservation reserve(String store, VolumeManager.Volume volume, long quota, long bytes) {
+        if(quota > 0 && getUsedAndReserved(store) + bytes > quota) {
+            NectarServerApplication.getLogger().warn("Rejected file upload of size " + bytes / 1000 / 1000 + "MB: quota of " + store + " exceeded!");
+            return null;
+        }
+
+        long unreserved = this.freeSpace.getOrDefault(volume, 0L) - this.volumeReserved.getOrDefault(volume, 0L);
+        if(unreserved - bytes < this.threshold) {
+            NectarServerApplication.getLogger().warn(volume + " only has " + unreserved / 1000 / 1000
+                    + "MB of unreserved space left, rejected upload of " + bytes / 1000 / 1000 + "MB!");
+            return null;
+        }
+
+        this.reserved.merge(store, bytes, Long::sum);
+        this.volumeReserved.merge(volume, bytes, Long::sum);
+        return new Reservation(store, volume, bytes);
+    }
+
+    /**
+     * @return If an upload of this size would be over the store's quota.
+     */
+    public synchronized boolean isOverQuota(String store, long quota, long bytes) {
+        return quota > 0 && getUsedAndReserved(store) + bytes > quota;
+    }
+
+    /**
+     * Record a change in a store's usage, once the file has been written.
+     * @param store The store key, from {@link MerkleTree#storeKey(boolean, String)}.
+     * @param volume The volume the store is on.
+     * @param delta Bytes added (or removed, if negative).
+     */
+    public synchronized void adjust(String store, VolumeManager.Volume volume, long delta) {
+        this.used.merge(store, delta, Long::sum);
+
+        // Account for it until the next sample picks it up
+        this.freeSpace.merge(volume, -delta, Long::sum);
+    }
+
+    /**
+     * @return Bytes used by a store.
+     */
+    public synchronized long getUsed(String store) {
+        return this.used.getOrDefault(store, 0L);
+    }
+
+    private long getUsedAndReserved(String store) {
+        return this.used.getOrDefault(store, 0L) + this.reserved.getOrDefault(store, 0L);
+    }
+
+    private void sample() {
+        Map<VolumeManager.Volume, Long> freeSpace = new HashMap<>();
+        for(VolumeManager.Volume volume : this.volumes.getVolumes()) {
+            freeSpace.put(volume, volume.getRoot().getUsableSpace());
+        }
+
+        synchronized (this) {
+            this.freeSpace.putAll(freeSpace);
+        }
+    }
+
+    private synchronized void release(Reservation reservation) {
+        this.reserved.merge(reservation.store, -reservation.bytes, Long::sum);
+        if(this.reserved.get(reservation.store) == 0)
+            this.reserved.remove(reservation.store);
+        this.volumeReserved.merge(reservation.volume, -reservation.bytes, Long::sum);
+    }
+
+    /**
+     * Space reserved for an upload in progress.
+     */
+    public class Reservation implements AutoCloseable {
+        private final String store;
+        private final VolumeManager.Volume volume;
+        private final long bytes;
+        private boolean released = false;
+
+        private Reservation(String store, VolumeManager.Volume volume, long bytes) {
+            this.store = store;
+            this.volume = volume;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Give the space back, the actual usage is recorded with {@link SpaceLedger#adjust(String, VolumeManager.Volume, long)}.
+         */
+        @Override
+        public synchronized void close() {
+            if(!this.released) {
+                this.released = true;
+                release(this);
+            }
+        }
+    }
+}
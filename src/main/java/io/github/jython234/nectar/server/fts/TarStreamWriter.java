@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX (pax) tar archive to a stream, one file at
+ * a time, without buffering more than a block in memory.
+ *
+ * Names longer than the ustar limit and sizes over 8 GiB
+ * are written as pax extended headers.
+ *
+ * @author jython234
+ */
+public class TarStreamWriter {
+    private static final int BLOCK_SIZE = 512;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    public TarStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Add a regular file to the archive.
+     * @param name The path of the file in the archive.
+     * @param size The size of the file.
+     * @param modified Last modification time, in milliseconds.
+     * @param in The contents, exactly size bytes are read from it.
+     * @throws EOFException If the stream ends before size bytes.
+     * @throws IOException If there is an I/O error.
+     */
+    public void writeFile(String name, long size, long modified, InputStream in) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if(nameBytes.length > 100 || size > MAX_USTAR_SIZE) {
+            StringBuilder pax = new StringBuilder();
+            if(nameBytes.length > 100)
+                pax.append(paxRecord("path", name));
+            if(size > MAX_USTAR_SIZE)
+                pax.append(paxRecord("size", Long.toString(size)));
+
+            byte[] paxBytes = pax.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader("././@PaxHeader", paxBytes.length, modified, (byte) 'x');
+            this.out.write(paxBytes);
+            pad(paxBytes.length);
+        }
+
+        writeHeader(name, Math.min(size, MAX_USTAR_SIZE), modified, (byte) '0');
+
+        long remaining = size;
+        while(remaining > 0) {
+            int read = in.read(this.buffer, 0, (int) Math.min(this.buffer.length, remaining));
+            if(read == -1)
+                throw new EOFException(name + " is shorter than its size in the archive header");
+
+            this.out.write(this.buffer, 0, read);
+            remaining -= read;
+        }
+        pad(size);
+    }
+
+    /**
+     * Write the end of archive marker. The underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+        this.out.write(new byte[BLOCK_SIZE * 2]);
+        this.out.flush();
+    }
+
+    private void writeHeader(String name, long size, long modified, byte type) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+
+        putOctal(header, 100, 8, 0644);                 // mode
+        putOctal(header, 108, 8, 0);                    // uid
+        putOctal(header, 116, 8, 0);                    // gid
+        putOctal(header, 124, 12, size);                // size
+        putOctal(header, 136, 12, modified / 1000);     // mtime
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for(byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, checksum);
+
+        this.out.write(header);
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if(remainder != 0)
+            this.out.write(new byte[BLOCK_SIZE - remainder]);
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        // Zero padded octal digits followed by a NUL
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for(int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static String paxRecord(String key, String value) {
+        // "<length> <key>=<value>\n", where length includes its own digits
+        int base = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = base + Integer.toString(base).length();
+        if(Integer.toString(length).length() != Integer.toString(base).length())
+            length = base + Integer.toString(length).length();
+
+        return length + " " + key + "=" + value + "\n";
+    }
+}
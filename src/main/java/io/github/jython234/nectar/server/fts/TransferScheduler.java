@@ -0,0 +1,437 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.json.simple.JSONObject;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules FTS transfers, so a few large transfers can't saturate
+ * the link and disk while other clients are waiting.
+ *
+ * The amount of concurrent transfers is capped. A transfer over the cap
+ * is turned away at once instead of holding a request thread, and the
+ * client is put in a queue per user (or per client, for the public store
+ * which needs no login) until it retries. When a slot frees up it is
+ * reserved for the next client in line, taking the queues round robin so
+ * a single user can't take all the slots. User store transfers are
+ * interactive and are preferred over public store (rollout) transfers,
+ * which still get every {@link #BULK_SHARE}th slot so they aren't starved
+ * either. Clients that stop retrying lose their place and their reserved
+ * slot after {@link #RETRY_TIMEOUT}.
+ *
+ * The bytes sent by transfers are shaped by token buckets: one shared by
+ * all transfers and one per client. All limits can be changed at runtime.
+ *
+ * @author jython234
+ */
+public class TransferScheduler {
+    /**
+     * Time after which a queued client that has not retried loses its place or reserved slot.
+     */
+    public static final long RETRY_TIMEOUT = 15000;
+    /**
+     * One in this many slots go to bulk transfers while interactive ones are waiting.
+     */
+    public static final int BULK_SHARE = 4;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK
+    }
+
+    private int maxTransfers;
+    private long clientBandwidth;
+    private final TokenBucket globalBucket;
+
+    private int active = 0;
+    private long grants = 0;
+    private final Map<Priority, LinkedHashMap<String, Queue<Waiter>>> waiting = new EnumMap<>(Priority.class);
+    private final List<Waiter> reserved = new ArrayList<>();
+    private final Map<String, ClientBucket> clientBuckets = new HashMap<>();
+
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxTransfers Maximum amount of concurrent transfers, 0 for no limit.
+     * @param bandwidth Total bandwidth of all transfers in bytes per second, 0 for no limit.
+     * @param clientBandwidth Bandwidth of each client in bytes per second, 0 for no limit.
+     */
+    public TransferScheduler(int maxTransfers, long bandwidth, long clientBandwidth) {
+        this.maxTransfers = maxTransfers;
+        this.clientBandwidth = clientBandwidth;
+        this.globalBucket = new TokenBucket(bandwidth);
+
+        for(Priority priority : Priority.values()) {
+            this.waiting.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Take a transfer slot, without waiting for one.
+     * @param client The UUID of the client doing the transfer.
+     * @param queueKey The user (or client) the transfer is queued under.
+     * @param priority The priority class of the transfer.
+     * @return The transfer, which must be closed when done, or null if no slot is
+     *         free. In that case the client is queued and should retry shortly.
+     */
+    public synchronized Transfer acquire(String client, String queueKey, Priority priority) {
+        expire();
+
+        for(Iterator<Waiter> iterator = this.reserved.iterator(); iterator.hasNext(); ) {
+            Waiter waiter = iterator.next();
+            if(waiter.matches(client, queueKey, priority)) {
+                iterator.remove();
+                return grant(client, priority);
+            }
+        }
+
+        if(hasFreeSlot() && isQueueEmpty()) {
+            this.grants++;
+            return grant(client, priority);
+        }
+
+        Queue<Waiter> queue = this.waiting.get(priority).computeIfAbsent(queueKey, k -> new ArrayDeque<>());
+        Waiter waiter = null;
+        for(Waiter queued : queue) {
+            if(queued.client.equals(client)) {
+                waiter = queued;
+                break;
+            }
+        }
+
+        if(waiter == null) {
+            queue.add(new Waiter(client, queueKey, priority));
+            this.queued.incrementAndGet();
+        } else {
+            waiter.lastSeen = System.currentTimeMillis();
+        }
+        this.rejected.incrementAndGet();
+
+        return null;
+    }
+
+    /**
+     * Change the limits of all current and future transfers.
+     * @param maxTransfers Maximum amount of concurrent transfers, 0 for no limit.
+     * @param bandwidth Total bandwidth of all transfers in bytes per second, 0 for no limit.
+     * @param clientBandwidth Bandwidth of each client in bytes per second, 0 for no limit.
+     */
+    public synchronized void setLimits(int maxTransfers, long bandwidth, long clientBandwidth) {
+        this.maxTransfers = maxTransfers;
+        this.clientBandwidth = clientBandwidth;
+        this.globalBucket.setRate(bandwidth);
+        for(ClientBucket clientBucket : this.clientBuckets.values()) {
+            clientBucket.bucket.setRate(clientBandwidth);
+        }
+
+        dispatch(); // The cap may have been raised
+    }
+
+    /**
+     * @return Amount of transfers currently holding a slot.
+     */
+    public synchronized int getActiveTransfers() {
+        return this.active;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject getStats() {
+        JSONObject root = new JSONObject();
+        synchronized (this) {
+            root.put("maxTransfers", this.maxTransfers);
+            root.put("bandwidth", this.globalBucket.getRate());
+            root.put("clientBandwidth", this.clientBandwidth);
+            root.put("active", this.active);
+            root.put("reserved", this.reserved.size());
+
+            for(Priority priority : Priority.values()) {
+                int count = 0;
+                for(Queue<Waiter> queue : this.waiting.get(priority).values()) {
+                    count += queue.size();
+                }
+                root.put("waiting" + (priority == Priority.INTERACTIVE ? "Interactive" : "Bulk"), count);
+            }
+        }
+        root.put("transfers", this.transfers.get());
+        root.put("queued", this.queued.get());
+        root.put("rejected", this.rejected.get());
+        root.put("bytes", this.bytes.get());
+        return root;
+    }
+
+    private boolean hasFreeSlot() {
+        return this.maxTransfers <= 0 || this.active + this.reserved.size() < this.maxTransfers;
+    }
+
+    private boolean isQueueEmpty() {
+        return this.waiting.get(Priority.INTERACTIVE).isEmpty() && this.waiting.get(Priority.BULK).isEmpty();
+    }
+
+    private Transfer grant(String client, Priority priority) {
+        this.active++;
+        this.transfers.incrementAndGet();
+
+        ClientBucket clientBucket = this.clientBuckets.computeIfAbsent(client, k -> new ClientBucket(new TokenBucket(this.clientBandwidth)));
+        clientBucket.transfers++;
+        return new Transfer(client, clientBucket.bucket, priority);
+    }
+
+    private synchronized void release(Transfer transfer) {
+        this.active--;
+
+        ClientBucket clientBucket = this.clientBuckets.get(transfer.client);
+        if(--clientBucket.transfers == 0)
+            this.clientBuckets.remove(transfer.client);
+
+        expire();
+        dispatch();
+    }
+
+    /**
+     * Drop queued clients and reserved slots whose clients have stopped retrying.
+     */
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - RETRY_TIMEOUT;
+        boolean freed = this.reserved.removeIf(waiter -> waiter.lastSeen < cutoff);
+
+        for(LinkedHashMap<String, Queue<Waiter>> queues : this.waiting.values()) {
+            Iterator<Queue<Waiter>> iterator = queues.values().iterator();
+            while(iterator.hasNext()) {
+                Queue<Waiter> queue = iterator.next();
+                queue.removeIf(waiter -> waiter.lastSeen < cutoff);
+                if(queue.isEmpty())
+                    iterator.remove();
+            }
+        }
+
+        if(freed)
+            dispatch();
+    }
+
+    /**
+     * Reserve free slots for the queued clients next in line.
+     */
+    private void dispatch() {
+        while(hasFreeSlot() && !isQueueEmpty()) {
+            LinkedHashMap<String, Queue<Waiter>> interactive = this.waiting.get(Priority.INTERACTIVE);
+            LinkedHashMap<String, Queue<Waiter>> bulk = this.waiting.get(Priority.BULK);
+
+            LinkedHashMap<String, Queue<Waiter>> queues;
+            if(interactive.isEmpty())
+                queues = bulk;
+            else if(bulk.isEmpty())
+                queues = interactive;
+            else
+                queues = this.grants % BULK_SHARE == BULK_SHARE - 1 ? bulk : interactive;
+
+            // Take from the queue which has waited longest, then move it to the back
+            Iterator<Map.Entry<String, Queue<Waiter>>> iterator = queues.entrySet().iterator();
+            Map.Entry<String, Queue<Waiter>> next = iterator.next();
+            iterator.remove();
+
+            Waiter waiter = next.getValue().remove();
+            if(!next.getValue().isEmpty())
+                queues.put(next.getKey(), next.getValue());
+
+            // The slot is held until the client retries
+            waiter.lastSeen = System.currentTimeMillis();
+            this.reserved.add(waiter);
+            this.grants++;
+        }
+    }
+
+    /**
+     * A slot held by a running transfer.
+     */
+    public class Transfer implements AutoCloseable {
+        private final String client;
+        private final TokenBucket clientBucket;
+        private final Priority priority;
+        private boolean closed = false;
+
+        private Transfer(String client, TokenBucket clientBucket, Priority priority) {
+            this.client = client;
+            this.clientBucket = clientBucket;
+            this.priority = priority;
+        }
+
+        public Priority getPriority() {
+            return this.priority;
+        }
+
+        /**
+         * @return If the bytes of this transfer are being shaped, in which case
+         *         they must go through the wrapped streams.
+         */
+        public boolean isThrottled() {
+            return globalBucket.getRate() > 0 || this.clientBucket.getRate() > 0;
+        }
+
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    throttle(1);
+                    this.out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while(len > 0) {
+                        int chunk = Math.min(len, CHUNK_SIZE);
+                        throttle(chunk);
+                        this.out.write(b, off, chunk);
+                        off += chunk;
+                        len -= chunk;
+                    }
+                }
+            };
+        }
+
+        public InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = this.in.read();
+                    if(b >= 0)
+                        throttle(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = this.in.read(b, off, Math.min(len, CHUNK_SIZE));
+                    if(read > 0)
+                        throttle(read);
+                    return read;
+                }
+            };
+        }
+
+        private void throttle(int amount) throws IOException {
+            bytes.addAndGet(amount);
+            try {
+                globalBucket.take(amount);
+                this.clientBucket.take(amount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling transfer");
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if(this.closed)
+                    return;
+                this.closed = true;
+            }
+            release(this);
+        }
+    }
+
+    private static class Waiter {
+        private final String client;
+        private final String queueKey;
+        private final Priority priority;
+        private long lastSeen = System.currentTimeMillis();
+
+        private Waiter(String client, String queueKey, Priority priority) {
+            this.client = client;
+            this.queueKey = queueKey;
+            this.priority = priority;
+        }
+
+        private boolean matches(String client, String queueKey, Priority priority) {
+            return this.client.equals(client) && this.queueKey.equals(queueKey) && this.priority == priority;
+        }
+    }
+
+    private static class ClientBucket {
+        private final TokenBucket bucket;
+        private int transfers = 0;
+
+        private ClientBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Token bucket holding up to one second of bandwidth. Takers may go
+     * into debt and then sleep it off outside the lock, so concurrent
+     * transfers share the rate without blocking each other.
+     */
+    private static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        private synchronized long getRate() {
+            return this.rate;
+        }
+
+        private synchronized void setRate(long rate) {
+            this.rate = rate;
+            this.tokens = Math.min(this.tokens, rate);
+        }
+
+        private void take(long amount) throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                if(this.rate <= 0)
+                    return;
+
+                long now = System.nanoTime();
+                this.tokens = Math.min(this.rate, this.tokens + (now - this.lastRefill) * this.rate / 1e9);
+                this.lastRefill = now;
+
+                this.tokens -= amount;
+                if(this.tokens >= 0)
+                    return;
+
+                waitNanos = (long) (-this.tokens * 1e9 / this.rate);
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import io.github.jython234.nectar.server.Util;
+import io.github.jython234.nectar.server.fts.delta.VCDiffDecoder;
+import io.github.jython234.nectar.server.fts.delta.VCDiffEncoder;
+import org.bson.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the previous versions of FTS files as reverse deltas.
+ *
+ * The newest version of a file is the file in the store itself. Every
+ * older version is stored as a VCDIFF delta from the version that replaced
+ * it, so a version can be rebuilt by walking the chain back from the
+ * current file. Entries are kept in the "ftsVersions" collection.
+ *
+ * @author jython234
+ */
+public class VersionHistory {
+    private final int depth;
+    private final File historyDir;
+    private final MongoCollection<Document> versions;
+
+    public VersionHistory(int depth) {
+        this.depth = depth;
+        this.historyDir = new File(NectarServerApplication.getConfiguration().getFtsDirectory() + File.separator + "versionHistory");
+        this.versions = NectarServerApplication.getDb().getCollection("ftsVersions");
+
+        this.versions.createIndex(Indexes.ascending("path", "checksum"), new IndexOptions().unique(true));
+        this.versions.createIndex(Indexes.ascending("path", "createdAt"));
+    }
+
+    /**
+     * Record the current version of a file before it
+     * is replaced. Must be called while the old version is still in place.
+     * @param current The file as it is now in the store.
+     * @param currentChecksum Checksum of the current file.
+     * @param replacement The file which is about to replace it.
+     * @param replacementChecksum Checksum of the replacement.
+     */
+    public void record(File current, String currentChecksum, File replacement, String replacementChecksum) {
+        if(depth <= 0 || !current.exists() || currentChecksum == null || currentChecksum.equals(replacementChecksum))
+            return;
+
+        String path = current.getAbsolutePath();
+        File deltaFile = getDeltaFile(current, currentChecksum);
+
+        try {
+            if(!deltaFile.getParentFile().exists() && !deltaFile.getParentFile().mkdirs())
+                throw new IOException("mkdirs() call failed for " + deltaFile.getParentFile());
+
+            // Reverse delta: rebuilds the current version from its replacement
+            VCDiffEncoder.encode(replacement, current, deltaFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            NectarServerApplication.getLogger().warn("Failed to store previous version of \"" + path + "\", history not recorded.");
+            return;
+        }
+
+        versions.deleteOne(Filters.and(Filters.eq("path", path), Filters.eq("checksum", currentChecksum)));
+        versions.insertOne(new Document()
+                .append("path", path)
+                .append("checksum", currentChecksum)
+                .append("next", replacementChecksum)
+                .append("deltaSize", deltaFile.length())
+                .append("createdAt", System.currentTimeMillis())
+        );
+
+        prune(path);
+    }
+
+    /**
+     * Rebuild an older version of a file.
+     * @param current The current file in the store.
+     * @param contents A regular file with the current contents, the file itself unless it is deduplicated.
+     * @param currentChecksum The checksum of the current file.
+     * @param checksum The checksum of the version wanted.
+     * @param output Where to write the rebuilt version.
+     * @return If the version was found in the history and rebuilt.
+     * @throws IOException If there is an I/O error or a stored delta is corrupt.
+     */
+    public boolean reconstruct(File current, File contents, String currentChecksum, String checksum, File output) throws IOException {
+        List<Document> chain = findChain(current.getAbsolutePath(), currentChecksum, checksum);
+        if(chain == null)
+            return false;
+
+        // Apply the reverse deltas newest first, ping-ponging between two temporary files
+        File source = contents;
+        File scratch = null;
+        try {
+            for(int i = chain.size() - 1; i >= 0; i--) {
+                File out = i == 0 ? output : File.createTempFile("nectar-version", ".tmp", output.getParentFile());
+                VCDiffDecoder.decode(source, getDeltaFile(current, chain.get(i).getString("checksum")), out);
+
+                if(scratch != null && !scratch.delete())
+                    scratch.deleteOnExit();
+                scratch = out == output ? null : out;
+                source = out;
+            }
+        } finally {
+            if(scratch != null && !scratch.delete())
+                scratch.deleteOnExit();
+        }
+
+        return true;
+    }
+
+    /**
+     * Get a delta which upgrades an older version of a file to the
+     * current one, generating it if it is not already cached.
+     * The caller must hold the file's {@link FileCommitter#lock(File)}.
+     * A delta is only cached if the rebuilt version has the checksum asked
+     * for and the index still lists the current checksum.
+     * @param current The current file in the store.
+     * @param contents A regular file with the current contents, the file itself unless it is deduplicated.
+     * @param currentChecksum The checksum of the current file.
+     * @param checksum The checksum of the version the client has.
+     * @param cacheFile Where the delta is cached.
+     * @return The cached delta, or null if the version is not in the history or could not be verified.
+     * @throws IOException If there is an I/O error while generating the delta.
+     */
+    public File getDeltaFrom(File current, File contents, String currentChecksum, String checksum, File cacheFile) throws IOException {
+        if(cacheFile.exists())
+            return cacheFile;
+
+        if(!cacheFile.getParentFile().exists() && !cacheFile.getParentFile().mkdirs())
+            throw new IOException("mkdirs() call failed for " + cacheFile.getParentFile());
+
+        File old = File.createTempFile("nectar-version", ".tmp", cacheFile.getParentFile());
+        File delta = File.createTempFile("nectar-delta", ".tmp", cacheFile.getParentFile());
+        try {
+            if(!reconstruct(current, contents, currentChecksum, checksum, old))
+                return null;
+
+            if(!checksum.equals(Util.computeFileSHA256Checksum(old))) {
+                NectarServerApplication.getLogger().warn("Rebuilt version " + checksum + " of \"" + current + "\" has the wrong checksum, not caching a delta.");
+                return null;
+            }
+
+            VCDiffEncoder.encode(old, contents, delta);
+
+            Document indexed = NectarServerApplication.getDb().getCollection("ftsIndex").find(Filters.eq("path", current.getAbsolutePath())).first();
+            if(indexed == null || !currentChecksum.equals(indexed.getString("checksum")))
+                return null; // Changed since the caller looked, the delta would be cached under the wrong key
+
+            Files.move(delta.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(old.exists() && !old.delete())
+                old.deleteOnExit();
+            if(delta.exists() && !delta.delete())
+                delta.deleteOnExit();
+        }
+
+        return cacheFile;
+    }
+
+    /**
+     * Remove the whole history of a file.
+     * @param file The file in the store.
+     */
+    public void forget(File file) {
+        String path = file.getAbsolutePath();
+        for(Document doc : versions.find(Filters.eq("path", path))) {
+            File delta = getDeltaFile(file, doc.getString("checksum"));
+            if(delta.exists() && !delta.delete())
+                NectarServerApplication.getLogger().warn("Failed to delete version delta " + delta);
+        }
+        versions.deleteMany(Filters.eq("path", path));
+    }
+
+    private List<Document> findChain(String path, String currentChecksum, String checksum) {
+        List<Document> chain = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+
+        String wanted = checksum;
+        while(!wanted.equals(currentChecksum)) {
+            if(!seen.add(wanted) || chain.size() > depth)
+                return null; // Cycle or a chain longer than we keep, give up
+
+            Document doc = versions.find(Filters.and(Filters.eq("path", path), Filters.eq("checksum", wanted))).first();
+            if(doc == null)
+                return null;
+
+            chain.add(doc);
+            wanted = doc.getString("next");
+        }
+
+        return chain;
+    }
+
+    private void prune(String path) {
+        int kept = 0;
+        for(Document doc : versions.find(Filters.eq("path", path)).sort(Sorts.descending("createdAt"))) {
+            if(++kept <= depth)
+                continue;
+
+            File delta = getDeltaFile(new File(path), doc.getString("checksum"));
+            if(delta.exists() && !delta.delete())
+                NectarServerApplication.getLogger().warn("Failed to delete old version delta " + delta);
+
+            versions.deleteOne(Filters.and(Filters.eq("path", path), Filters.eq("checksum", doc.getString("checksum"))));
+        }
+    }
+
+    private File getDeltaFile(File file, String checksum) {
+        String relative = NectarServerApplication.getVolumeManager().relativeToVolume(file);
+        return new File(historyDir + relative + File.separator + checksum + ".vcdiff");
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import io.github.jython234.nectar.server.NectarServerApplication;
+import lombok.Getter;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the FTS stores over several root directories
+ * (volumes), usually each on its own disk.
+ *
+ * The first volume is the FTS directory, which also holds the public store and
+ * everything which isn't a store (delta caches, chunks, history). Each user store
+ * lives on one volume: the one it already exists on, or for new users the one
+ * picked by hashing the username, so adding volumes doesn't move existing stores.
+ *
+ * Public files which are downloaded often are copied to the other volumes, and
+ * downloads are then spread over the copies. Copies are stored by checksum, so a
+ * copy can never be served for a different version of the file.
+ *
+ * Each volume has its own I/O thread pool, so work queued for a slow disk
+ * doesn't hold up the others.
+ *
+ * @author jython234
+ */
+public class VolumeManager {
+    @Getter private final List<Volume> volumes;
+    private final int replicateAfter;
+
+    private final Map<String, Volume> userVolumes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> replicating = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * @param roots The root directories, the first being the FTS directory.
+     * @param ioThreads Amount of I/O threads for each volume.
+     * @param replicateAfter Amount of downloads after which a public file is copied to all volumes, 0 to never copy.
+     */
+    public VolumeManager(List<String> roots, int ioThreads, int replicateAfter) {
+        List<Volume> volumes = new ArrayList<>();
+        for(int i = 0; i < roots.size(); i++) {
+            volumes.add(new Volume(i, new File(roots.get(i)).getAbsoluteFile(), ioThreads));
+        }
+        this.volumes = Collections.unmodifiableList(volumes);
+        this.replicateAfter = replicateAfter;
+    }
+
+    public Volume getPrimary() {
+        return this.volumes.get(0);
+    }
+
+    /**
+     * Find the volume a store is placed on.
+     * @param isPublic If the store is the public store.
+     * @param owner The owner of the store, ignored for the public store.
+     */
+    public Volume forStore(boolean isPublic, String owner) {
+        if(isPublic || this.volumes.size() == 1)
+            return getPrimary();
+
+        return this.userVolumes.computeIfAbsent(owner, user -> {
+            for(Volume volume : this.volumes) {
+                if(new File(volume.getUsrStore(), user).isDirectory())
+                    return volume;
+            }
+
+            int hash = user.hashCode();
+            hash ^= hash >>> 16;
+            return this.volumes.get((hash & Integer.MAX_VALUE) % this.volumes.size());
+        });
+    }
+
+    /**
+     * @param isPublic If the store is the public store.
+     * @param owner The owner of the store, ignored for the public store.
+     * @return The root directory of a store.
+     */
+    public File getStoreDir(boolean isPublic, String owner) {
+        Volume volume = forStore(isPublic, owner);
+        return isPublic ? volume.getPublicStore() : new File(volume.getUsrStore(), owner);
+    }
+
+    /**
+     * @return The volume a file is on, or null if it isn't on any of them.
+     */
+    public Volume volumeOf(File file) {
+        String path = file.getAbsolutePath();
+        for(Volume volume : this.volumes) {
+            if(path.startsWith(volume.getRoot().getPath() + File.separator))
+                return volume;
+        }
+        return null;
+    }
+
+    /**
+     * @return The path of a file relative to the root of its volume,
+     *         starting with a separator. For example "/usrStore/user/file".
+     */
+    public String relativeToVolume(File file) {
+        Volume volume = volumeOf(file);
+        String path = file.getAbsolutePath();
+        return volume == null ? path : path.substring(volume.getRoot().getPath().length());
+    }
+
+    /**
+     * @return The path of a file relative to the store directory, including the
+     *         owner for user stores. For example "user/file".
+     */
+    public String relativeToStore(File file) {
+        String relative = relativeToVolume(file);
+        for(String store : new String[] { "publicStore", "usrStore" }) {
+            String prefix = File.separator + store + File.separator;
+            if(relative.startsWith(prefix))
+                return relative.substring(prefix.length());
+        }
+        return relative;
+    }
+
+    /**
+     * Create a temporary file to receive new contents of a store file in.
+     * It is on the same volume as the file, so it can be atomically moved
+     * into place, but outside the stores so it is never indexed.
+     * @param target The file in the store the contents are for.
+     * @param suffix The suffix of the temporary file.
+     * @return The new, empty temporary file.
+     * @throws IOException If the file could not be created.
+     */
+    public File createStagingFile(File target, String suffix) throws IOException {
+        return File.createTempFile("." + target.getName() + ".", suffix, volumeOf(target).getStagingDir());
+    }
+
+    /**
+     * Pick the copy of a public file a download should be sent from,
+     * and count the download towards copying it to all volumes.
+     * @param file The file in the public store.
+     * @return The file or one of its up to date copies.
+     */
+    public File pickReplica(File file) {
+        if(this.volumes.size() == 1)
+            return file;
+
+        String checksum = indexedChecksum(file);
+        if(checksum == null)
+            return file;
+
+        List<File> candidates = new ArrayList<>();
+        candidates.add(file);
+        for(File replica : getReplicaFiles(file, checksum)) {
+            if(replica.isFile())
+                candidates.add(replica);
+        }
+
+        if(candidates.size() < this.volumes.size() && this.replicateAfter > 0) {
+            AtomicInteger count = this.downloads.computeIfAbsent(file.getAbsolutePath(), k -> new AtomicInteger());
+            if(count.incrementAndGet() >= this.replicateAfter) {
+                this.downloads.remove(file.getAbsolutePath());
+                replicate(file);
+            }
+        }
+
+        return candidates.get(Math.floorMod(this.nextReplica.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * Copy a public file to all other volumes in the background.
+     * @param file The file in the public store.
+     */
+    public void replicate(File file) {
+        String checksum = indexedChecksum(file);
+        if(checksum == null)
+            return;
+
+        for(File replica : getReplicaFiles(file, checksum)) {
+            if(replica.isFile() || this.replicating.putIfAbsent(replica.getAbsolutePath(), true) != null)
+                continue;
+
+            volumeOf(replica).getIoPool().submit(() -> {
+                try {
+                    File parent = replica.getParentFile();
+                    if(!parent.exists() && !parent.mkdirs() && !parent.isDirectory())
+                        throw new IOException("mkdirs() call failed for " + parent);
+
+                    File tmp = File.createTempFile("." + replica.getName() + ".", ".replica.tmp", parent);
+                    try {
+                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                        try(InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+                            Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+
+                        // The file may have changed since its checksum was looked up, only keep copies of that version
+                        if(Hex.encodeHexString(digest.digest()).equals(checksum))
+                            Files.move(tmp.toPath(), replica.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        if(tmp.exists() && !tmp.delete())
+                            tmp.deleteOnExit();
+                    }
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                    NectarServerApplication.getLogger().warn("Failed to copy public file \"" + file + "\" to " + replica);
+                } finally {
+                    this.replicating.remove(replica.getAbsolutePath());
+                }
+            });
+        }
+    }
+
+    /**
+     * Reset the download count of a public file, once it has changed.
+     * Copies are stored by checksum, so the new contents get new copies
+     * and the old ones are removed by {@link #pruneReplicas()}.
+     * @param file The file in the public store.
+     */
+    public void dropReplicas(File file) {
+        this.downloads.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Delete copies of contents no longer in the public store.
+     */
+    public void pruneReplicas() {
+        MongoCollection<Document> index = NectarServerApplication.getDb().getCollection("ftsIndex");
+        for(Volume volume : this.volumes) {
+            if(volume != getPrimary())
+                pruneReplicaDir(volume.getReplicaDir(), index);
+        }
+    }
+
+    private void pruneReplicaDir(File dir, MongoCollection<Document> index) {
+        File[] contents = dir.listFiles();
+        if(contents == null)
+            return;
+
+        for(File file : contents) {
+            if(file.isDirectory()) {
+                pruneReplicaDir(file, index);
+                String[] left = file.list();
+                if(left != null && left.length == 0 && !file.delete())
+                    NectarServerApplication.getLogger().warn("Failed to delete empty copy directory " + file);
+            } else if(index.find(Filters.and(Filters.eq("isPublic", true), Filters.eq("checksum", file.getName()))).first() == null
+                    && !file.delete()) {
+                NectarServerApplication.getLogger().warn("Failed to delete unused copy " + file);
+            }
+        }
+    }
+
+    private List<File> getReplicaFiles(File file, String checksum) {
+        List<File> replicas = new ArrayList<>();
+        if(volumeOf(file) != getPrimary())
+            return replicas;
+
+        for(Volume volume : this.volumes) {
+            if(volume != getPrimary())
+                replicas.add(new File(volume.getReplicaDir(), checksum.substring(0, 2) + File.separator + checksum));
+        }
+        return replicas;
+    }
+
+    private static String indexedChecksum(File file) {
+        Document doc = NectarServerApplication.getDb().getCollection("ftsIndex")
+                .find(Filters.eq("path", file.getAbsolutePath())).projection(Projections.include("checksum")).first();
+        return doc == null ? null : doc.getString("checksum");
+    }
+
+    /**
+     * An FTS root directory.
+     */
+    public static class Volume {
+        @Getter private final int number;
+        @Getter private final File root;
+        @Getter private final File publicStore;
+        @Getter private final File usrStore;
+        @Getter private final File replicaDir;
+        @Getter private final File stagingDir;
+        @Getter private final ExecutorService ioPool;
+
+        private Volume(int number, File root, int ioThreads) {
+            this.number = number;
+            this.root = root;
+            this.publicStore = new File(root, "publicStore");
+            this.usrStore = new File(root, "usrStore");
+            this.replicaDir = new File(root, "replicas");
+            this.stagingDir = new File(root, "staging");
+
+            // Only the first volume holds the public store, the others hold copies of its popular files
+            for(File dir : number == 0 ? new File[] { root, this.publicStore, this.usrStore, this.stagingDir } : new File[] { root, this.usrStore, this.stagingDir }) {
+                if(!dir.exists() && !dir.mkdirs()) {
+                    NectarServerApplication.getLogger().error("Failed to create FTS volume directory " + dir + "! (mkdir failed)");
+                    System.exit(1);
+                }
+            }
+
+            // Anything still staged was being received when the server stopped
+            File[] leftovers = this.stagingDir.listFiles();
+            if(leftovers != null) {
+                for(File leftover : leftovers) {
+                    if(!leftover.delete())
+                        NectarServerApplication.getLogger().warn("Failed to delete leftover staging file " + leftover);
+                }
+            }
+
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.ioPool = Executors.newFixedThreadPool(ioThreads, r -> {
+                Thread thread = new Thread(r, "Volume" + number + "-IO-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public String toString() {
+            return "Volume " + this.number + " (" + this.root + ")";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts.delta;
+
+/**
+ * The default VCDIFF instruction code table, as
+ * defined in section 5.6 of RFC 3284.
+ *
+ * @author jython234
+ */
+final class VCDiffCodeTable {
+    static final byte NOOP = 0;
+    static final byte ADD = 1;
+    static final byte RUN = 2;
+    static final byte COPY = 3;
+
+    static final int NEAR_SIZE = 4;
+    static final int SAME_SIZE = 3;
+
+    /** Index of the ADD instruction with an explicit size. */
+    static final int ADD_EXPLICIT = 1;
+    /** Index of the RUN instruction with an explicit size. */
+    static final int RUN_EXPLICIT = 0;
+    /** Index of the COPY instruction in mode 0 (VCD_SELF) with an explicit size. */
+    static final int COPY_SELF_EXPLICIT = 19;
+
+    static final byte[] TYPE1 = new byte[256];
+    static final byte[] SIZE1 = new byte[256];
+    static final byte[] MODE1 = new byte[256];
+    static final byte[] TYPE2 = new byte[256];
+    static final byte[] SIZE2 = new byte[256];
+    static final byte[] MODE2 = new byte[256];
+
+    static {
+        int i = 0;
+
+        // RUN with explicit size
+        TYPE1[i] = RUN;
+        i++;
+
+        // ADD, size 0 (explicit) and 1-17
+        for(int size = 0; size <= 17; size++, i++) {
+            TYPE1[i] = ADD;
+            SIZE1[i] = (byte) size;
+        }
+
+        // COPY in every mode, size 0 (explicit) and 4-18
+        for(int mode = 0; mode < 2 + NEAR_SIZE + SAME_SIZE; mode++) {
+            TYPE1[i] = COPY;
+            MODE1[i] = (byte) mode;
+            i++;
+
+            for(int size = 4; size <= 18; size++, i++) {
+                TYPE1[i] = COPY;
+                SIZE1[i] = (byte) size;
+                MODE1[i] = (byte) mode;
+            }
+        }
+
+        // ADD 1-4 followed by COPY 4-6, modes 0-5
+        for(int mode = 0; mode < 6; mode++) {
+            for(int addSize = 1; addSize <= 4; addSize++) {
+                for(int copySize = 4; copySize <= 6; copySize++, i++) {
+                    setPair(i, ADD, addSize, 0, COPY, copySize, mode);
+                }
+            }
+        }
+
+        // ADD 1-4 followed by COPY 4, modes 6-8
+        for(int mode = 6; mode < 9; mode++) {
+            for(int addSize = 1; addSize <= 4; addSize++, i++) {
+                setPair(i, ADD, addSize, 0, COPY, 4, mode);
+            }
+        }
+
+        // COPY 4 in every mode followed by ADD 1
+        for(int mode = 0; mode < 9; mode++, i++) {
+            setPair(i, COPY, 4, mode, ADD, 1, 0);
+        }
+    }
+
+    private VCDiffCodeTable() {}
+
+    private static void setPair(int i, byte type1, int size1, int mode1, byte type2, int size2, int mode2) {
+        TYPE1[i] = type1;
+        SIZE1[i] = (byte) size1;
+        MODE1[i] = (byte) mode1;
+        TYPE2[i] = type2;
+        SIZE2[i] = (byte) size2;
+        MODE2[i] = (byte) mode2;
+    }
+}
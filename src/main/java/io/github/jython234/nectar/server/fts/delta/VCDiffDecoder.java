@@ -0,0 +1,400 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts.delta;
+
+import java.io.*;
+import java.util.zip.Adler32;
+
+/**
+ * Streaming decoder for VCDIFF (RFC 3284) deltas, as
+ * produced by xdelta3 and {@link VCDiffEncoder}.
+ *
+ * The source file and the output are accessed randomly, while
+ * the delta is read once front to back. Only one target window
+ * (at most {@link #MAX_WINDOW_SIZE} bytes) is held in memory at a time.
+ *
+ * Secondary compression and custom code tables are not supported,
+ * the xdelta3 adler32 window checksum extension is.
+ *
+ * @author jython234
+ */
+public class VCDiffDecoder {
+    /** Largest target window accepted, same as xdelta3's hard limit. */
+    public static final int MAX_WINDOW_SIZE = 1 << 24;
+
+    static final byte[] MAGIC = { (byte) 0xD6, (byte) 0xC3, (byte) 0xC4 };
+
+    static final int VCD_DECOMPRESS = 0x01;
+    static final int VCD_CODETABLE = 0x02;
+    static final int VCD_APPHEADER = 0x04;
+
+    static final int VCD_SOURCE = 0x01;
+    static final int VCD_TARGET = 0x02;
+    static final int VCD_ADLER32 = 0x04;
+
+    private final RandomAccessFile source;
+    private final InputStream delta;
+    private final RandomAccessFile target;
+
+    private long targetLength = 0;
+
+    private VCDiffDecoder(RandomAccessFile source, InputStream delta, RandomAccessFile target) {
+        this.source = source;
+        this.delta = delta;
+        this.target = target;
+    }
+
+    /**
+     * Decode a VCDIFF delta against a source file, writing
+     * the reconstructed file to a target.
+     * @param source The file the delta was created against, or null if
+     *               the delta does not reference a source.
+     * @param delta The VCDIFF delta file.
+     * @param target The file to write the result to. It must not be the source
+     *               file, any existing content is overwritten.
+     * @throws IOException If there is an I/O error or the delta is invalid.
+     */
+    public static void decode(File source, File delta, File target) throws IOException {
+        try(RandomAccessFile src = source == null ? null : new RandomAccessFile(source, "r");
+            InputStream in = new BufferedInputStream(new FileInputStream(delta), 64 * 1024);
+            RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+
+            out.setLength(0);
+            new VCDiffDecoder(src, in, out).run();
+        }
+    }
+
+    private void run() throws IOException {
+        readHeader();
+
+        int winIndicator;
+        while((winIndicator = delta.read()) != -1) {
+            decodeWindow(winIndicator);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        for(byte b : MAGIC) {
+            if(delta.read() != (b & 0xFF))
+                throw new IOException("Not a VCDIFF delta (bad magic)");
+        }
+
+        if(readByte() != 0)
+            throw new IOException("Unsupported VCDIFF version");
+
+        int hdrIndicator = readByte();
+        if((hdrIndicator & VCD_DECOMPRESS) != 0)
+            throw new IOException("VCDIFF secondary compression is not supported");
+        if((hdrIndicator & VCD_CODETABLE) != 0)
+            throw new IOException("Custom VCDIFF code tables are not supported");
+
+        if((hdrIndicator & VCD_APPHEADER) != 0) {
+            long skip = readInt();
+            while(skip > 0) {
+                long skipped = delta.skip(skip);
+                if(skipped <= 0) {
+                    readByte(); // Throws on EOF
+                    skipped = 1;
+                }
+                skip -= skipped;
+            }
+        }
+    }
+
+    private void decodeWindow(int winIndicator) throws IOException {
+        if((winIndicator & ~(VCD_SOURCE | VCD_TARGET | VCD_ADLER32)) != 0
+                || (winIndicator & (VCD_SOURCE | VCD_TARGET)) == (VCD_SOURCE | VCD_TARGET))
+            throw new IOException("Invalid VCDIFF window indicator: " + winIndicator);
+
+        long segLength = 0;
+        Segment segment = null;
+        if((winIndicator & (VCD_SOURCE | VCD_TARGET)) != 0) {
+            segLength = readInt();
+            long segPosition = readInt();
+
+            RandomAccessFile file;
+            long available;
+            if((winIndicator & VCD_SOURCE) != 0) {
+                if(source == null)
+                    throw new IOException("Delta references a source file, but none was provided");
+                file = source;
+                available = source.length();
+            } else {
+                file = target;
+                available = targetLength;
+            }
+
+            if(segPosition + segLength > available)
+                throw new IOException("VCDIFF source segment out of range");
+
+            segment = new Segment(file, segPosition);
+        }
+
+        readInt(); // Length of the delta encoding, we don't need it
+        long windowLength = readInt();
+        if(windowLength > MAX_WINDOW_SIZE)
+            throw new IOException("VCDIFF target window too large: " + windowLength);
+
+        if(readByte() != 0)
+            throw new IOException("VCDIFF section compression is not supported");
+
+        byte[] data = new byte[checkSection(readInt())];
+        byte[] inst = new byte[checkSection(readInt())];
+        byte[] addr = new byte[checkSection(readInt())];
+
+        long checksum = -1;
+        if((winIndicator & VCD_ADLER32) != 0) {
+            checksum = ((long) readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        readFully(data);
+        readFully(inst);
+        readFully(addr);
+
+        byte[] window = new byte[(int) windowLength];
+        new WindowDecoder(segment, segLength, data, inst, addr, window).decode();
+
+        if(checksum != -1) {
+            Adler32 adler = new Adler32();
+            adler.update(window);
+            if(adler.getValue() != checksum)
+                throw new IOException("VCDIFF window checksum mismatch");
+        }
+
+        target.seek(targetLength);
+        target.write(window);
+        targetLength += window.length;
+    }
+
+    private int checkSection(long length) throws IOException {
+        // A window can't need more data than the window itself plus a size/address for every byte
+        if(length > MAX_WINDOW_SIZE * 2L)
+            throw new IOException("VCDIFF section too large: " + length);
+        return (int) length;
+    }
+
+    private int readByte() throws IOException {
+        int b = delta.read();
+        if(b == -1)
+            throw new EOFException("Unexpected end of VCDIFF delta");
+        return b;
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        int off = 0;
+        while(off < b.length) {
+            int read = delta.read(b, off, b.length - off);
+            if(read == -1)
+                throw new EOFException("Unexpected end of VCDIFF delta");
+            off += read;
+        }
+    }
+
+    private long readInt() throws IOException {
+        long value = 0;
+        for(int i = 0; i < 9; i++) {
+            int b = readByte();
+            value = (value << 7) | (b & 0x7F);
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("VCDIFF integer overflow");
+    }
+
+    /**
+     * Decodes the instructions of a single window into
+     * the target window buffer.
+     */
+    private static class WindowDecoder {
+        private final Segment segment;
+        private final long segLength;
+        private final byte[] data, inst, addr;
+        private final byte[] window;
+
+        private int dataPos, instPos, addrPos, windowPos;
+
+        private final long[] near = new long[VCDiffCodeTable.NEAR_SIZE];
+        private final long[] same = new long[VCDiffCodeTable.SAME_SIZE * 256];
+        private int nextSlot = 0;
+
+        WindowDecoder(Segment segment, long segLength, byte[] data, byte[] inst, byte[] addr, byte[] window) {
+            this.segment = segment;
+            this.segLength = segLength;
+            this.data = data;
+            this.inst = inst;
+            this.addr = addr;
+            this.window = window;
+        }
+
+        void decode() throws IOException {
+            while(instPos < inst.length) {
+                int code = inst[instPos++] & 0xFF;
+
+                execute(VCDiffCodeTable.TYPE1[code], VCDiffCodeTable.SIZE1[code], VCDiffCodeTable.MODE1[code]);
+                execute(VCDiffCodeTable.TYPE2[code], VCDiffCodeTable.SIZE2[code], VCDiffCodeTable.MODE2[code]);
+            }
+
+            if(windowPos != window.length || dataPos != data.length || addrPos != addr.length)
+                throw new IOException("VCDIFF window sections do not match the target window length");
+        }
+
+        private void execute(byte type, int size, int mode) throws IOException {
+            if(type == VCDiffCodeTable.NOOP)
+                return;
+
+            if(size == 0) {
+                long explicit = readInt(inst, true);
+                if(explicit > window.length - windowPos)
+                    throw new IOException("VCDIFF instruction overflows the target window");
+                size = (int) explicit;
+            } else if(size > window.length - windowPos) {
+                throw new IOException("VCDIFF instruction overflows the target window");
+            }
+
+            switch(type) {
+                case VCDiffCodeTable.ADD:
+                    if(size > data.length - dataPos)
+                        throw new IOException("VCDIFF data section underflow");
+                    System.arraycopy(data, dataPos, window, windowPos, size);
+                    dataPos += size;
+                    windowPos += size;
+                    break;
+                case VCDiffCodeTable.RUN:
+                    if(dataPos >= data.length)
+                        throw new IOException("VCDIFF data section underflow");
+                    byte b = data[dataPos++];
+                    for(int i = 0; i < size; i++) {
+                        window[windowPos++] = b;
+                    }
+                    break;
+                case VCDiffCodeTable.COPY:
+                    copy(decodeAddress(mode), size);
+                    break;
+            }
+        }
+
+        private void copy(long address, int size) throws IOException {
+            if(address < segLength) {
+                int fromSegment = (int) Math.min(size, segLength - address);
+                segment.read(address, window, windowPos, fromSegment);
+                windowPos += fromSegment;
+                size -= fromSegment;
+                address += fromSegment;
+            }
+
+            // The rest comes from the target window itself, and may overlap with what is being written
+            int from = (int) (address - segLength);
+            for(int i = 0; i < size; i++) {
+                window[windowPos++] = window[from++];
+            }
+        }
+
+        private long decodeAddress(int mode) throws IOException {
+            long here = segLength + windowPos;
+            long address;
+
+            if(mode == 0) {
+                address = readInt(addr, false);
+            } else if(mode == 1) {
+                address = here - readInt(addr, false);
+            } else if(mode - 2 < VCDiffCodeTable.NEAR_SIZE) {
+                address = near[mode - 2] + readInt(addr, false);
+            } else {
+                if(addrPos >= addr.length)
+                    throw new IOException("VCDIFF address section underflow");
+                int m = mode - (2 + VCDiffCodeTable.NEAR_SIZE);
+                address = same[m * 256 + (addr[addrPos++] & 0xFF)];
+            }
+
+            if(address < 0 || address >= here)
+                throw new IOException("Invalid VCDIFF copy address: " + address);
+
+            near[nextSlot] = address;
+            nextSlot = (nextSlot + 1) % VCDiffCodeTable.NEAR_SIZE;
+            same[(int) (address % same.length)] = address;
+
+            return address;
+        }
+
+        private long readInt(byte[] section, boolean isInst) throws IOException {
+            long value = 0;
+            for(int i = 0; i < 9; i++) {
+                int pos = isInst ? instPos++ : addrPos++;
+                if(pos >= section.length)
+                    throw new IOException("VCDIFF section underflow");
+
+                int b = section[pos] & 0xFF;
+                value = (value << 7) | (b & 0x7F);
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("VCDIFF integer overflow");
+        }
+    }
+
+    /**
+     * A source or target segment, read through
+     * a small cache so runs of short COPYs don't
+     * each cost a seek.
+     */
+    private static class Segment {
+        private static final int CACHE_SIZE = 64 * 1024;
+
+        private final RandomAccessFile file;
+        private final long offset;
+
+        private final byte[] cache = new byte[CACHE_SIZE];
+        private long cacheStart = -1;
+        private int cacheLength = 0;
+
+        Segment(RandomAccessFile file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+
+        void read(long position, byte[] dst, int off, int len) throws IOException {
+            long absolute = offset + position;
+
+            if(len > CACHE_SIZE) {
+                file.seek(absolute);
+                file.readFully(dst, off, len);
+                return;
+            }
+
+            if(cacheStart == -1 || absolute < cacheStart || absolute + len > cacheStart + cacheLength) {
+                file.seek(absolute);
+                cacheLength = (int) Math.min(CACHE_SIZE, file.length() - absolute);
+                file.readFully(cache, 0, cacheLength);
+                cacheStart = absolute;
+            }
+
+            System.arraycopy(cache, (int) (absolute - cacheStart), dst, off, len);
+        }
+    }
+}
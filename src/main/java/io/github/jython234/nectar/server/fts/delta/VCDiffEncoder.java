@@ -0,0 +1,284 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts.delta;
+
+import java.io.*;
+
+/**
+ * Simple VCDIFF (RFC 3284) delta encoder. The output only
+ * uses the default code table and no extensions, so it
+ * can be applied with xdelta3 as well as {@link VCDiffDecoder}.
+ *
+ * The target is encoded in windows of {@link #WINDOW_SIZE} bytes. Each
+ * window is matched against the region of the source around the same
+ * offset, so memory use stays bounded no matter how large the files are.
+ *
+ * @author jython234
+ */
+public class VCDiffEncoder {
+    public static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int HASH_MULTIPLIER = 0x01000193;
+
+    private final RandomAccessFile source;
+    private final InputStream target;
+    private final OutputStream delta;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private final byte[] segment;
+    private final int[] hashTable;
+    private final int hashPower;
+
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream inst = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream addr = new ByteArrayOutputStream();
+
+    private VCDiffEncoder(RandomAccessFile source, InputStream target, OutputStream delta) throws IOException {
+        this.source = source;
+        this.target = target;
+        this.delta = delta;
+
+        int maxSegment = (int) Math.min(source == null ? 0 : source.length(), 3L * WINDOW_SIZE);
+        this.segment = new byte[maxSegment];
+        this.hashTable = new int[Integer.highestOneBit(Math.max(1, maxSegment / BLOCK_SIZE)) * 2];
+
+        int power = 1;
+        for(int i = 0; i < BLOCK_SIZE - 1; i++) {
+            power *= HASH_MULTIPLIER;
+        }
+        this.hashPower = power;
+    }
+
+    /**
+     * Encode a delta which turns source into target.
+     * @param source The old version of the file, or null to encode
+     *               the target without a source.
+     * @param target The new version of the file.
+     * @param delta The stream to write the VCDIFF delta to.
+     * @throws IOException If there is an I/O error reading the files
+     *                     or writing the delta.
+     */
+    public static void encode(File source, File target, OutputStream delta) throws IOException {
+        try(RandomAccessFile src = source == null ? null : new RandomAccessFile(source, "r");
+            InputStream in = new FileInputStream(target)) {
+
+            new VCDiffEncoder(src, in, delta).run();
+        }
+    }
+
+    /**
+     * Encode a delta which turns source into target,
+     * writing it to a file.
+     * @see #encode(File, File, OutputStream)
+     */
+    public static void encode(File source, File target, File delta) throws IOException {
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(delta), 64 * 1024)) {
+            encode(source, target, out);
+        }
+    }
+
+    private void run() throws IOException {
+        delta.write(VCDiffDecoder.MAGIC);
+        delta.write(0); // Version
+        delta.write(0); // Hdr_Indicator
+
+        long windowStart = 0;
+        int windowLength;
+        while((windowLength = fill()) > 0) {
+            encodeWindow(windowStart, windowLength);
+            windowStart += windowLength;
+        }
+
+        delta.flush();
+    }
+
+    private int fill() throws IOException {
+        int off = 0;
+        while(off < window.length) {
+            int read = target.read(window, off, window.length - off);
+            if(read == -1)
+                break;
+            off += read;
+        }
+        return off;
+    }
+
+    private void encodeWindow(long windowStart, int windowLength) throws IOException {
+        data.reset();
+        inst.reset();
+        addr.reset();
+
+        long segStart = 0;
+        int segLength = 0;
+        if(source != null) {
+            segStart = Math.max(0, windowStart - WINDOW_SIZE);
+            segLength = (int) Math.max(0, Math.min(source.length() - segStart, segment.length));
+
+            source.seek(segStart);
+            source.readFully(segment, 0, segLength);
+            indexSegment(segLength);
+        }
+
+        match(windowLength, segLength);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeInt(header, windowLength);
+        header.write(0); // Delta_Indicator, no compression
+        writeInt(header, data.size());
+        writeInt(header, inst.size());
+        writeInt(header, addr.size());
+
+        if(segLength > 0) {
+            delta.write(VCDiffDecoder.VCD_SOURCE);
+            writeInt(delta, segLength);
+            writeInt(delta, segStart);
+        } else {
+            delta.write(0);
+        }
+
+        writeInt(delta, header.size() + data.size() + inst.size() + addr.size());
+        header.writeTo(delta);
+        data.writeTo(delta);
+        inst.writeTo(delta);
+        addr.writeTo(delta);
+    }
+
+    private void indexSegment(int segLength) {
+        java.util.Arrays.fill(hashTable, 0);
+
+        int mask = hashTable.length - 1;
+        for(int pos = 0; pos + BLOCK_SIZE <= segLength; pos += BLOCK_SIZE) {
+            hashTable[slot(hash(segment, pos), mask)] = pos + 1;
+        }
+    }
+
+    private void match(int windowLength, int segLength) throws IOException {
+        int mask = hashTable.length - 1;
+        int addStart = 0;
+        int pos = 0;
+
+        int hash = 0;
+        boolean hashValid = false;
+
+        while(pos + BLOCK_SIZE <= windowLength) {
+            if(segLength < BLOCK_SIZE)
+                break;
+
+            if(!hashValid) {
+                hash = hash(window, pos);
+                hashValid = true;
+            }
+
+            int candidate = hashTable[slot(hash, mask)] - 1;
+            if(candidate >= 0 && regionMatches(candidate, pos, BLOCK_SIZE)) {
+                // Extend the match forwards, then backwards into the pending ADD
+                int length = BLOCK_SIZE;
+                while(pos + length < windowLength && candidate + length < segLength
+                        && window[pos + length] == segment[candidate + length]) {
+                    length++;
+                }
+
+                while(pos > addStart && candidate > 0 && window[pos - 1] == segment[candidate - 1]) {
+                    pos--;
+                    candidate--;
+                    length++;
+                }
+
+                emitAdd(addStart, pos - addStart);
+                emitCopy(candidate, length);
+
+                pos += length;
+                addStart = pos;
+                hashValid = false;
+                continue;
+            }
+
+            if(pos + BLOCK_SIZE < windowLength) {
+                hash = (hash - window[pos] * hashPower) * HASH_MULTIPLIER + window[pos + BLOCK_SIZE];
+            }
+            pos++;
+        }
+
+        emitAdd(addStart, windowLength - addStart);
+    }
+
+    private boolean regionMatches(int segPos, int windowPos, int length) {
+        for(int i = 0; i < length; i++) {
+            if(segment[segPos + i] != window[windowPos + i])
+                return false;
+        }
+        return true;
+    }
+
+    private void emitAdd(int offset, int length) throws IOException {
+        if(length == 0)
+            return;
+
+        if(length <= 17) {
+            inst.write(length + 1);
+        } else {
+            inst.write(VCDiffCodeTable.ADD_EXPLICIT);
+            writeInt(inst, length);
+        }
+        data.write(window, offset, length);
+    }
+
+    private void emitCopy(int address, int length) throws IOException {
+        if(length <= 18) {
+            inst.write(length + 16); // COPY mode 0, sizes 4-18
+        } else {
+            inst.write(VCDiffCodeTable.COPY_SELF_EXPLICIT);
+            writeInt(inst, length);
+        }
+        writeInt(addr, address); // VCD_SELF
+    }
+
+    private int hash(byte[] buf, int pos) {
+        int h = 0;
+        for(int i = 0; i < BLOCK_SIZE; i++) {
+            h = h * HASH_MULTIPLIER + buf[pos + i];
+        }
+        return h;
+    }
+
+    private static int slot(int hash, int mask) {
+        return ((hash * 0x9E3779B1) >>> 16 ^ hash) & mask;
+    }
+
+    static void writeInt(OutputStream out, long value) throws IOException {
+        int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+        shift -= shift % 7;
+
+        for(; shift > 0; shift -= 7) {
+            out.write((int) ((value >>> shift) & 0x7F) | 0x80);
+        }
+        out.write((int) (value & 0x7F));
+    }
+}
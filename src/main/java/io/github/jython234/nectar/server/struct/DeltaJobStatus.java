@@ -28,18 +28,57 @@
  */
 package io.github.jython234.nectar.server.struct;
 
-import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-
 /**
- * Represents an Index in the Index JSON array
- * returned by fts/checksumIndex.
+ * Represents the status of a delta
+ * upload waiting in or processed by
+ * the delta job queue.
  *
  * @author jython234
  */
-@RequiredArgsConstructor
-public class IndexJSON {
-    @Getter private final String path;
-    @Getter private final String checksum;
-    @Getter private final String lastUpdatedBy;
+public enum DeltaJobStatus {
+    /**
+     * The delta has been stored and is
+     * waiting for a worker.
+     */
+    QUEUED(0),
+    /**
+     * The delta is currently being decoded
+     * and applied to the file.
+     */
+    APPLYING(1),
+    /**
+     * The delta has been applied and the
+     * new checksum is in the index.
+     */
+    HASHED(2),
+    /**
+     * The delta could not be applied, the
+     * file was left unchanged.
+     */
+    FAILED(3);
+
+    private int status;
+
+    DeltaJobStatus(int status) {
+        this.status = status;
+    }
+
+    public static DeltaJobStatus fromInt(int status) {
+        switch(status) {
+            case 0:
+                return QUEUED;
+            case 1:
+                return APPLYING;
+            case 2:
+                return HASHED;
+            case 3:
+                return FAILED;
+            default:
+                throw new IllegalArgumentException("Unknown status!");
+        }
+    }
+
+    public int toInt() {
+        return this.status;
+    }
 }
@@ -5,6 +5,7 @@ import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import org.bson.types.ObjectId;
 import org.json.simple.JSONObject;
 
 /**
@@ -17,6 +18,7 @@ public class ClientOperation {
     @Getter private final int operationNumber;
     @Getter private final OperationID id;
     @Getter private final JSONObject payload;
+    @Getter private final ObjectId mailboxId;
 
     @SuppressWarnings("unchecked")
     public JSONObject createJSON() {
@@ -0,0 +1,217 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Compares the chunked layout of {@link ChunkStore} with flat files on a
+ * set of near-identical copies, as found in user stores. Reports the dedup
+ * ratio and the upload (write + hash) and download (read back in order)
+ * throughput of both layouts. Not run as part of the tests, run it with
+ * {@code java -cp <test classpath> io.github.jython234.nectar.server.fts.ChunkStoreBenchmark [directory] [copies] [size in MiB]}.
+ *
+ * @author jython234
+ */
+public class ChunkStoreBenchmark {
+    private static final int WARMUP = 1;
+    private static final int ITERATIONS = 3;
+    private static final int EDITS = 16;
+
+    public static void main(String[] args) throws Exception {
+        File dir = (args.length > 0 ? Files.createTempDirectory(new File(args[0]).toPath(), "chunk-benchmark")
+                : Files.createTempDirectory("chunk-benchmark")).toFile();
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int size = (args.length > 2 ? Integer.parseInt(args[2]) : 32) * 1024 * 1024;
+
+        Random random = new Random(size);
+        byte[] base = new byte[size];
+        random.nextBytes(base);
+        List<byte[]> files = new ArrayList<>();
+        for(int i = 0; i < copies; i++) {
+            files.add(edit(base, random));
+        }
+        long logical = 0;
+        for(byte[] file : files) {
+            logical += file.length;
+        }
+
+        try {
+            File flatDir = new File(dir, "flat");
+            File chunkDir = new File(dir, "chunks");
+
+            System.out.printf("%d copies of %d MiB, %d edits each%n", copies, size / (1024 * 1024), EDITS);
+            report("flat upload", logical, time(() -> {
+                reset(flatDir);
+                for(int i = 0; i < files.size(); i++) {
+                    writeFlat(new File(flatDir, Integer.toString(i)), files.get(i));
+                }
+            }));
+
+            List<List<String>> manifests = new ArrayList<>();
+            report("chunked upload", logical, time(() -> {
+                reset(chunkDir);
+                manifests.clear();
+                for(byte[] file : files) {
+                    manifests.add(writeChunked(chunkDir, file));
+                }
+            }));
+
+            long physical = 0;
+            for(File chunk : chunkDir.listFiles()) {
+                physical += chunk.length();
+            }
+            System.out.printf("  dedup ratio: %.2f (%d logical bytes, %d physical bytes in %d chunks)%n",
+                    (double) logical / physical, logical, physical, chunkDir.listFiles().length);
+
+            report("flat download", logical, time(() -> {
+                for(int i = 0; i < files.size(); i++) {
+                    drain(new FileInputStream(new File(flatDir, Integer.toString(i))));
+                }
+            }));
+            report("chunked download", logical, time(() -> {
+                for(List<String> manifest : manifests) {
+                    for(String chunk : manifest) {
+                        drain(new FileInputStream(new File(chunkDir, chunk)));
+                    }
+                }
+            }));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static byte[] edit(byte[] base, Random random) {
+        // Small inserts at random places, which shift everything after them
+        ByteArrayOutputStream out = new ByteArrayOutputStream(base.length + EDITS * 100);
+        int[] positions = new int[EDITS];
+        for(int i = 0; i < EDITS; i++) {
+            positions[i] = random.nextInt(base.length);
+        }
+        Arrays.sort(positions);
+
+        int last = 0;
+        byte[] insert = new byte[100];
+        for(int position : positions) {
+            out.write(base, last, position - last);
+            random.nextBytes(insert);
+            out.write(insert, 0, insert.length);
+            last = position;
+        }
+        out.write(base, last, base.length - last);
+        return out.toByteArray();
+    }
+
+    private static void writeFlat(File file, byte[] data) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try(OutputStream out = new FileOutputStream(file)) {
+            for(int off = 0; off < data.length; off += 64 * 1024) {
+                int length = Math.min(64 * 1024, data.length - off);
+                digest.update(data, off, length);
+                out.write(data, off, length);
+            }
+        }
+        digest.digest();
+    }
+
+    private static List<String> writeChunked(File dir, byte[] data) throws Exception {
+        MessageDigest whole = MessageDigest.getInstance("SHA-256");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        List<String> manifest = new ArrayList<>();
+        for(int off = 0; off < data.length; ) {
+            int length = ChunkStore.cut(data, off, data.length - off);
+            whole.update(data, off, length);
+            digest.update(data, off, length);
+            String name = Hex.encodeHexString(digest.digest());
+            manifest.add(name);
+
+            File chunk = new File(dir, name);
+            if(!chunk.exists()) {
+                try(OutputStream out = new FileOutputStream(chunk)) {
+                    out.write(data, off, length);
+                }
+            }
+            off += length;
+        }
+        whole.digest();
+        return manifest;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        try(InputStream stream = in) {
+            byte[] buffer = new byte[64 * 1024];
+            while(stream.read(buffer) != -1) {
+                // Discard
+            }
+        }
+    }
+
+    private static void reset(File dir) throws IOException {
+        delete(dir);
+        if(!dir.mkdirs())
+            throw new IOException("mkdirs() call failed for " + dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static long time(Task task) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long size, long nanos) {
+        System.out.printf("  %-17s %8.1f ms %8.1f MiB/s%n", name, nanos / 1e6, size / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the content-defined chunk boundaries of {@link ChunkStore}.
+ *
+ * @author jython234
+ */
+public class ChunkStoreTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void chunkSizesStayWithinBounds() {
+        byte[] data = randomBytes(16 * 1024 * 1024);
+        List<Integer> lengths = chunk(data);
+
+        long total = 0;
+        for(int i = 0; i < lengths.size(); i++) {
+            int length = lengths.get(i);
+            assertTrue("chunk " + i + " is " + length + " bytes", length <= ChunkStore.MAX_CHUNK_SIZE);
+            if(i < lengths.size() - 1)
+                assertTrue("chunk " + i + " is " + length + " bytes", length >= ChunkStore.MIN_CHUNK_SIZE);
+            total += length;
+        }
+        assertEquals(data.length, total);
+
+        // Normalized chunking keeps the average close to the target on random data
+        long average = total / lengths.size();
+        assertTrue("average chunk is " + average + " bytes",
+                average > ChunkStore.AVG_CHUNK_SIZE / 2 && average < ChunkStore.AVG_CHUNK_SIZE * 2);
+    }
+
+    @Test
+    public void shortInputIsOneChunk() {
+        byte[] data = randomBytes(ChunkStore.MIN_CHUNK_SIZE);
+        assertEquals(data.length, ChunkStore.cut(data, 0, data.length));
+        assertEquals(100, ChunkStore.cut(data, 0, 100));
+    }
+
+    @Test
+    public void uniformDataStaysWithinTheMaximum() {
+        byte[] data = new byte[ChunkStore.MAX_CHUNK_SIZE * 3];
+        for(int length : chunk(data)) {
+            assertTrue(length <= ChunkStore.MAX_CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    public void boundariesDependOnlyOnContent() {
+        byte[] data = randomBytes(4 * 1024 * 1024);
+        assertEquals(chunk(data), chunk(data.clone()));
+
+        // The same bytes at a different offset in the buffer give the same chunks
+        byte[] padded = new byte[data.length + 1000];
+        System.arraycopy(data, 0, padded, 1000, data.length);
+        List<Integer> lengths = new ArrayList<>();
+        for(int off = 1000; off < padded.length; ) {
+            int length = ChunkStore.cut(padded, off, padded.length - off);
+            lengths.add(length);
+            off += length;
+        }
+        assertEquals(chunk(data), lengths);
+    }
+
+    @Test
+    public void insertionOnlyChangesNearbyChunks() {
+        byte[] data = randomBytes(8 * 1024 * 1024);
+        byte[] edited = new byte[data.length + 100];
+        int insertAt = 12345;
+        System.arraycopy(data, 0, edited, 0, insertAt);
+        System.arraycopy(randomBytes(100), 0, edited, insertAt, 100);
+        System.arraycopy(data, insertAt, edited, insertAt + 100, data.length - insertAt);
+
+        Set<String> before = chunkContents(data);
+        Set<String> after = chunkContents(edited);
+
+        int shared = 0;
+        for(String chunk : after) {
+            if(before.contains(chunk))
+                shared++;
+        }
+
+        // Fixed-size blocks would share nothing after the insertion point
+        assertTrue("only " + shared + " of " + after.size() + " chunks are shared", shared >= after.size() - 3);
+    }
+
+    private static List<Integer> chunk(byte[] data) {
+        List<Integer> lengths = new ArrayList<>();
+        for(int off = 0; off < data.length; ) {
+            int length = ChunkStore.cut(data, off, data.length - off);
+            lengths.add(length);
+            off += length;
+        }
+        return lengths;
+    }
+
+    private static Set<String> chunkContents(byte[] data) {
+        Set<String> chunks = new HashSet<>();
+        int off = 0;
+        for(int length : chunk(data)) {
+            chunks.add(Arrays.hashCode(Arrays.copyOfRange(data, off, off + length)) + "/" + length);
+            off += length;
+        }
+        return chunks;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        this.random.nextBytes(data);
+        return data;
+    }
+}
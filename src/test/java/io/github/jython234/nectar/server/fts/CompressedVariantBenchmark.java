@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures what the gzip variants of {@link CompressedVariantStore} save
+ * per download: bytes on the wire and CPU time, compared with sending the
+ * raw file and with compressing on every request. Not run as part of the
+ * tests, run it with
+ * {@code java -cp <test classpath> io.github.jython234.nectar.server.fts.CompressedVariantBenchmark [size in MiB]}.
+ *
+ * @author jython234
+ */
+public class CompressedVariantBenchmark {
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+        Random random = new Random(size);
+
+        StringBuilder script = new StringBuilder();
+        while(script.length() < size) {
+            script.append("if [ -f \"$CONFIG_DIR/node").append(random.nextInt(1000)).append(".conf\" ]; then\n")
+                    .append("    echo \"loading ").append(random.nextInt(100000)).append("\"\nfi\n");
+        }
+        run("script", script.substring(0, size).getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder json = new StringBuilder("[");
+        while(json.length() < size) {
+            json.append("{\"id\":").append(random.nextInt()).append(",\"name\":\"package-").append(random.nextInt(5000))
+                    .append("\",\"version\":\"").append(random.nextInt(10)).append('.').append(random.nextInt(100)).append("\"},");
+        }
+        run("json", json.substring(0, size).getBytes(StandardCharsets.UTF_8));
+
+        byte[] binary = new byte[size];
+        random.nextBytes(binary);
+        run("random", binary);
+    }
+
+    private static void run(String name, byte[] data) throws Exception {
+        System.out.printf("%s, %d MiB%n", name, data.length / (1024 * 1024));
+
+        long sampleNanos = cpuTime(() -> CompressedVariantStore.sampledRatio(data, Math.min(data.length, CompressedVariantStore.SAMPLE_SIZE)));
+        double ratio = CompressedVariantStore.sampledRatio(data, Math.min(data.length, CompressedVariantStore.SAMPLE_SIZE));
+        boolean compressed = data.length >= CompressedVariantStore.MIN_SIZE && ratio <= CompressedVariantStore.MAX_SAMPLE_RATIO;
+        System.out.printf("  sampled ratio %.2f in %.2f ms CPU, %s%n", ratio, sampleNanos / 1e6, compressed ? "compressed" : "left raw");
+        if(!compressed)
+            return;
+
+        ByteArrayOutputStream gzipBytes = new ByteArrayOutputStream();
+        long compressNanos = cpuTime(() -> {
+            gzipBytes.reset();
+            gzip(data, gzipBytes);
+        });
+        byte[] variant = gzipBytes.toByteArray();
+
+        System.out.printf("  wire bytes: %d raw, %d gzip (%.1fx)%n", data.length, variant.length, (double) data.length / variant.length);
+        System.out.printf("  variant build, once per upload: %8.2f ms CPU%n", compressNanos / 1e6);
+        System.out.printf("  per request, raw:               %8.2f ms CPU%n", cpuTime(() -> send(data)) / 1e6);
+        System.out.printf("  per request, stored variant:    %8.2f ms CPU%n", cpuTime(() -> send(variant)) / 1e6);
+        System.out.printf("  per request, gzip on the fly:   %8.2f ms CPU%n", cpuTime(() -> gzip(data, new NullOutputStream())) / 1e6);
+    }
+
+    private static void gzip(byte[] data, OutputStream target) throws IOException {
+        // Same stream settings as CompressedVariantStore uses for its variants
+        try(OutputStream out = new GZIPOutputStream(target, 64 * 1024)) {
+            out.write(data);
+        }
+    }
+
+    private static void send(byte[] data) throws IOException {
+        // Copy through a buffer the way the download path streams to the response
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        for(int off = 0; off < data.length; off += 64 * 1024) {
+            out.write(data, off, Math.min(64 * 1024, data.length - off));
+        }
+    }
+
+    private static long cpuTime(Task task) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = threads.getCurrentThreadCpuTime();
+            task.run();
+            best = Math.min(best, threads.getCurrentThreadCpuTime() - start);
+        }
+        return best;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
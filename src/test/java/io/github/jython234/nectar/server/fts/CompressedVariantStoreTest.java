@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the compressibility sampling of {@link CompressedVariantStore}.
+ *
+ * @author jython234
+ */
+public class CompressedVariantStoreTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void textIsCompressible() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while(text.length() < CompressedVariantStore.SAMPLE_SIZE) {
+            text.append("Line ").append(text.length()).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        byte[] sample = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        double ratio = CompressedVariantStore.sampledRatio(sample, CompressedVariantStore.SAMPLE_SIZE);
+        assertTrue("text sampled at " + ratio, ratio < CompressedVariantStore.MAX_SAMPLE_RATIO);
+    }
+
+    @Test
+    public void randomDataIsIncompressible() throws IOException {
+        byte[] sample = new byte[CompressedVariantStore.SAMPLE_SIZE];
+        this.random.nextBytes(sample);
+
+        double ratio = CompressedVariantStore.sampledRatio(sample, sample.length);
+        assertTrue("random data sampled at " + ratio, ratio > CompressedVariantStore.MAX_SAMPLE_RATIO);
+    }
+
+    @Test
+    public void compressedDataIsIncompressible() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 200000; i++) {
+            text.append(this.random.nextInt()).append(i % 7 == 0 ? '\n' : ' ');
+        }
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try(GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] sample = gzipped.toByteArray();
+        assertTrue(sample.length >= CompressedVariantStore.MIN_SIZE);
+
+        double ratio = CompressedVariantStore.sampledRatio(sample, Math.min(sample.length, CompressedVariantStore.SAMPLE_SIZE));
+        assertTrue("gzip data sampled at " + ratio, ratio > CompressedVariantStore.MAX_SAMPLE_RATIO);
+    }
+
+    @Test
+    public void onlyTheSampledLengthCounts() throws IOException {
+        // A compressible prefix followed by random bytes that lie outside the sample
+        byte[] sample = new byte[CompressedVariantStore.SAMPLE_SIZE];
+        this.random.nextBytes(sample);
+        for(int i = 0; i < CompressedVariantStore.MIN_SIZE * 4; i++) {
+            sample[i] = (byte) 'a';
+        }
+
+        double ratio = CompressedVariantStore.sampledRatio(sample, CompressedVariantStore.MIN_SIZE * 4);
+        assertTrue("prefix sampled at " + ratio, ratio < 0.1);
+    }
+}
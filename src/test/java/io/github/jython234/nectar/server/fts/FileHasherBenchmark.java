@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Times {@link FileHasher} against a plain stream digest across file
+ * sizes, so the buffer and memory-map thresholds can be checked on real
+ * disks. Not run as part of the tests, run it with
+ * {@code java -cp <test classpath> io.github.jython234.nectar.server.fts.FileHasherBenchmark [directory] [sizes in MiB...]}.
+ * Files are re-read from the page cache, so this measures hashing rather than the disk.
+ *
+ * @author jython234
+ */
+public class FileHasherBenchmark {
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        File dir = args.length == 0 ? Files.createTempDirectory("hasher-benchmark").toFile() : new File(args[0]);
+        int[] sizes = args.length <= 1 ? new int[] { 1, 4, 64, 512 } : new int[args.length - 1];
+        for(int i = 1; i < args.length; i++) {
+            sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        for(int size : sizes) {
+            File file = File.createTempFile("hasher", ".bin", dir);
+            try {
+                run(file, size * 1024 * 1024);
+            } finally {
+                file.delete();
+            }
+        }
+        if(args.length == 0)
+            dir.delete();
+    }
+
+    private static void run(File file, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        System.out.printf("%d MiB%n", size / (1024 * 1024));
+        report("stream sha256", size, time(() -> streamSha256(file)));
+        report("sha256", size, time(() -> FileHasher.sha256(file)));
+        report("fingerprint", size, time(() -> FileHasher.fingerprint(file)));
+    }
+
+    private static void streamSha256(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        digest.digest();
+    }
+
+    private static long time(Task task) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, int size, long nanos) {
+        System.out.printf("  %-15s %8.1f ms %8.1f MiB/s%n", name, nanos / 1e6, size / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
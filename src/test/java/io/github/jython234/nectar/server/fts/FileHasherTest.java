@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests {@link FileHasher} against {@link MessageDigest} and checks
+ * that fingerprints change with the file.
+ *
+ * @author jython234
+ */
+public class FileHasherTest {
+    private static final int MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void sha256MatchesMessageDigest() throws IOException, NoSuchAlgorithmException {
+        // Empty, tiny, across the read buffer, just under and at the map threshold, across a map window
+        int[] sizes = { 0, 1, 256 * 1024 + 1, 4 * MB - 1, 4 * MB, 64 * MB + 12345 };
+        for(int size : sizes) {
+            byte[] data = randomBytes(size);
+            File file = write(data);
+
+            String expected = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+            assertEquals(size + " bytes", expected, FileHasher.sha256(file));
+        }
+    }
+
+    @Test
+    public void fingerprintIsStable() throws IOException {
+        for(int size : new int[] { 0, 1000, 9 * MB + 7 }) {
+            byte[] data = randomBytes(size);
+            File file = write(data);
+
+            String fingerprint = FileHasher.fingerprint(file);
+            assertEquals(16, fingerprint.length());
+            assertEquals(fingerprint, FileHasher.fingerprint(file));
+            assertEquals(fingerprint, FileHasher.fingerprint(write(data)));
+        }
+    }
+
+    @Test
+    public void fingerprintChangesWithContents() throws IOException {
+        byte[] data = randomBytes(9 * MB + 7);
+        File file = write(data);
+        String fingerprint = FileHasher.fingerprint(file);
+
+        // One byte in each chunk, including the short last one
+        for(long position : new long[] { 0, 4 * MB + 100, data.length - 1 }) {
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(position);
+                int original = raf.read();
+                raf.seek(position);
+                raf.write(original ^ 1);
+                assertNotEquals("byte " + position, fingerprint, FileHasher.fingerprint(file));
+
+                raf.seek(position);
+                raf.write(original);
+            }
+            assertEquals(fingerprint, FileHasher.fingerprint(file));
+        }
+    }
+
+    @Test
+    public void fingerprintChangesWithSize() throws IOException {
+        byte[] data = randomBytes(4 * MB);
+        File file = write(data);
+        String fingerprint = FileHasher.fingerprint(file);
+
+        // A trailing zero byte adds an empty-looking chunk, the length must still tell them apart
+        byte[] longer = new byte[data.length + 1];
+        System.arraycopy(data, 0, longer, 0, data.length);
+        assertNotEquals(fingerprint, FileHasher.fingerprint(write(longer)));
+
+        assertNotEquals(FileHasher.fingerprint(write(new byte[0])), FileHasher.fingerprint(write(new byte[1])));
+    }
+
+    @Test
+    public void fingerprintDependsOnChunkOrder() throws IOException {
+        byte[] first = randomBytes(4 * MB);
+        byte[] second = randomBytes(4 * MB);
+
+        byte[] forward = new byte[8 * MB];
+        System.arraycopy(first, 0, forward, 0, first.length);
+        System.arraycopy(second, 0, forward, 4 * MB, second.length);
+        byte[] swapped = new byte[8 * MB];
+        System.arraycopy(second, 0, swapped, 0, second.length);
+        System.arraycopy(first, 0, swapped, 4 * MB, first.length);
+
+        assertNotEquals(FileHasher.fingerprint(write(forward)), FileHasher.fingerprint(write(swapped)));
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = this.folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        this.random.nextBytes(data);
+        return data;
+    }
+}
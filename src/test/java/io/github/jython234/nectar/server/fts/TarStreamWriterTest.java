@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the archives produced by {@link TarStreamWriter}.
+ *
+ * @author jython234
+ */
+public class TarStreamWriterTest {
+    private static final long MODIFIED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void writesUstarHeader() throws IOException {
+        byte[] contents = randomBytes(1000);
+        byte[] archive = archive("dir/file.bin", contents);
+
+        // Header, contents padded to two blocks, end marker
+        assertEquals(512 + 1024 + 1024, archive.length);
+
+        byte[] header = Arrays.copyOfRange(archive, 0, 512);
+        assertEquals("dir/file.bin", field(header, 0, 100));
+        assertEquals(1000, octal(header, 124, 12));
+        assertEquals(MODIFIED / 1000, octal(header, 136, 12));
+        assertEquals('0', header[156]);
+        assertEquals("ustar", field(header, 257, 6));
+        assertEquals("00", new String(header, 263, 2, StandardCharsets.US_ASCII));
+        assertChecksum(header);
+
+        assertArrayEquals(contents, Arrays.copyOfRange(archive, 512, 512 + 1000));
+        assertZero(archive, 512 + 1000, archive.length);
+    }
+
+    @Test
+    public void writesPaxHeaderForLongNames() throws IOException {
+        StringBuilder name = new StringBuilder();
+        while(name.length() <= 150) {
+            name.append("directory/");
+        }
+        name.append("file.txt");
+        byte[] contents = "hello".getBytes(StandardCharsets.UTF_8);
+        byte[] archive = archive(name.toString(), contents);
+
+        byte[] paxHeader = Arrays.copyOfRange(archive, 0, 512);
+        assertEquals('x', paxHeader[156]);
+        assertChecksum(paxHeader);
+
+        int paxLength = (int) octal(paxHeader, 124, 12);
+        String record = new String(archive, 512, paxLength, StandardCharsets.UTF_8);
+        assertEquals(paxLength + " path=" + name + "\n", record);
+
+        byte[] header = Arrays.copyOfRange(archive, 1024, 1536);
+        assertEquals('0', header[156]);
+        assertEquals(name.substring(0, 100), field(header, 0, 100));
+        assertEquals(contents.length, octal(header, 124, 12));
+        assertChecksum(header);
+        assertEquals("hello", new String(archive, 1536, contents.length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void emptyFileHasNoContentBlocks() throws IOException {
+        byte[] archive = archive("empty", new byte[0]);
+        assertEquals(512 + 1024, archive.length);
+        assertEquals(0, octal(archive, 124, 12));
+        assertZero(archive, 512, archive.length);
+    }
+
+    @Test(expected = EOFException.class)
+    public void shortInputIsRejected() throws IOException {
+        TarStreamWriter writer = new TarStreamWriter(new ByteArrayOutputStream());
+        writer.writeFile("short", 100, MODIFIED, new ByteArrayInputStream(new byte[50]));
+    }
+
+    @Test
+    public void systemTarCanExtract() throws IOException, InterruptedException {
+        Assume.assumeTrue(new File("/usr/bin/tar").canExecute() || new File("/bin/tar").canExecute());
+
+        StringBuilder longName = new StringBuilder("nested");
+        while(longName.length() <= 120) {
+            longName.append("/subdirectory");
+        }
+        longName.append("/data.bin");
+        byte[] small = randomBytes(3000);
+        byte[] nested = randomBytes(70000);
+
+        File tarFile = this.folder.newFile("test.tar");
+        try(OutputStream out = new FileOutputStream(tarFile)) {
+            TarStreamWriter writer = new TarStreamWriter(out);
+            writer.writeFile("small.bin", small.length, MODIFIED, new ByteArrayInputStream(small));
+            writer.writeFile(longName.toString(), nested.length, MODIFIED, new ByteArrayInputStream(nested));
+            writer.finish();
+        }
+
+        File extracted = this.folder.newFolder("extracted");
+        Process process = new ProcessBuilder("tar", "-xf", tarFile.getAbsolutePath(), "-C", extracted.getAbsolutePath())
+                .redirectErrorStream(true).start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+
+        assertArrayEquals(small, Files.readAllBytes(new File(extracted, "small.bin").toPath()));
+        assertArrayEquals(nested, Files.readAllBytes(new File(extracted, longName.toString()).toPath()));
+    }
+
+    private static byte[] archive(String name, byte[] contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarStreamWriter writer = new TarStreamWriter(out);
+        writer.writeFile(name, contents.length, MODIFIED, new ByteArrayInputStream(contents));
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    private static void assertChecksum(byte[] header) {
+        long expected = octal(header, 148, 8);
+        long sum = 0;
+        for(int i = 0; i < 512; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xFF;
+        }
+        assertEquals(expected, sum);
+    }
+
+    private static void assertZero(byte[] data, int from, int to) {
+        for(int i = from; i < to; i++) {
+            assertEquals("byte " + i, 0, data[i]);
+        }
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while(end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+        return Long.parseLong(field(header, offset, length).trim(), 8);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        this.random.nextBytes(data);
+        return data;
+    }
+}
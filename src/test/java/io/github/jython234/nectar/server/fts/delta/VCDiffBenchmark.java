@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Compares the Java VCDIFF codec with the xdelta3 binary, which FTS used
+ * to spawn for every delta. Not run as part of the tests, run it with
+ * {@code java -cp <test classpath> io.github.jython234.nectar.server.fts.delta.VCDiffBenchmark [sizes in MiB...]}.
+ *
+ * @author jython234
+ */
+public class VCDiffBenchmark {
+    private static final int WARMUP = 2;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[] { 1, 16, 64 } : new int[args.length];
+        for(int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        boolean xdelta3 = hasXdelta3();
+        if(!xdelta3)
+            System.out.println("xdelta3 not found, only timing the Java codec");
+
+        File dir = Files.createTempDirectory("vcdiff-benchmark").toFile();
+        try {
+            for(int size : sizes) {
+                run(dir, size * 1024 * 1024, xdelta3);
+            }
+        } finally {
+            for(File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void run(File dir, int size, boolean xdelta3) throws Exception {
+        Random random = new Random(size);
+        byte[] source = new byte[size];
+        random.nextBytes(source);
+        byte[] target = source.clone();
+        for(int i = 0; i < size / 4096; i++) {
+            target[random.nextInt(size)] ^= 0x5A;
+        }
+
+        File sourceFile = new File(dir, "source");
+        File targetFile = new File(dir, "target");
+        File delta = new File(dir, "delta");
+        File output = new File(dir, "output");
+        Files.write(sourceFile.toPath(), source);
+        Files.write(targetFile.toPath(), target);
+
+        System.out.printf("%d MiB, %d changed bytes%n", size / (1024 * 1024), size / 4096);
+        report("java encode", size, time(() -> VCDiffEncoder.encode(sourceFile, targetFile, delta)));
+        System.out.printf("  java delta size: %d bytes%n", delta.length());
+        report("java decode", size, time(() -> VCDiffDecoder.decode(sourceFile, delta, output)));
+
+        if(xdelta3) {
+            report("xdelta3 encode", size, time(() -> exec("xdelta3", "-e", "-f", "-S", "none", "-s", sourceFile.getPath(), targetFile.getPath(), delta.getPath())));
+            System.out.printf("  xdelta3 delta size: %d bytes%n", delta.length());
+            report("xdelta3 decode", size, time(() -> exec("xdelta3", "-d", "-f", "-s", sourceFile.getPath(), delta.getPath(), output.getPath())));
+        }
+    }
+
+    private static long time(Task task) throws Exception {
+        for(int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, int size, long nanos) {
+        System.out.printf("  %-15s %8.1f ms %8.1f MiB/s%n", name, nanos / 1e6, size / (1024.0 * 1024.0) / (nanos / 1e9));
+    }
+
+    private static void exec(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getInputStream().close();
+        if(process.waitFor() != 0)
+            throw new IOException(String.join(" ", command) + " failed");
+    }
+
+    private static boolean hasXdelta3() {
+        try {
+            exec("xdelta3", "-V");
+            return true;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2017, Nectar-Server Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package io.github.jython234.nectar.server.fts.delta;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through {@link VCDiffEncoder} and {@link VCDiffDecoder},
+ * and interoperability with the xdelta3 binary when it is installed.
+ *
+ * @author jython234
+ */
+public class VCDiffCodecTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void identicalFiles() throws IOException {
+        byte[] data = randomBytes(300 * 1024);
+        assertRoundTrip(data, data);
+    }
+
+    @Test
+    public void smallEdits() throws IOException {
+        byte[] source = randomBytes(1024 * 1024);
+        byte[] target = edit(source);
+        File delta = assertRoundTrip(source, target);
+
+        // Mostly copies, so the delta is far smaller than the target
+        assertTrue("delta is " + delta.length() + " bytes", delta.length() < target.length / 10);
+    }
+
+    @Test
+    public void unrelatedFiles() throws IOException {
+        assertRoundTrip(randomBytes(100 * 1024), randomBytes(150 * 1024));
+    }
+
+    @Test
+    public void emptyFiles() throws IOException {
+        assertRoundTrip(new byte[0], randomBytes(10 * 1024));
+        assertRoundTrip(randomBytes(10 * 1024), new byte[0]);
+        assertRoundTrip(new byte[0], new byte[0]);
+    }
+
+    @Test
+    public void noSource() throws IOException {
+        byte[] target = randomBytes(64 * 1024);
+        File targetFile = write("target", target);
+        File delta = folder.newFile("delta");
+        File output = folder.newFile("output");
+
+        VCDiffEncoder.encode(null, targetFile, delta);
+        VCDiffDecoder.decode(null, delta, output);
+
+        assertArrayEquals(target, Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void severalWindows() throws IOException {
+        byte[] source = randomBytes(VCDiffEncoder.WINDOW_SIZE * 2 + 12345);
+        assertRoundTrip(source, edit(source));
+    }
+
+    @Test
+    public void repetitiveTarget() throws IOException {
+        // Runs and overlapping copies within the target itself
+        byte[] target = new byte[200 * 1024];
+        for(int i = 0; i < target.length; i++) {
+            target[i] = (byte) (i % 7 == 0 ? 'x' : 'a' + i % 3);
+        }
+        assertRoundTrip(randomBytes(1024), target);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadMagic() throws IOException {
+        File delta = write("delta", new byte[] { 1, 2, 3, 0, 0 });
+        VCDiffDecoder.decode(null, delta, folder.newFile("output"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDelta() throws IOException {
+        byte[] source = randomBytes(64 * 1024);
+        File delta = encode(source, edit(source));
+
+        byte[] bytes = Files.readAllBytes(delta.toPath());
+        File truncated = write("truncated", Arrays.copyOf(bytes, bytes.length / 2));
+        VCDiffDecoder.decode(write("source", source), truncated, folder.newFile("output"));
+    }
+
+    @Test
+    public void xdelta3DecodesOurDeltas() throws Exception {
+        Assume.assumeTrue("xdelta3 is not installed", hasXdelta3());
+
+        byte[] source = randomBytes(512 * 1024);
+        byte[] target = edit(source);
+        File sourceFile = write("source", source);
+        File delta = encode(source, target);
+        File output = new File(folder.getRoot(), "output");
+
+        assertEquals(0, run("xdelta3", "-d", "-f", "-s", sourceFile.getPath(), delta.getPath(), output.getPath()));
+        assertArrayEquals(target, Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void decodesXdelta3Deltas() throws Exception {
+        Assume.assumeTrue("xdelta3 is not installed", hasXdelta3());
+
+        byte[] source = randomBytes(512 * 1024);
+        byte[] target = edit(source);
+        File sourceFile = write("source", source);
+        File targetFile = write("target", target);
+        File delta = new File(folder.getRoot(), "delta");
+        File output = folder.newFile("output");
+
+        // Secondary compression is not supported by the decoder
+        assertEquals(0, run("xdelta3", "-e", "-f", "-S", "none", "-s", sourceFile.getPath(), targetFile.getPath(), delta.getPath()));
+        VCDiffDecoder.decode(sourceFile, delta, output);
+        assertArrayEquals(target, Files.readAllBytes(output.toPath()));
+    }
+
+    private File assertRoundTrip(byte[] source, byte[] target) throws IOException {
+        File sourceFile = write("source", source);
+        File delta = encode(source, target);
+        File output = folder.newFile();
+
+        VCDiffDecoder.decode(sourceFile, delta, output);
+        assertArrayEquals(target, Files.readAllBytes(output.toPath()));
+        return delta;
+    }
+
+    private File encode(byte[] source, byte[] target) throws IOException {
+        File delta = folder.newFile();
+        VCDiffEncoder.encode(write("source", source), write("target", target), delta);
+        return delta;
+    }
+
+    private File write(String prefix, byte[] data) throws IOException {
+        File file = File.createTempFile(prefix, ".bin", folder.getRoot());
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        this.random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * @return A copy of data with a few bytes changed, a block inserted and a block removed.
+     */
+    private byte[] edit(byte[] data) {
+        byte[] changed = data.clone();
+        for(int i = 0; i < 20; i++) {
+            changed[this.random.nextInt(changed.length)] ^= 0x5A;
+        }
+
+        int insertAt = changed.length / 3;
+        byte[] inserted = randomBytes(777);
+        byte[] withInsert = new byte[changed.length + inserted.length];
+        System.arraycopy(changed, 0, withInsert, 0, insertAt);
+        System.arraycopy(inserted, 0, withInsert, insertAt, inserted.length);
+        System.arraycopy(changed, insertAt, withInsert, insertAt + inserted.length, changed.length - insertAt);
+
+        int removeAt = withInsert.length * 2 / 3;
+        int removed = Math.min(1000, withInsert.length - removeAt);
+        byte[] result = new byte[withInsert.length - removed];
+        System.arraycopy(withInsert, 0, result, 0, removeAt);
+        System.arraycopy(withInsert, removeAt + removed, result, removeAt, withInsert.length - removeAt - removed);
+        return result;
+    }
+
+    private static boolean hasXdelta3() {
+        try {
+            return run("xdelta3", "-V") == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static int run(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+        if(!process.waitFor(60, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            return -1;
+        }
+        return process.exitValue();
+    }
+}